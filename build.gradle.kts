@@ -10,6 +10,14 @@ repositories {
     jcenter()
 }
 
+// JMH benchmarks live in their own source set on top of the main classes
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets["main"].output + sourceSets["main"].runtimeClasspath
+        runtimeClasspath += output + compileClasspath
+    }
+}
+
 dependencies {
     // Our beloved one-nio
     compile("ru.odnoklassniki:one-nio:1.0.2")
@@ -23,12 +31,19 @@ dependencies {
     //DB
     compile("org.mapdb:mapdb:3.0.5")
 
+    // Latency histograms
+    compile("org.hdrhistogram:HdrHistogram:2.1.10")
+
     // JUnit 5
     testImplementation("org.junit.jupiter:junit-jupiter-api:5.3.1")
     testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.3.1")
 
     // Guava for tests
     testCompile("com.google.guava:guava:23.1-jre")
+
+    // JMH for benchmarks
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.21")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.21")
 }
 
 tasks {
@@ -38,6 +53,27 @@ tasks {
     }
 }
 
+// Run with e.g. gradle jmh -Pjmh.args="KVDaoBenchmark -t 4 -p engine=lsm"
+task<JavaExec>("jmh") {
+    description = "Runs JMH benchmarks and writes JSON results to build/reports/jmh"
+    group = "verification"
+    dependsOn("jmhClasses")
+    classpath = sourceSets["jmh"].runtimeClasspath
+    main = "org.openjdk.jmh.Main"
+    val results = file("$buildDir/reports/jmh/results.json")
+    doFirst { results.parentFile.mkdirs() }
+    val extra = (project.findProperty("jmh.args") as String?)?.split(" ")?.filter { it.isNotEmpty() } ?: emptyList()
+    args(extra + listOf("-rf", "json", "-rff", results.path))
+}
+
+// Run with e.g. gradle load -Dload.rate=10000 against a started cluster
+task<JavaExec>("load") {
+    description = "Runs the stage 3 load matrix against a running cluster"
+    classpath = sourceSets["main"].runtimeClasspath
+    main = "ru.mail.polis.LoadGenerator"
+    systemProperties(System.getProperties().filterKeys { (it as String).startsWith("load.") }.mapKeys { it.key as String })
+}
+
 application {
     // Define the main class for the application
     mainClassName = "ru.mail.polis.Cluster"
@@ -0,0 +1,126 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost {@link AntiEntropy} adds to a local write: {@link #indexed} against the storage alone in {@link #baseline}.
+ * <p>
+ * Rounds are off, so only the index insert and the bucket mark are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx256m", "-XX:MaxDirectMemorySize=256m"})
+public class AntiEntropyBenchmark {
+
+    private static final String SELF = "http://node0:8080";
+
+    @Param({"mapdb", "lsm"})
+    public String engine;
+
+    /**
+     * 1 KB as in the tests
+     */
+    @Param({"1024"})
+    public int valueSize;
+
+    @Param({"100000"})
+    public int datasetSize;
+
+    private File directory;
+    private VersionedKVDao dao;
+    private AntiEntropy antiEntropy;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("highload-kv-bench").toFile();
+        dao = "mapdb".equals(engine) ? new PersistentKVDao(directory) : new LsmKVDao(directory);
+        antiEntropy = new AntiEntropy(
+                SELF,
+                new RendezvousPlacement(Arrays.asList(SELF, "http://node1:8080", "http://node2:8080")),
+                dao,
+                directory,
+                new Unreachable(),
+                0,
+                LsmKVDao.DEFAULT_TOMBSTONE_GRACE_MILLIS);
+        value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        antiEntropy.close();
+        dao.close();
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @NotNull
+    private byte[] randomKey() {
+        return ByteBuffer.allocate(Long.BYTES).putLong(ThreadLocalRandom.current().nextInt(datasetSize)).array();
+    }
+
+    @Benchmark
+    public void baseline() throws IOException {
+        dao.upsert(randomKey(), value, Value.now());
+    }
+
+    @Benchmark
+    public void indexed() throws IOException {
+        antiEntropy.upsert(randomKey(), value, Value.now(), 2);
+    }
+
+    private static final class Unreachable implements AntiEntropy.Peers {
+        @Nullable
+        @Override
+        public long[] tree(@NotNull String node, int level, @NotNull int[] indices) {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer entries(@NotNull String node, @NotNull int[] buckets, @Nullable ByteBuffer after) {
+            return null;
+        }
+
+        @Override
+        public boolean push(
+                @NotNull String node,
+                @NotNull byte[] key,
+                long timestamp,
+                @Nullable byte[] value,
+                int replicas,
+                long expiresAt) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mail.polis.KVDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * {@link KVDao} operation costs across storage engines.
+ * <p>
+ * The dataset is loaded once per trial. GETs ask for a missing key with probability
+ * {@code 1 - hitRatio}. Run with {@code -t <threads>} to measure contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx128m", "-XX:MaxDirectMemorySize=256m"})
+public class KVDaoBenchmark {
+
+    @Param({"mapdb", "lsm", "mapdb-wal", "lsm-wal"})
+    public String engine;
+
+    /**
+     * 16 bytes as in the tests
+     */
+    @Param({"16", "128"})
+    public int keySize;
+
+    /**
+     * 1 KB as in the tests
+     */
+    @Param({"1024", "65536"})
+    public int valueSize;
+
+    @Param({"10000", "100000"})
+    public int datasetSize;
+
+    @Param({"1.0", "0.5"})
+    public double hitRatio;
+
+    private File directory;
+    private KVDao dao;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("highload-kv-bench").toFile();
+        dao = create(engine, directory);
+        value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        for (int i = 0; i < datasetSize; i++) {
+            dao.upsert(key(i), value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @NotNull
+    private static KVDao create(@NotNull String engine, @NotNull File directory) throws IOException {
+        switch (engine) {
+            case "mapdb":
+                return new PersistentKVDao(directory);
+            case "lsm":
+                return new LsmKVDao(directory);
+            case "mapdb-wal":
+                return new WalKVDao(new PersistentKVDao(directory), directory, 0);
+            case "lsm-wal":
+                return new WalKVDao(new LsmKVDao(directory), directory, 0);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+    }
+
+    /**
+     * Keys {@code [0, datasetSize)} are present, the ones above are not.
+     */
+    @NotNull
+    private byte[] key(long index) {
+        final ByteBuffer key = ByteBuffer.allocate(keySize);
+        while (key.hasRemaining()) {
+            key.put((byte) index);
+            index = index >>> 8 | index << 56;
+        }
+        return key.array();
+    }
+
+    @NotNull
+    private byte[] randomKey() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final long index = random.nextDouble() < hitRatio
+                ? random.nextInt(datasetSize)
+                : datasetSize + random.nextInt(Integer.MAX_VALUE - datasetSize);
+        return key(index);
+    }
+
+    @Benchmark
+    public void get(Blackhole bh) throws IOException {
+        try {
+            bh.consume(dao.get(randomKey()));
+        } catch (NoSuchElementException e) {
+            bh.consume(e);
+        }
+    }
+
+    @Benchmark
+    public void upsert() throws IOException {
+        dao.upsert(key(ThreadLocalRandom.current().nextInt(datasetSize)), value);
+    }
+
+    @Benchmark
+    public void remove() throws IOException {
+        dao.remove(randomKey());
+    }
+}
@@ -0,0 +1,57 @@
+package ru.mail.polis.gskoba;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replica lookup cost per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RendezvousPlacementBenchmark {
+
+    @Param({"3", "10", "100"})
+    public int nodes;
+
+    @Param({"1", "3"})
+    public int from;
+
+    private RendezvousPlacement placement;
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        final List<String> topology = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            topology.add("http://node" + i + ":8080");
+        }
+        placement = new RendezvousPlacement(topology);
+        keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        }
+    }
+
+    @Benchmark
+    public List<String> replicas() {
+        return placement.replicas(keys[ThreadLocalRandom.current().nextInt(keys.length)], from);
+    }
+}
@@ -17,7 +17,16 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.gskoba.BlobKVDao;
+import ru.mail.polis.gskoba.CachingKVDao;
+import ru.mail.polis.gskoba.CompactionStrategy;
+import ru.mail.polis.gskoba.ExpiryKVDao;
+import ru.mail.polis.gskoba.LsmKVDao;
 import ru.mail.polis.gskoba.PersistentKVDao;
+import ru.mail.polis.gskoba.ServerSettings;
+import ru.mail.polis.gskoba.ValueLogKVDao;
+import ru.mail.polis.gskoba.VersionedKVDao;
+import ru.mail.polis.gskoba.WalKVDao;
 import java.io.File;
 import java.io.IOException;
 
@@ -29,6 +38,62 @@ import java.io.IOException;
 final class KVDaoFactory {
     private static final long MAX_HEAP = 128 * 1024 * 1024;
 
+    /**
+     * Storage engine: {@code mapdb} (default) or {@code lsm}, which keeps keys in order for range reads
+     */
+    private static final String ENGINE_PROPERTY = "kv.dao";
+
+    /**
+     * Journal writes before applying them, {@code true} by default
+     */
+    private static final String WAL_PROPERTY = "kv.wal";
+
+    /**
+     * How long the journal waits for more writers to join a commit, microseconds
+     */
+    private static final String WAL_BATCH_WINDOW_PROPERTY = "kv.wal.batchWindowMicros";
+
+    /**
+     * False positive probability of the LSM per-table Bloom filters
+     */
+    private static final String BLOOM_FPP_PROPERTY = "kv.lsm.bloomFpp";
+
+    /**
+     * LSM compaction strategy: {@code tiered} (default), {@code leveled} or {@code none}
+     */
+    private static final String COMPACTION_PROPERTY = "kv.lsm.compaction";
+
+    /**
+     * Bytes per second LSM compactions may write, {@code 0} for no limit
+     */
+    private static final String COMPACTION_RATE_PROPERTY = "kv.lsm.compactionRate";
+
+    /**
+     * Values of at least this many bytes go to a value log with pointers to them in the storage engine,
+     * {@code 0} (default) keeps all values in the engine. Only for a fresh data directory.
+     */
+    private static final String VALUE_LOG_THRESHOLD_PROPERTY = "kv.vlog.threshold";
+
+    /**
+     * Share of garbage that makes a value log segment worth collecting
+     */
+    private static final String VALUE_LOG_GARBAGE_RATIO_PROPERTY = "kv.vlog.garbageRatio";
+
+    /**
+     * Off-heap value cache size in bytes, {@code 0} (default) disables the cache
+     */
+    private static final String CACHE_SIZE_PROPERTY = "kv.cache.bytes";
+
+    /**
+     * Values of at least this many bytes are kept in files of their own and streamed, {@code 0} disables that
+     */
+    private static final String BLOB_THRESHOLD_PROPERTY = "kv.blob.threshold";
+
+    /**
+     * Expire values written with {@code expires=}, {@code true} by default
+     */
+    private static final String EXPIRY_PROPERTY = "kv.expiry";
+
     private KVDaoFactory() {
         // Not instantiatable
     }
@@ -53,6 +118,72 @@ final class KVDaoFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new PersistentKVDao(data);
+        VersionedKVDao dao = engine(data);
+        if (Boolean.parseBoolean(System.getProperty(WAL_PROPERTY, "true"))) {
+            dao = new WalKVDao(dao, data, Long.getLong(WAL_BATCH_WINDOW_PROPERTY, 0L));
+        }
+        final int valueLogThreshold = Integer.getInteger(VALUE_LOG_THRESHOLD_PROPERTY, 0);
+        if (valueLogThreshold > 0) {
+            dao = new ValueLogKVDao(
+                    dao,
+                    data,
+                    valueLogThreshold,
+                    ValueLogKVDao.DEFAULT_SEGMENT_SIZE,
+                    Double.parseDouble(
+                            System.getProperty(
+                                    VALUE_LOG_GARBAGE_RATIO_PROPERTY,
+                                    Double.toString(ValueLogKVDao.DEFAULT_GARBAGE_RATIO))));
+        }
+        final long cacheSize = Long.getLong(CACHE_SIZE_PROPERTY, 0L);
+        if (cacheSize > 0) {
+            dao = new CachingKVDao(dao, cacheSize);
+        }
+        final long blobThreshold = Long.getLong(BLOB_THRESHOLD_PROPERTY, BlobKVDao.DEFAULT_THRESHOLD);
+        if (blobThreshold > 0) {
+            dao = new BlobKVDao(dao, data, blobThreshold);
+        }
+        if (Boolean.parseBoolean(System.getProperty(EXPIRY_PROPERTY, "true"))) {
+            dao = new ExpiryKVDao(dao, data);
+        }
+        return dao;
+    }
+
+    @NotNull
+    private static VersionedKVDao engine(@NotNull final File data) throws IOException {
+        final String engine = System.getProperty(ENGINE_PROPERTY, "mapdb");
+        // Same grace as the service repairs tombstones for, kv.config file included
+        final long tombstoneGraceMillis = ServerSettings.load().tombstoneGraceMillis();
+        switch (engine) {
+            case "mapdb":
+                return new PersistentKVDao(data, tombstoneGraceMillis);
+            case "lsm":
+                return new LsmKVDao(
+                        data,
+                        LsmKVDao.DEFAULT_FLUSH_THRESHOLD,
+                        Double.parseDouble(
+                                System.getProperty(
+                                        BLOOM_FPP_PROPERTY,
+                                        Double.toString(LsmKVDao.DEFAULT_BLOOM_FPP))),
+                        compactionStrategy(),
+                        Long.getLong(COMPACTION_RATE_PROPERTY, LsmKVDao.DEFAULT_COMPACTION_RATE),
+                        tombstoneGraceMillis);
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + engine);
+        }
+    }
+
+    @NotNull
+    private static CompactionStrategy compactionStrategy() {
+        final String strategy = System.getProperty(COMPACTION_PROPERTY, "tiered");
+        switch (strategy) {
+            case "tiered":
+                return CompactionStrategy.sizeTiered();
+            case "leveled":
+                return CompactionStrategy.leveled(LsmKVDao.DEFAULT_FLUSH_THRESHOLD);
+            case "none":
+                return CompactionStrategy.none();
+            default:
+                throw new IllegalArgumentException("Unknown compaction strategy: " + strategy);
+        }
     }
 }
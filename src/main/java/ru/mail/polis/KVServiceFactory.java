@@ -16,10 +16,10 @@
 
 package ru.mail.polis;
 
-import one.nio.http.HttpServerConfig;
-import one.nio.server.AcceptorConfig;
 import org.jetbrains.annotations.NotNull;
 import ru.mail.polis.gskoba.PersistentKVService;
+import ru.mail.polis.gskoba.RendezvousPlacement;
+import ru.mail.polis.gskoba.ServerSettings;
 import java.io.IOException;
 import java.util.Set;
 
@@ -56,10 +56,17 @@ final class KVServiceFactory {
             throw new IllegalArgumentException("Port out of range");
         }
 
-        HttpServerConfig config = new HttpServerConfig();
-        AcceptorConfig acceptorConfig = new AcceptorConfig();
-        acceptorConfig.port = port;
-        config.acceptors = new AcceptorConfig[]{acceptorConfig};
-        return new PersistentKVService(config,dao);
+        final String self = topology.stream()
+                .filter(node -> node.endsWith(":" + port))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Port " + port + " is not in the topology"));
+
+        final ServerSettings settings = ServerSettings.load();
+        return new PersistentKVService(
+                settings.httpServerConfig(port),
+                dao,
+                self,
+                new RendezvousPlacement(topology),
+                settings);
     }
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2018 (c) Vadim Tsesko <incubos@yandex.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.mail.polis;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.HdrHistogram.Histogram;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the stage 3 workload matrix against a running cluster and reports
+ * throughput and latency percentiles for every combination of profile,
+ * replication factor and connection count.
+ * <p>
+ * Arguments are the node endpoints, the {@link Cluster} ones by default. Connections are spread
+ * over the nodes round-robin, each one is served by its own thread. Settings are system properties:
+ * <ul>
+ * <li>{@code load.profiles} -- comma separated {@code put}, {@code get} and {@code mixed} (50/50)</li>
+ * <li>{@code load.replicas} -- comma separated {@code ack/from} values</li>
+ * <li>{@code load.connections} -- comma separated connection counts</li>
+ * <li>{@code load.duration} -- seconds per combination</li>
+ * <li>{@code load.rate} -- total requests per second, {@code 0} for a closed loop</li>
+ * <li>{@code load.keys}, {@code load.valueSize} -- key space and value size in bytes</li>
+ * <li>{@code load.timeout} -- request timeout in milliseconds</li>
+ * </ul>
+ * At a fixed rate every request has an intended start time and latency is measured from it,
+ * so a stalled server is charged for the requests it delayed instead of hiding them
+ * (no coordinated omission). GETs read the keys written by the preceding PUT runs.
+ */
+public final class LoadGenerator {
+    private static final int[] PORTS = {8080, 8081, 8082};
+
+    private LoadGenerator() {
+        // Not instantiable
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final List<String> nodes = new ArrayList<>();
+        if (args.length == 0) {
+            for (final int port : PORTS) {
+                nodes.add("http://localhost:" + port);
+            }
+        } else {
+            nodes.addAll(Arrays.asList(args));
+        }
+
+        final String[] profiles = System.getProperty("load.profiles", "put,get,mixed").split(",");
+        final String[] replicas = System.getProperty("load.replicas", "2/3,3/3").split(",");
+        final String[] connections = System.getProperty("load.connections", "1,2,4").split(",");
+        final long duration = TimeUnit.SECONDS.toNanos(Long.getLong("load.duration", 30));
+        final long rate = Long.getLong("load.rate", 0);
+        final int keys = Integer.getInteger("load.keys", 100_000);
+        final int valueSize = Integer.getInteger("load.valueSize", 1024);
+        final int timeout = Integer.getInteger("load.timeout", 1000);
+
+        System.out.println(String.format(Locale.ROOT,
+                "%-6s %-8s %5s %10s %8s %10s %9s %9s %9s %9s %9s",
+                "load", "replicas", "conns", "requests", "errors", "req/s",
+                "p50,us", "p90,us", "p99,us", "p999,us", "max,us"));
+        for (final String profile : profiles) {
+            for (final String rf : replicas) {
+                for (final String count : connections) {
+                    final Run run = new Run(
+                            Profile.valueOf(profile.trim().toUpperCase(Locale.ROOT)),
+                            rf.trim(),
+                            Integer.parseInt(count.trim()),
+                            keys,
+                            valueSize,
+                            rate);
+                    run.execute(nodes, timeout, duration);
+                    run.report();
+                }
+            }
+        }
+    }
+
+    private enum Profile {
+        PUT, GET, MIXED
+    }
+
+    private static final class Run {
+        private final Profile profile;
+        private final String replicas;
+        private final int connections;
+        private final int keys;
+        private final byte[] value;
+        /**
+         * Nanoseconds between requests of one connection, {@code 0} for a closed loop
+         */
+        private final long interval;
+        private final Histogram latency = new Histogram(3);
+        private final AtomicLong errors = new AtomicLong();
+        private long elapsed;
+
+        Run(@NotNull Profile profile, @NotNull String replicas, int connections, int keys, int valueSize, long rate) {
+            this.profile = profile;
+            this.replicas = replicas;
+            this.connections = connections;
+            this.keys = keys;
+            this.value = new byte[valueSize];
+            ThreadLocalRandom.current().nextBytes(value);
+            this.interval = rate > 0 ? TimeUnit.SECONDS.toNanos(connections) / rate : 0;
+        }
+
+        void execute(@NotNull List<String> nodes, int timeout, long duration) throws InterruptedException {
+            final Thread[] threads = new Thread[connections];
+            final HttpClient[] clients = new HttpClient[connections];
+            final long start = System.nanoTime();
+            final long end = start + duration;
+            for (int i = 0; i < connections; i++) {
+                final String node = nodes.get(i % nodes.size());
+                final HttpClient client = new HttpClient(new ConnectionString(node + "?timeout=" + timeout));
+                clients[i] = client;
+                threads[i] = new Thread(() -> load(client, start, end), "load-" + i);
+                threads[i].start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            elapsed = System.nanoTime() - start;
+            for (final HttpClient client : clients) {
+                client.close();
+            }
+        }
+
+        private void load(@NotNull HttpClient client, long start, long end) {
+            final Histogram local = new Histogram(3);
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            long intended = start;
+            while (true) {
+                if (interval > 0) {
+                    intended += interval;
+                    long now;
+                    while ((now = System.nanoTime()) < intended) {
+                        LockSupport.parkNanos(intended - now);
+                    }
+                } else {
+                    intended = System.nanoTime();
+                }
+                if (intended >= end) {
+                    break;
+                }
+
+                final String uri = "/v0/entity?id=k" + random.nextInt(keys) + "&replicas=" + replicas;
+                final boolean put = profile == Profile.PUT || profile == Profile.MIXED && random.nextBoolean();
+                try {
+                    final Response response = put ? client.put(uri, value) : client.get(uri);
+                    final int status = response.getStatus();
+                    if (put ? status != 201 : status != 200 && status != 404) {
+                        errors.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+                local.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+            }
+            synchronized (latency) {
+                latency.add(local);
+            }
+        }
+
+        void report() {
+            final long requests = latency.getTotalCount();
+            System.out.println(String.format(Locale.ROOT,
+                    "%-6s %-8s %5d %10d %8d %10.1f %9d %9d %9d %9d %9d",
+                    profile.name().toLowerCase(Locale.ROOT),
+                    replicas,
+                    connections,
+                    requests,
+                    errors.get(),
+                    requests * 1e9 / elapsed,
+                    latency.getValueAtPercentile(50.0),
+                    latency.getValueAtPercentile(90.0),
+                    latency.getValueAtPercentile(99.0),
+                    latency.getValueAtPercentile(99.9),
+                    latency.getMaxValue()));
+        }
+    }
+}
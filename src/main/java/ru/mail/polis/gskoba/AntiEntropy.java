@@ -0,0 +1,751 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Background repair of the keys a node shares with each of its peers, moving only what differs.
+ * <p>
+ * Local writes go through here. Besides the storage, a write records its version and the
+ * replication factor it was written with in an index of its own: an {@link LsmKVDao} keyed by
+ * {@code bucket key}, so the versions of a bucket are a range of it. A write costs an insert into
+ * the index memtable and doesn't read anything. The index keeps the newest version of a key by
+ * timestamp, as the storage does.
+ * <p>
+ * There is a {@link MerkleTree} per peer over the keys both of them replicate with the replication
+ * factor of the key's version. A write marks its bucket changed, and the changed buckets are
+ * recounted from their ranges of the index before the trees are compared or served. Every bucket
+ * starts changed, so the first comparison after a start reads the index once, the storage never.
+ * <p>
+ * A round with a peer walks down both trees from the root, following the nodes that
+ * differ, to at most {@link #MAX_BUCKETS} differing leaves. Then both sides go through their
+ * versions of those buckets in index order, the peer's a page at a time: a version the peer has
+ * newer or alone is applied here, one this node has newer or alone is pushed to the peer, each with
+ * its deadline. Of the same timestamp a tombstone is newer than data, see {@link Value#newer}.
+ * A node only gets the versions it replicates with their replication factor, so a write made
+ * with {@code replicas=1/1} stays on its node. Versions are applied by timestamp, so repairing
+ * in both directions at once is safe.
+ * <p>
+ * The index isn't journaled. A version it lost in a crash is taken back from a peer that indexed
+ * it, one no other replica has is left to read repair. Tombstones older than the grace period
+ * are neither counted nor moved, and are dropped from the index when their bucket is recounted.
+ * A storage written before it had an index is indexed once in the background, as replicated
+ * to every node.
+ */
+final class AntiEntropy implements Closeable {
+
+    static final int MAX_BUCKETS = 16;
+    /**
+     * Bytes of versions in a page of {@link #entries}, which holds at least one
+     */
+    static final int PAGE_SIZE = 256 * 1024;
+    private static final int SEED_BATCH = 1024;
+    /**
+     * Index records are small, a memtable as large as the storage's would hold
+     * every key and make each insert walk a deep skip list
+     */
+    private static final long INDEX_FLUSH_THRESHOLD = 256 * 1024;
+
+    private static final String INDEX = "merkle";
+    /**
+     * Created in the index directory once the versions stored before it are indexed
+     */
+    private static final String SEEDED = "seeded";
+    /**
+     * A bucket takes two bytes of six bits each in an index key, none of them negative,
+     * so the index, ordered by signed bytes, is ordered by bucket
+     */
+    private static final int PREFIX_SIZE = 2;
+    private static final int PREFIX_BITS = MerkleTree.DEPTH / PREFIX_SIZE;
+    private static final byte PRESENT = 0;
+    private static final byte REMOVED = 1;
+    /**
+     * The index keeps no values, versions are hashed without them
+     */
+    private static final byte[] NO_DATA = new byte[0];
+
+    /**
+     * Calls to the peers, {@code null} or {@code false} if a call failed.
+     */
+    interface Peers {
+        /**
+         * @return {@link #tree} of the peer
+         */
+        @Nullable
+        long[] tree(@NotNull String node, int level, @NotNull int[] indices);
+
+        /**
+         * @return {@link #entries} of the peer
+         */
+        @Nullable
+        ByteBuffer entries(@NotNull String node, @NotNull int[] buckets, @Nullable ByteBuffer after);
+
+        /**
+         * @param value     {@code null} for a remove
+         * @param replicas  replication factor of the version
+         * @param expiresAt deadline of the value
+         */
+        boolean push(
+                @NotNull String node,
+                @NotNull byte[] key,
+                long timestamp,
+                @Nullable byte[] value,
+                int replicas,
+                long expiresAt);
+    }
+
+    private final String self;
+    private final RendezvousPlacement placement;
+    private final VersionedKVDao dao;
+    private final LsmKVDao index;
+    private final Peers peers;
+    private final long tombstoneGraceMillis;
+    private final Map<String, MerkleTree> trees = new HashMap<>();
+    /**
+     * Writes to every bucket, a bucket is changed while they differ from {@link #counted}
+     */
+    private final AtomicLongArray writes = new AtomicLongArray(MerkleTree.LEAVES);
+    /**
+     * Writes to every bucket when it was counted last. Guarded by itself.
+     */
+    private final long[] counted = new long[MerkleTree.LEAVES];
+    private final ScheduledExecutorService scheduler;
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder pulled = new LongAdder();
+    private final LongAdder pushed = new LongAdder();
+
+    /**
+     * A version as the index has it, without the value.
+     */
+    private static final class Indexed {
+        final ByteBuffer indexKey;
+        final ByteBuffer key;
+        final Value version;
+        final int replicas;
+
+        Indexed(@NotNull ByteBuffer indexKey, @NotNull Value record) {
+            final ByteBuffer data = record.getBuffer();
+            this.indexKey = indexKey;
+            this.key = indexKey.duplicate();
+            key.position(key.position() + PREFIX_SIZE);
+            this.replicas = data.get(data.position());
+            this.version = data.get(data.position() + 1) == REMOVED
+                    ? Value.tombstone(record.getTimestamp())
+                    : Value.present(record.getTimestamp(), NO_DATA);
+        }
+    }
+
+    /**
+     * @param directory      where the index is kept
+     * @param intervalMillis between rounds with every peer, {@code 0} to only serve the peers
+     */
+    AntiEntropy(
+            @NotNull String self,
+            @NotNull RendezvousPlacement placement,
+            @NotNull VersionedKVDao dao,
+            @NotNull File directory,
+            @NotNull Peers peers,
+            long intervalMillis,
+            long tombstoneGraceMillis) throws IOException {
+        this.self = self;
+        this.placement = placement;
+        this.dao = dao;
+        this.peers = peers;
+        this.tombstoneGraceMillis = tombstoneGraceMillis;
+        final File indexDirectory = new File(directory, INDEX);
+        if (!indexDirectory.isDirectory() && !indexDirectory.mkdirs()) {
+            throw new IOException("Can't create " + indexDirectory);
+        }
+        this.index = new LsmKVDao(
+                indexDirectory,
+                INDEX_FLUSH_THRESHOLD,
+                LsmKVDao.DEFAULT_BLOOM_FPP,
+                CompactionStrategy.sizeTiered(),
+                LsmKVDao.DEFAULT_COMPACTION_RATE,
+                tombstoneGraceMillis);
+        for (final String node : placement.nodes()) {
+            if (!node.equals(self)) {
+                trees.put(node, new MerkleTree());
+            }
+        }
+        Arrays.fill(counted, -1);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("anti-entropy"));
+        final File seeded = new File(indexDirectory, SEEDED);
+        if (!seeded.exists()) {
+            scheduler.execute(() -> seedQuietly(seeded));
+        }
+        if (intervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::synchronizeQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param replicas replication factor the value is written with
+     */
+    void upsert(@NotNull byte[] key, @NotNull byte[] value, long timestamp, int replicas) throws IOException {
+        upsert(key, value, timestamp, ExpiringKVDao.NEVER, replicas);
+    }
+
+    /**
+     * @param expiresAt deadline of the value, the storage must be an {@link ExpiringKVDao} to keep one
+     */
+    void upsert(
+            @NotNull byte[] key,
+            @NotNull byte[] value,
+            long timestamp,
+            long expiresAt,
+            int replicas) throws IOException {
+        if (expiresAt == ExpiringKVDao.NEVER) {
+            dao.upsert(key, value, timestamp);
+        } else {
+            ((ExpiringKVDao) dao).upsert(key, value, timestamp, expiresAt);
+        }
+        final ByteBuffer k = ByteBuffer.wrap(key);
+        index.upsert(indexKey(k), record(replicas, PRESENT), timestamp);
+        changed(MerkleTree.bucket(k));
+    }
+
+    void remove(@NotNull byte[] key, long timestamp, int replicas) throws IOException {
+        dao.remove(key, timestamp);
+        final ByteBuffer k = ByteBuffer.wrap(key);
+        index.upsert(indexKey(k), record(replicas, REMOVED), timestamp);
+        changed(MerkleTree.bucket(k));
+    }
+
+    void write(@NotNull WriteBatch batch, int replicas) throws IOException {
+        dao.write(batch);
+        final WriteBatch records = new WriteBatch();
+        for (int i = 0; i < batch.size(); i++) {
+            final Value value = batch.value(i);
+            records.upsert(
+                    indexKey(ByteBuffer.wrap(batch.key(i))),
+                    record(replicas, value.isRemoved() ? REMOVED : PRESENT),
+                    value.getTimestamp());
+        }
+        index.write(records);
+        for (int i = 0; i < batch.size(); i++) {
+            changed(MerkleTree.bucket(ByteBuffer.wrap(batch.key(i))));
+        }
+    }
+
+    /**
+     * Marks the bucket for a recount. Called after the index is written,
+     * so a count that doesn't see the write is followed by one that does.
+     */
+    private void changed(int bucket) {
+        writes.incrementAndGet(bucket);
+    }
+
+    @NotNull
+    private static byte[] record(int replicas, byte state) {
+        return new byte[]{(byte) replicas, state};
+    }
+
+    @NotNull
+    private static byte[] indexKey(@NotNull ByteBuffer key) {
+        final int bucket = MerkleTree.bucket(key);
+        final byte[] indexKey = new byte[PREFIX_SIZE + key.remaining()];
+        indexKey[0] = (byte) (bucket >>> PREFIX_BITS);
+        indexKey[1] = (byte) (bucket & ((1 << PREFIX_BITS) - 1));
+        key.duplicate().get(indexKey, PREFIX_SIZE, key.remaining());
+        return indexKey;
+    }
+
+    /**
+     * @return the least index key of the bucket, {@link MerkleTree#LEAVES} for the end of the last one
+     */
+    @NotNull
+    private static ByteBuffer prefix(int bucket) {
+        return ByteBuffer.wrap(new byte[]{
+                (byte) (bucket >>> PREFIX_BITS),
+                (byte) (bucket & ((1 << PREFIX_BITS) - 1))});
+    }
+
+    /**
+     * @return whether the version is replicated to both this node and the peer
+     */
+    private boolean shares(@NotNull String node, @NotNull ByteBuffer key, int replicas) {
+        final List<String> nodes = placement.replicas(array(key), replicas);
+        return nodes.contains(self) && nodes.contains(node);
+    }
+
+    /**
+     * @return whether the version is a tombstone every replica should have forgotten
+     */
+    private boolean expired(@NotNull Value version) {
+        return version.isRemoved() && Value.ageMillis(version.getTimestamp()) > tombstoneGraceMillis;
+    }
+
+    /**
+     * Versions of the buckets in index order following the index key {@code after}.
+     *
+     * @param buckets in ascending order
+     */
+    @NotNull
+    private Iterator<Indexed> indexed(@NotNull int[] buckets, @Nullable ByteBuffer after) {
+        return new Iterator<Indexed>() {
+            private int bucket;
+            private Iterator<Map.Entry<ByteBuffer, Value>> range;
+            private Indexed next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if (range == null || !range.hasNext()) {
+                        if (bucket == buckets.length) {
+                            return false;
+                        }
+                        range = range(buckets[bucket++]);
+                        continue;
+                    }
+                    final Map.Entry<ByteBuffer, Value> record = range.next();
+                    if (!record.getValue().isRemoved() && !record.getKey().equals(after)) {
+                        next = new Indexed(record.getKey(), record.getValue());
+                    }
+                }
+                return true;
+            }
+
+            @NotNull
+            private Iterator<Map.Entry<ByteBuffer, Value>> range(int bucket) {
+                final ByteBuffer end = prefix(bucket + 1);
+                if (after == null || after.compareTo(prefix(bucket)) < 0) {
+                    return index.range(prefix(bucket), end);
+                }
+                return after.compareTo(end) < 0
+                        ? index.range(after, end)
+                        : Collections.emptyIterator();
+            }
+
+            @Override
+            public Indexed next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Indexed result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Recounts the changed buckets of every tree from the index.
+     */
+    private void count() throws IOException {
+        synchronized (counted) {
+            for (int bucket = 0; bucket < MerkleTree.LEAVES; bucket++) {
+                final long written = writes.get(bucket);
+                if (counted[bucket] != written) {
+                    count(bucket);
+                    counted[bucket] = written;
+                }
+            }
+        }
+    }
+
+    private void count(int bucket) throws IOException {
+        final Map<String, Long> hashes = new HashMap<>();
+        final List<Indexed> forgotten = new ArrayList<>();
+        final Iterator<Indexed> versions = indexed(new int[]{bucket}, null);
+        while (versions.hasNext()) {
+            final Indexed version = versions.next();
+            if (expired(version.version)) {
+                forgotten.add(version);
+                continue;
+            }
+            final List<String> nodes = placement.replicas(array(version.key), version.replicas);
+            if (!nodes.contains(self)) {
+                continue;
+            }
+            final long hash = MerkleTree.hash(version.key, version.version);
+            for (final String node : nodes) {
+                if (!node.equals(self)) {
+                    hashes.merge(node, hash, (a, b) -> a ^ b);
+                }
+            }
+        }
+        for (final Map.Entry<String, MerkleTree> tree : trees.entrySet()) {
+            tree.getValue().leaf(bucket, hashes.getOrDefault(tree.getKey(), 0L));
+        }
+        for (final Indexed version : forgotten) {
+            index.remove(array(version.indexKey), version.version.getTimestamp());
+        }
+    }
+
+    /**
+     * Nodes of the tree kept for the peer.
+     */
+    @NotNull
+    long[] tree(@NotNull String node, int level, @NotNull int[] indices) throws IOException {
+        final MerkleTree tree = tree(node);
+        count();
+        return tree.nodes(level, indices);
+    }
+
+    @NotNull
+    private MerkleTree tree(@NotNull String node) {
+        final MerkleTree tree = trees.get(node);
+        if (tree == null) {
+            throw new IllegalArgumentException("Not a peer: " + node);
+        }
+        return tree;
+    }
+
+    /**
+     * A page of the versions of the buckets shared with the peer, in index order, following
+     * the one with the index key {@code after}. Values are read from the storage.
+     *
+     * @param after index key of the last version of the previous page, {@code null} for the first one
+     * @return {@code replicas:int expiresAt:long} and a {@link VersionRecords} record per version,
+     * empty past the last one
+     */
+    @NotNull
+    byte[] entries(@NotNull String node, @NotNull int[] buckets, @Nullable ByteBuffer after) throws IOException {
+        tree(node);
+        final int[] sorted = buckets(buckets);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        int size = 0;
+        final Iterator<Indexed> versions = indexed(sorted, after);
+        while (size < PAGE_SIZE && versions.hasNext()) {
+            final Indexed version = versions.next();
+            if (expired(version.version) || !shares(node, version.key, version.replicas)) {
+                continue;
+            }
+            final Value stored = dao.getVersion(array(version.key));
+            if (stored == null) {
+                continue;
+            }
+            out.writeInt(version.replicas);
+            out.writeLong(expiresAt(array(version.key), stored));
+            size += Integer.BYTES + Long.BYTES + VersionRecords.write(out, version.key, stored);
+        }
+        out.flush();
+        if (after == null) {
+            // The peer found them differing, have them recounted
+            for (final int bucket : sorted) {
+                changed(bucket);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return distinct buckets in ascending order
+     * @throws IllegalArgumentException if there is no such bucket
+     */
+    @NotNull
+    private static int[] buckets(@NotNull int[] buckets) {
+        for (final int bucket : buckets) {
+            if (bucket < 0 || bucket >= MerkleTree.LEAVES) {
+                throw new IllegalArgumentException("No bucket " + bucket);
+            }
+        }
+        return IntStream.of(buckets).sorted().distinct().toArray();
+    }
+
+    /**
+     * Runs a round with the peer.
+     *
+     * @return {@code false} if the peer couldn't be reached
+     */
+    boolean synchronize(@NotNull String node) throws IOException {
+        final MerkleTree tree = tree(node);
+        count();
+        int[] indices = {0};
+        for (int level = 0; level <= MerkleTree.DEPTH && indices.length > 0; level++) {
+            final long[] remote = peers.tree(node, level, indices);
+            if (remote == null || remote.length != indices.length) {
+                return false;
+            }
+            final long[] local = tree.nodes(level, indices);
+            final List<Integer> differing = new ArrayList<>();
+            for (int i = 0; i < indices.length && differing.size() < MAX_BUCKETS; i++) {
+                if (remote[i] != local[i]) {
+                    differing.add(indices[i]);
+                }
+            }
+            if (level == MerkleTree.DEPTH) {
+                indices = differing.stream().mapToInt(Integer::intValue).toArray();
+                break;
+            }
+            indices = differing.stream()
+                    .flatMapToInt(index -> IntStream.of(2 * index, 2 * index + 1))
+                    .toArray();
+        }
+        rounds.increment();
+        if (indices.length == 0) {
+            return true;
+        }
+
+        final int[] buckets = buckets(indices);
+        final Iterator<Indexed> local = shared(node, indexed(buckets, null));
+        final RemoteEntries remote = new RemoteEntries(node, buckets);
+        boolean reached = true;
+        Indexed mine = local.hasNext() ? local.next() : null;
+        RemoteEntries.Entry theirs = remote.next();
+        while (mine != null || theirs != null) {
+            final int cmp = mine == null ? 1 : theirs == null ? -1 : mine.indexKey.compareTo(theirs.indexKey);
+            if (cmp > 0 || cmp == 0 && Value.newer(theirs.version, mine.version)) {
+                apply(theirs);
+            } else if (reached && (cmp < 0 || Value.newer(mine.version, theirs.version))) {
+                reached = push(node, mine);
+            }
+            if (cmp <= 0) {
+                mine = local.hasNext() ? local.next() : null;
+            }
+            if (cmp >= 0) {
+                theirs = remote.next();
+            }
+        }
+        for (final int bucket : buckets) {
+            // Recounted to drop what no longer differs, such as tombstones past the grace period
+            changed(bucket);
+        }
+        return reached && !remote.failed;
+    }
+
+    /**
+     * Versions shared with the peer, tombstones past the grace period left out.
+     */
+    @NotNull
+    private Iterator<Indexed> shared(@NotNull String node, @NotNull Iterator<Indexed> versions) {
+        return new Iterator<Indexed>() {
+            private Indexed next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && versions.hasNext()) {
+                    final Indexed version = versions.next();
+                    if (!expired(version.version) && shares(node, version.key, version.replicas)) {
+                        next = version;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Indexed next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Indexed result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+
+    private void apply(@NotNull RemoteEntries.Entry entry) throws IOException {
+        if (expired(entry.version)) {
+            return;
+        }
+        final byte[] key = array(entry.key);
+        if (entry.version.isRemoved()) {
+            remove(key, entry.version.getTimestamp(), entry.replicas);
+        } else {
+            upsert(key, entry.version.getData(), entry.version.getTimestamp(), entry.expiresAt, entry.replicas);
+        }
+        pulled.increment();
+    }
+
+    /**
+     * @return deadline of the stored version, {@link ExpiringKVDao#NEVER} for a tombstone
+     * or if the storage doesn't expire values
+     */
+    private long expiresAt(@NotNull byte[] key, @NotNull Value stored) throws IOException {
+        return dao instanceof ExpiringKVDao && !stored.isRemoved()
+                ? ((ExpiringKVDao) dao).expiresAt(key, stored.getTimestamp())
+                : ExpiringKVDao.NEVER;
+    }
+
+    /**
+     * Sends the peer the stored version.
+     *
+     * @return {@code false} if the peer couldn't be reached
+     */
+    private boolean push(@NotNull String node, @NotNull Indexed version) throws IOException {
+        final byte[] key = array(version.key);
+        final Value stored = dao.getVersion(key);
+        if (stored == null) {
+            return true;
+        }
+        if (!peers.push(
+                node,
+                key,
+                stored.getTimestamp(),
+                stored.isRemoved() ? null : stored.getData(),
+                version.replicas,
+                expiresAt(key, stored))) {
+            return false;
+        }
+        pushed.increment();
+        return true;
+    }
+
+    /**
+     * The peer's versions of the buckets, fetched a page at a time as they are consumed.
+     */
+    private final class RemoteEntries {
+        private final String node;
+        private final int[] buckets;
+        private ByteBuffer page;
+        private ByteBuffer last;
+        private boolean done;
+        boolean failed;
+
+        final class Entry {
+            final ByteBuffer indexKey;
+            final ByteBuffer key;
+            final Value version;
+            final int replicas;
+            final long expiresAt;
+
+            Entry(@NotNull ByteBuffer key, @NotNull Value version, int replicas, long expiresAt) {
+                this.indexKey = ByteBuffer.wrap(indexKey(key));
+                this.key = key;
+                this.version = version;
+                this.replicas = replicas;
+                this.expiresAt = expiresAt;
+            }
+        }
+
+        RemoteEntries(@NotNull String node, @NotNull int[] buckets) {
+            this.node = node;
+            this.buckets = buckets;
+        }
+
+        /**
+         * @return {@code null} past the last version or if the peer failed
+         * @throws IllegalArgumentException if a page is malformed
+         */
+        @Nullable
+        Entry next() {
+            while (!done) {
+                if (page != null && page.hasRemaining()) {
+                    if (page.remaining() < Integer.BYTES + Long.BYTES) {
+                        throw new IllegalArgumentException("Malformed entries");
+                    }
+                    final int replicas = page.getInt();
+                    final long expiresAt = page.getLong();
+                    final Map.Entry<ByteBuffer, Value> record = VersionRecords.read(page);
+                    if (record == null || replicas < 1 || replicas > placement.size()) {
+                        throw new IllegalArgumentException("Malformed entries");
+                    }
+                    final Entry entry = new Entry(record.getKey(), record.getValue(), replicas, expiresAt);
+                    last = entry.indexKey;
+                    return entry;
+                }
+                page = peers.entries(node, buckets, last);
+                if (page == null) {
+                    failed = true;
+                    done = true;
+                } else if (!page.hasRemaining()) {
+                    done = true;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Indexes the versions already stored. Versions written meanwhile are indexed anyway,
+     * the index keeps the newest one of a key.
+     */
+    private void seedQuietly(@NotNull File seeded) {
+        try {
+            final Iterator<Map.Entry<ByteBuffer, Value>> versions = dao.versions();
+            WriteBatch records = new WriteBatch();
+            while (versions.hasNext()) {
+                final Map.Entry<ByteBuffer, Value> version = versions.next();
+                final Value value = version.getValue();
+                records.upsert(
+                        indexKey(version.getKey()),
+                        record(placement.size(), value.isRemoved() ? REMOVED : PRESENT),
+                        value.getTimestamp());
+                if (records.size() == SEED_BATCH) {
+                    index.write(records);
+                    records = new WriteBatch();
+                }
+            }
+            index.write(records);
+            index.flush();
+            for (int bucket = 0; bucket < MerkleTree.LEAVES; bucket++) {
+                changed(bucket);
+            }
+            if (!seeded.createNewFile()) {
+                throw new IOException("Can't create " + seeded);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Seeded again on the next start
+        }
+    }
+
+    private void synchronizeQuietly() {
+        for (final String node : trees.keySet()) {
+            try {
+                synchronize(node);
+            } catch (IOException | RuntimeException e) {
+                // Retried on the next round
+            }
+        }
+    }
+
+    @NotNull
+    private static byte[] array(@NotNull ByteBuffer buffer) {
+        final byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    long rounds() {
+        return rounds.sum();
+    }
+
+    /**
+     * Versions taken from the peers.
+     */
+    long pulled() {
+        return pulled.sum();
+    }
+
+    /**
+     * Versions sent to the peers.
+     */
+    long pushed() {
+        return pushed.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        index.close();
+    }
+}
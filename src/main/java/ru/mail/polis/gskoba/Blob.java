@@ -0,0 +1,49 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A value kept in a file of its own, opened read-only. The value is {@code length} bytes
+ * of the file starting at {@code offset}.
+ */
+public final class Blob implements Closeable {
+
+    @NotNull
+    private final RandomAccessFile file;
+    private final long timestamp;
+    private final long offset;
+    private final long length;
+
+    Blob(@NotNull RandomAccessFile file, long timestamp, long offset, long length) {
+        this.file = file;
+        this.timestamp = timestamp;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @NotNull
+    public RandomAccessFile getFile() {
+        return file;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,364 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps values of at least {@code threshold} bytes as separate files and the rest in the delegate.
+ * <p>
+ * A file is named by the hex encoded key, starts with the timestamp of the value and is written
+ * to a temporary file first, so it is either complete or absent. The file takes precedence over
+ * the delegate: storing a large value leaves a tombstone of the same timestamp in the delegate
+ * after the file is in place, storing a small one or removing the key deletes the file first,
+ * so a crash never brings an older value back.
+ */
+public class BlobKVDao implements StreamingKVDao, ZeroCopyKVDao, KVDaoDecorator, Flushable {
+
+    public static final long DEFAULT_THRESHOLD = 1024 * 1024;
+
+    private static final String DIRECTORY = "blobs";
+    private static final String SUFFIX = ".blob";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int HEADER_SIZE = Long.BYTES;
+    /**
+     * Hex encoding doubles the key, file names are limited to 255 bytes.
+     */
+    private static final int MAX_KEY_LENGTH = 120;
+    private static final int STRIPES = 256;
+    private static final byte[] EMPTY = new byte[0];
+
+    @NotNull
+    private final VersionedKVDao delegate;
+    private final File directory;
+    private final long threshold;
+    private final Set<ByteBuffer> blobs = ConcurrentHashMap.newKeySet();
+    private final AtomicLong temporaries = new AtomicLong();
+    /**
+     * Keeps the file and the delegate consistent for writes to one key.
+     */
+    private final Object[] stripes = new Object[STRIPES];
+
+    public BlobKVDao(
+            @NotNull VersionedKVDao delegate,
+            @NotNull File directory,
+            long threshold) throws IOException {
+        this.delegate = delegate;
+        this.directory = new File(directory, DIRECTORY);
+        this.threshold = threshold;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Can't create " + this.directory);
+        }
+        final File[] files = this.directory.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list " + this.directory);
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                Files.delete(file.toPath());
+            } else if (name.endsWith(SUFFIX)) {
+                blobs.add(ByteBuffer.wrap(decode(name.substring(0, name.length() - SUFFIX.length()))));
+            }
+        }
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        try (Blob blob = open(key)) {
+            if (blob == null) {
+                return delegate.get(key);
+            }
+            if (blob.getLength() > Integer.MAX_VALUE) {
+                throw new IOException("Value is too large for an array: " + blob.getLength());
+            }
+            final byte[] value = new byte[(int) blob.getLength()];
+            blob.getFile().seek(blob.getOffset());
+            blob.getFile().readFully(value);
+            return value;
+        }
+    }
+
+    /**
+     * A separate value is mapped.
+     */
+    @NotNull
+    @Override
+    public ByteBuffer getBuffer(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        try (Blob blob = open(key)) {
+            if (blob == null) {
+                return ZeroCopyKVDao.getBuffer(delegate, key);
+            }
+            return map(blob);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Value getVersion(@NotNull byte[] key) throws IOException {
+        try (Blob blob = open(key)) {
+            if (blob == null) {
+                return delegate.getVersion(key);
+            }
+            return Value.present(blob.getTimestamp(), map(blob));
+        }
+    }
+
+    /**
+     * Separate values are mapped, the delegate holds tombstones of the same timestamp for them.
+     */
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> versions() throws IOException {
+        return withBlobs(delegate.versions());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> range(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException {
+        return withBlobs(delegate.range(from, to));
+    }
+
+    @NotNull
+    private Iterator<Map.Entry<ByteBuffer, Value>> withBlobs(@NotNull Iterator<Map.Entry<ByteBuffer, Value>> stored) {
+        return new Iterator<Map.Entry<ByteBuffer, Value>>() {
+            @Override
+            public boolean hasNext() {
+                return stored.hasNext();
+            }
+
+            @Override
+            public Map.Entry<ByteBuffer, Value> next() {
+                final Map.Entry<ByteBuffer, Value> entry = stored.next();
+                if (!entry.getValue().isRemoved() || !blobs.contains(entry.getKey())) {
+                    return entry;
+                }
+                final byte[] key = new byte[entry.getKey().remaining()];
+                entry.getKey().duplicate().get(key);
+                try (Blob blob = open(key)) {
+                    if (blob == null) {
+                        return entry;
+                    }
+                    return new AbstractMap.SimpleImmutableEntry<>(
+                            entry.getKey(),
+                            Value.present(blob.getTimestamp(), map(blob)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    @NotNull
+    private static ByteBuffer map(@NotNull Blob blob) throws IOException {
+        if (blob.getLength() > Integer.MAX_VALUE) {
+            throw new IOException("Value is too large to map: " + blob.getLength());
+        }
+        return blob.getFile().getChannel().map(FileChannel.MapMode.READ_ONLY, blob.getOffset(), blob.getLength());
+    }
+
+    @Nullable
+    @Override
+    public Blob open(@NotNull byte[] key) throws IOException {
+        if (!blobs.contains(ByteBuffer.wrap(key))) {
+            return null;
+        }
+        final RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(file(key), "r");
+        } catch (FileNotFoundException e) {
+            // Replaced with a small value or removed meanwhile
+            return null;
+        }
+        try {
+            return new Blob(file, file.readLong(), HEADER_SIZE, file.length() - HEADER_SIZE);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        upsert(key, value, Value.now());
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        remove(key, Value.now());
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value, long timestamp) throws IOException {
+        if (value.length >= threshold && key.length <= MAX_KEY_LENGTH) {
+            store(key, value, timestamp);
+            return;
+        }
+        synchronized (stripe(key)) {
+            if (isNewer(key, Value.present(timestamp, value))) {
+                return;
+            }
+            deleteBlob(key);
+            delegate.upsert(key, value, timestamp);
+        }
+    }
+
+    private void store(
+            @NotNull byte[] key,
+            @NotNull byte[] value,
+            long timestamp) throws IOException {
+        final File temp = new File(directory, temporaries.incrementAndGet() + TEMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(
+                    temp.toPath(),
+                    StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                final ByteBuffer[] buffers = {
+                        (ByteBuffer) ByteBuffer.allocate(HEADER_SIZE).putLong(timestamp).flip(),
+                        ByteBuffer.wrap(value)};
+                while (buffers[1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+                channel.force(true);
+            }
+            synchronized (stripe(key)) {
+                if (isNewer(key, Value.present(timestamp, value))) {
+                    return;
+                }
+                Files.move(temp.toPath(), file(key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                blobs.add(ByteBuffer.wrap(key.clone()));
+                delegate.remove(key, timestamp);
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Large values are stored one by one, the rest of the batch goes to the delegate at once.
+     */
+    @Override
+    public void write(@NotNull WriteBatch batch) throws IOException {
+        final WriteBatch sorted = batch.sorted();
+        final WriteBatch small = new WriteBatch();
+        for (int i = 0; i < sorted.size(); i++) {
+            final Value value = sorted.value(i);
+            if (!value.isRemoved()
+                    && value.getBuffer().remaining() >= threshold
+                    && sorted.key(i).length <= MAX_KEY_LENGTH) {
+                upsert(sorted.key(i), value.getData(), value.getTimestamp());
+            } else {
+                small.add(sorted.key(i), value);
+            }
+        }
+        small.locked(stripes, () -> {
+            final WriteBatch accepted = new WriteBatch();
+            for (int i = 0; i < small.size(); i++) {
+                if (isNewer(small.key(i), small.value(i))) {
+                    continue;
+                }
+                deleteBlob(small.key(i));
+                accepted.add(small.key(i), small.value(i));
+            }
+            delegate.write(accepted);
+        });
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key, long timestamp) throws IOException {
+        synchronized (stripe(key)) {
+            if (isNewer(key, Value.tombstone(timestamp))) {
+                return;
+            }
+            deleteBlob(key);
+            delegate.remove(key, timestamp);
+        }
+    }
+
+    /**
+     * @return whether the stored version is {@link Value#newer} than the written one, must hold the stripe
+     */
+    private boolean isNewer(@NotNull byte[] key, @NotNull Value written) throws IOException {
+        try (Blob blob = open(key)) {
+            if (blob != null) {
+                return !Value.replaces(written, Value.present(blob.getTimestamp(), EMPTY));
+            }
+        }
+        return !Value.replaces(written, delegate.getVersion(key));
+    }
+
+    private void deleteBlob(@NotNull byte[] key) throws IOException {
+        if (blobs.remove(ByteBuffer.wrap(key))) {
+            Files.deleteIfExists(file(key).toPath());
+        }
+    }
+
+    @NotNull
+    private Object stripe(@NotNull byte[] key) {
+        return stripes[Arrays.hashCode(key) & (STRIPES - 1)];
+    }
+
+    @NotNull
+    private File file(@NotNull byte[] key) {
+        return new File(directory, encode(key) + SUFFIX);
+    }
+
+    @NotNull
+    private static String encode(@NotNull byte[] key) {
+        final StringBuilder name = new StringBuilder(key.length * 2);
+        for (final byte b : key) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.toString();
+    }
+
+    @NotNull
+    private static byte[] decode(@NotNull String name) {
+        final byte[] key = new byte[name.length() / 2];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) Integer.parseInt(name.substring(2 * i, 2 * i + 2), 16);
+        }
+        return key;
+    }
+
+    @NotNull
+    @Override
+    public VersionedKVDao delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (delegate instanceof Flushable) {
+            ((Flushable) delegate).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
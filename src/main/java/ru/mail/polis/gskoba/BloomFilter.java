@@ -0,0 +1,79 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over a bit array of {@code long} words, probed with double hashing
+ * of a 64-bit key hash. Readers work directly on a (possibly memory mapped) buffer.
+ */
+final class BloomFilter {
+
+    private final ByteBuffer words;
+    private final long bits;
+    private final int hashes;
+
+    BloomFilter(@NotNull ByteBuffer words, int hashes) {
+        this.words = words;
+        this.bits = (long) (words.remaining() / Long.BYTES) * Long.SIZE;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Words needed for {@code expected} keys at the given false positive probability.
+     */
+    static int words(long expected, double fpp) {
+        final long n = Math.max(1, expected);
+        final double bits = -n * Math.log(fpp) / (Math.log(2) * Math.log(2));
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE / Long.BYTES, (long) Math.ceil(bits / Long.SIZE)));
+    }
+
+    static int hashes(long expected, int words) {
+        final long n = Math.max(1, expected);
+        return Math.max(1, (int) Math.round((double) words * Long.SIZE / n * Math.log(2)));
+    }
+
+    /**
+     * Sets the bits of the key hash in a filter being built.
+     */
+    static void add(@NotNull long[] words, int hashes, long hash) {
+        final long bits = (long) words.length * Long.SIZE;
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = bit(hash, i, bits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(long hash) {
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = bit(hash, i, bits);
+            if ((words.getLong((int) (bit >>> 6) * Long.BYTES) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long bit(long hash, int i, long bits) {
+        final long second = Long.rotateLeft(hash, 32) * 0x9e3779b97f4a7c15L;
+        return ((hash + i * second) & Long.MAX_VALUE) % bits;
+    }
+
+    /**
+     * FNV-1a over the key bytes finished with the MurmurHash3 mixer.
+     */
+    static long hash(@NotNull ByteBuffer key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = key.position(); i < key.limit(); i++) {
+            h ^= key.get(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,38 @@
+package ru.mail.polis.gskoba;
+
+import one.nio.http.Response;
+import one.nio.net.Session;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+
+/**
+ * {@code 200 OK} whose body is queued by {@link StreamingSession} after the headers
+ * instead of being copied into the response bytes.
+ */
+abstract class BodyResponse extends Response implements Closeable {
+
+    private final long length;
+
+    BodyResponse(long length) {
+        super(Response.OK);
+        this.length = length;
+        addHeader("Content-Length: " + length);
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Called once, the item releases the body when it is written or dropped.
+     */
+    @NotNull
+    abstract Session.QueueItem body();
+
+    /**
+     * Releases the body of a response that won't be sent.
+     */
+    @Override
+    public abstract void close();
+}
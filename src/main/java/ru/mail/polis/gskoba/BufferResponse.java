@@ -0,0 +1,66 @@
+package ru.mail.polis.gskoba;
+
+import one.nio.mem.DirectMemory;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the body straight from a direct or memory-mapped buffer to the socket.
+ */
+final class BufferResponse extends BodyResponse {
+
+    @NotNull
+    private final ByteBuffer buffer;
+
+    BufferResponse(@NotNull ByteBuffer buffer) {
+        super(buffer.remaining());
+        this.buffer = buffer.duplicate();
+    }
+
+    @NotNull
+    @Override
+    Session.QueueItem body() {
+        return new Session.QueueItem() {
+            @Override
+            public int remaining() {
+                return buffer.remaining();
+            }
+
+            @Override
+            public int write(Socket socket) throws IOException {
+                return BufferResponse.write(socket, buffer);
+            }
+        };
+    }
+
+    /**
+     * Writes what the socket takes without blocking and advances the buffer past it.
+     *
+     * @return bytes written
+     */
+    static int write(@NotNull Socket socket, @NotNull ByteBuffer buffer) throws IOException {
+        final int written;
+        if (buffer.isDirect()) {
+            written = socket.writeRaw(DirectMemory.getAddress(buffer) + buffer.position(), buffer.remaining(), 0);
+        } else if (buffer.hasArray()) {
+            written = socket.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), 0);
+        } else {
+            final byte[] copy = new byte[buffer.remaining()];
+            buffer.duplicate().get(copy);
+            written = socket.write(copy, 0, copy.length, 0);
+        }
+        if (written > 0) {
+            buffer.position(buffer.position() + written);
+        }
+        return written;
+    }
+
+    @Override
+    public void close() {
+        // The mapping goes away with the last reference
+    }
+}
@@ -0,0 +1,147 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Serves hot values from an {@link OffHeapCache} in front of the delegate.
+ * Writes go to the delegate first and then invalidate the cached entry.
+ * Versions are cached with their timestamps, tombstones too, so removed keys are answered from the cache.
+ */
+public class CachingKVDao implements ZeroCopyKVDao, VersionedKVDao, KVDaoDecorator, Flushable {
+
+    @NotNull
+    private final VersionedKVDao delegate;
+    private final OffHeapCache cache;
+
+    /**
+     * @param capacity direct memory budget in bytes, mind {@code -XX:MaxDirectMemorySize}
+     */
+    public CachingKVDao(@NotNull VersionedKVDao delegate, long capacity) {
+        this.delegate = delegate;
+        this.cache = new OffHeapCache(capacity);
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        return present(getVersion(key)).getData();
+    }
+
+    /**
+     * A cached value is a view of the copy taken out of the cache.
+     */
+    @NotNull
+    @Override
+    public ByteBuffer getBuffer(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        return present(getVersion(key)).getBuffer().asReadOnlyBuffer();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> versions() throws IOException {
+        return delegate.versions();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> range(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException {
+        return delegate.range(from, to);
+    }
+
+    @Nullable
+    @Override
+    public Value getVersion(@NotNull byte[] key) throws IOException {
+        final ByteBuffer k = ByteBuffer.wrap(key);
+        final byte[] cached = cache.get(k);
+        if (cached != null) {
+            return Value.fromBytes(ByteBuffer.wrap(cached));
+        }
+        final long version = cache.version(k);
+        final Value value = delegate.getVersion(key);
+        if (value != null) {
+            cache.put(k, value.toBytes(), version);
+        }
+        return value;
+    }
+
+    @NotNull
+    private static Value present(@Nullable Value value) throws NoSuchElementException {
+        if (value == null || value.isRemoved()) throw new NoSuchElementException();
+        return value;
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        upsert(key, value, Value.now());
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        remove(key, Value.now());
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value, long timestamp) throws IOException {
+        delegate.upsert(key, value, timestamp);
+        cache.invalidate(ByteBuffer.wrap(key));
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key, long timestamp) throws IOException {
+        delegate.remove(key, timestamp);
+        cache.invalidate(ByteBuffer.wrap(key));
+    }
+
+    @Override
+    public void write(@NotNull WriteBatch batch) throws IOException {
+        delegate.write(batch);
+        for (int i = 0; i < batch.size(); i++) {
+            cache.invalidate(ByteBuffer.wrap(batch.key(i)));
+        }
+    }
+
+    public long hits() {
+        return cache.hits();
+    }
+
+    public long misses() {
+        return cache.misses();
+    }
+
+    public long evictions() {
+        return cache.evictions();
+    }
+
+    /**
+     * Values not admitted because the LRU victim was more popular.
+     */
+    public long rejections() {
+        return cache.rejections();
+    }
+
+    @NotNull
+    @Override
+    public VersionedKVDao delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (delegate instanceof Flushable) {
+            ((Flushable) delegate).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
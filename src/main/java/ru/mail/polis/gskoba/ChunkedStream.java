@@ -0,0 +1,162 @@
+package ru.mail.polis.gskoba;
+
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends a {@code 200 OK} body of unknown length in HTTP chunks, written from a worker thread.
+ * <p>
+ * Parts are gathered into chunks of {@link #CHUNK_SIZE} bytes, a larger part makes a chunk of its own
+ * without being copied. At most {@link #MAX_IN_FLIGHT} bytes wait in the session at a time: the writer
+ * blocks until the client reads them, so a slow client holds a worker rather than heap.
+ */
+final class ChunkedStream {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int MAX_IN_FLIGHT = 4 * CHUNK_SIZE;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @NotNull
+    private final HttpSession session;
+    private final long timeoutMillis;
+    @NotNull
+    private ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+    /**
+     * Guarded by {@code this}
+     */
+    private long inFlight;
+
+    /**
+     * Sends the headers.
+     *
+     * @param timeoutMillis how long the client may not read before the stream fails
+     */
+    ChunkedStream(@NotNull HttpSession session, long timeoutMillis) throws IOException {
+        this.session = session;
+        this.timeoutMillis = timeoutMillis;
+        final Response response = new Response(Response.OK);
+        response.addHeader("Transfer-Encoding: chunked");
+        session.sendResponse(response);
+    }
+
+    void writeInt(int value) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) {
+            flush();
+        }
+        buffer.putInt(value);
+    }
+
+    /**
+     * The data must not change until it is sent.
+     */
+    void write(@NotNull ByteBuffer data) throws IOException {
+        if (data.remaining() > buffer.remaining()) {
+            flush();
+            if (data.remaining() > buffer.remaining()) {
+                send(data.duplicate());
+                return;
+            }
+        }
+        buffer.put(data.duplicate());
+    }
+
+    private void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        send(buffer);
+        buffer = ByteBuffer.allocate(CHUNK_SIZE);
+    }
+
+    private void send(@NotNull ByteBuffer payload) throws IOException {
+        final int size = payload.remaining();
+        reserve(size);
+        if (session instanceof StreamingSession) {
+            ((StreamingSession) session).sent(size);
+        }
+        session.write(new Chunk(
+                size,
+                ByteBuffer.wrap((Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.US_ASCII)),
+                payload,
+                ByteBuffer.wrap(CRLF)));
+    }
+
+    /**
+     * Sends what is left and ends the body.
+     */
+    void finish() throws IOException {
+        flush();
+        session.write(new Chunk(0, ByteBuffer.wrap(LAST_CHUNK)));
+    }
+
+    private synchronized void reserve(int size) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (inFlight > 0 && inFlight + size > MAX_IN_FLIGHT) {
+            final long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new IOException("Client stopped reading");
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+        inFlight += size;
+    }
+
+    private synchronized void released(int size) {
+        inFlight -= size;
+        notifyAll();
+    }
+
+    private final class Chunk extends Session.QueueItem {
+        private final int size;
+        private final ByteBuffer[] parts;
+
+        Chunk(int size, @NotNull ByteBuffer... parts) {
+            this.size = size;
+            this.parts = parts;
+        }
+
+        @Override
+        public int remaining() {
+            int remaining = 0;
+            for (final ByteBuffer part : parts) {
+                remaining += part.remaining();
+            }
+            return remaining;
+        }
+
+        @Override
+        public int write(Socket socket) throws IOException {
+            int written = 0;
+            for (final ByteBuffer part : parts) {
+                while (part.hasRemaining()) {
+                    final int bytes = BufferResponse.write(socket, part);
+                    if (bytes <= 0) {
+                        return written;
+                    }
+                    written += bytes;
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public void release() {
+            released(size);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the compactions of an {@link LsmKVDao} one at a time on a low priority background thread,
+ * writing at most the configured number of bytes per second.
+ * <p>
+ * Flushes schedule a pass of the strategy, passes requested while one is queued are coalesced.
+ * <p>
+ * A merged table is never larger than its sources, so a run is cut short where its sources
+ * would add up over {@link SSTable#MAX_SIZE}. Where not even two tables fit, the strategy is asked
+ * again about the older tables, the large ones just stay as they are.
+ */
+final class CompactionScheduler implements Closeable {
+
+    @NotNull
+    private final LsmKVDao dao;
+    @NotNull
+    private final CompactionStrategy strategy;
+    @NotNull
+    private final RateLimiter limiter;
+    private final ExecutorService executor;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean running;
+    private volatile boolean closed;
+
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    /**
+     * @param bytesPerSecond write rate limit, {@code 0} for none
+     */
+    CompactionScheduler(
+            @NotNull LsmKVDao dao,
+            @NotNull CompactionStrategy strategy,
+            long bytesPerSecond) {
+        this.dao = dao;
+        this.strategy = strategy;
+        this.limiter = new RateLimiter(bytesPerSecond);
+        this.executor = new ThreadPoolExecutor(
+                1,
+                1,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    final Thread thread = new DaemonThreadFactory("compaction").newThread(runnable);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    /**
+     * Queues a pass of the strategy unless one is queued already.
+     */
+    void schedule() {
+        if (closed || !scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                scheduled.set(false);
+                try {
+                    compact(false);
+                } catch (IOException e) {
+                    // Tables stay as they are, the next flush retries
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile
+            scheduled.set(false);
+        }
+    }
+
+    /**
+     * Queues a pass of the strategy, or a merge of all the tables if {@code major}.
+     */
+    @NotNull
+    CompletableFuture<Void> trigger(boolean major) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                compact(major);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    private void compact(boolean major) throws IOException {
+        if (closed) {
+            return;
+        }
+        running = true;
+        try {
+            if (major) {
+                final List<SSTable> tables = dao.tables();
+                final long[] sizes = sizes(tables);
+                int from = 0;
+                while (from < sizes.length && !closed) {
+                    final int to = fit(sizes, from, sizes.length);
+                    if (to - from > 1) {
+                        merge(tables.subList(from, to));
+                    }
+                    from = Math.max(to, from + 1);
+                }
+                return;
+            }
+            // Newest of the tables left out as too large to merge
+            SSTable skipped = null;
+            while (!closed) {
+                final List<SSTable> tables = dao.tables();
+                final int offset = skipped == null ? 0 : tables.indexOf(skipped) + 1;
+                final long[] sizes = sizes(tables.subList(offset, tables.size()));
+                final int[] run = strategy.select(sizes);
+                if (run == null) {
+                    break;
+                }
+                final int from = offset + run[0];
+                final int to = offset + fit(sizes, run[0], run[1]);
+                if (to - from > 1) {
+                    merge(tables.subList(from, to));
+                    skipped = null;
+                } else {
+                    skipped = tables.get(from);
+                }
+            }
+        } finally {
+            running = false;
+        }
+    }
+
+    @NotNull
+    private static long[] sizes(@NotNull List<SSTable> tables) {
+        final long[] sizes = new long[tables.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = tables.get(i).sizeInBytes();
+        }
+        return sizes;
+    }
+
+    /**
+     * @param sizes table sizes in bytes, newest first
+     * @return end of the longest run of tables from {@code from} up to {@code to}
+     * that can be merged into a table of at most {@link SSTable#MAX_SIZE}
+     */
+    static int fit(@NotNull long[] sizes, int from, int to) {
+        long total = 0;
+        int end = from;
+        while (end < to && total + sizes[end] <= SSTable.MAX_SIZE) {
+            total += sizes[end];
+            end++;
+        }
+        return end;
+    }
+
+    private void merge(@NotNull List<SSTable> run) throws IOException {
+        for (final SSTable table : run) {
+            bytesRead.add(table.sizeInBytes());
+        }
+        bytesWritten.add(dao.merge(run, limiter));
+        compactions.increment();
+    }
+
+    boolean isRunning() {
+        return running || scheduled.get();
+    }
+
+    long compactions() {
+        return compactions.sum();
+    }
+
+    long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Waits for the running compaction, queued ones are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
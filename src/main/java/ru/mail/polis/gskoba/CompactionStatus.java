@@ -0,0 +1,76 @@
+package ru.mail.polis.gskoba;
+
+/**
+ * Snapshot of the compaction state and amplification of an {@link LsmKVDao}.
+ */
+public final class CompactionStatus {
+
+    private final boolean running;
+    private final int tables;
+    private final long tableBytes;
+    private final long compactions;
+    private final long compactionBytesRead;
+    private final long compactionBytesWritten;
+    private final double writeAmplification;
+    private final double readAmplification;
+
+    CompactionStatus(
+            boolean running,
+            int tables,
+            long tableBytes,
+            long compactions,
+            long compactionBytesRead,
+            long compactionBytesWritten,
+            double writeAmplification,
+            double readAmplification) {
+        this.running = running;
+        this.tables = tables;
+        this.tableBytes = tableBytes;
+        this.compactions = compactions;
+        this.compactionBytesRead = compactionBytesRead;
+        this.compactionBytesWritten = compactionBytesWritten;
+        this.writeAmplification = writeAmplification;
+        this.readAmplification = readAmplification;
+    }
+
+    /**
+     * A compaction is running or queued.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getTables() {
+        return tables;
+    }
+
+    public long getTableBytes() {
+        return tableBytes;
+    }
+
+    public long getCompactions() {
+        return compactions;
+    }
+
+    public long getCompactionBytesRead() {
+        return compactionBytesRead;
+    }
+
+    public long getCompactionBytesWritten() {
+        return compactionBytesWritten;
+    }
+
+    /**
+     * Bytes written to tables by flushes and compactions per byte written by clients.
+     */
+    public double getWriteAmplification() {
+        return writeAmplification;
+    }
+
+    /**
+     * Tables searched per lookup that got past the memtables, Bloom filter rejections excluded.
+     */
+    public double getReadAmplification() {
+        return readAmplification;
+    }
+}
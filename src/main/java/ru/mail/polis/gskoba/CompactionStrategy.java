@@ -0,0 +1,47 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Chooses which tables of an {@link LsmKVDao} to merge next.
+ * <p>
+ * Only a contiguous run of tables can be merged: the result takes the place of the run,
+ * so lookups still see newer tables before older ones.
+ */
+public interface CompactionStrategy {
+
+    /**
+     * @param sizes table sizes in bytes, newest first
+     * @return {@code {from, to}} to merge tables {@code [from, to)}, at least two of them,
+     * or {@code null} if nothing is worth merging
+     */
+    @Nullable
+    int[] select(@NotNull long[] sizes);
+
+    /**
+     * Merges runs of similarly sized tables, few rewrites but more tables to read.
+     */
+    @NotNull
+    static CompactionStrategy sizeTiered() {
+        return new SizeTieredStrategy(SizeTieredStrategy.DEFAULT_MIN_THRESHOLD, SizeTieredStrategy.DEFAULT_MAX_THRESHOLD);
+    }
+
+    /**
+     * Keeps about one table per size level, more rewrites but few tables to read.
+     *
+     * @param baseSize size of the smallest level, about a flushed table
+     */
+    @NotNull
+    static CompactionStrategy leveled(long baseSize) {
+        return new LeveledStrategy(baseSize, LeveledStrategy.DEFAULT_FANOUT);
+    }
+
+    /**
+     * Never compacts on its own, only manual major compactions merge tables.
+     */
+    @NotNull
+    static CompactionStrategy none() {
+        return sizes -> null;
+    }
+}
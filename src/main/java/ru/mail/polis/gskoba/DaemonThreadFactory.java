@@ -0,0 +1,26 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Daemon threads named {@code <prefix>-<n>}.
+ */
+final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    DaemonThreadFactory(@NotNull String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(@NotNull Runnable r) {
+        final Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,15 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.KVDao;
+
+import java.io.File;
+
+/**
+ * {@link KVDao} keeping its data in a directory, where the node keeps its other durable state too.
+ */
+public interface DirectoryKVDao extends KVDao {
+
+    @NotNull
+    File directory();
+}
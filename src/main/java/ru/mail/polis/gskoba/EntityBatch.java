@@ -0,0 +1,163 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of a {@code /v0/entities} request and of its response.
+ * <p>
+ * Request: operations {@code type:byte keyLength:int key} followed by {@code valueLength:int value}
+ * for a {@link #PUT}. Response: a result per operation in the same order,
+ * {@code status:short timestamp:long valueLength:int value} with the HTTP status the operation
+ * would get from {@code /v0/entity}, the version of the value ({@link Long#MIN_VALUE} if none)
+ * and the value itself for a found {@link #GET}.
+ */
+final class EntityBatch {
+
+    static final byte GET = 0;
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    private static final int RESULT_HEADER_SIZE = Short.BYTES + Long.BYTES + Integer.BYTES;
+
+    private EntityBatch() {
+    }
+
+    static final class Operation {
+        final byte type;
+        @NotNull
+        final byte[] key;
+        @Nullable
+        final byte[] value;
+
+        Operation(byte type, @NotNull byte[] key, @Nullable byte[] value) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+
+        boolean isWrite() {
+            return type != GET;
+        }
+    }
+
+    static final class Result {
+        final int status;
+        final long timestamp;
+        @Nullable
+        final ByteBuffer value;
+
+        Result(int status, long timestamp, @Nullable ByteBuffer value) {
+            this.status = status;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        Result(int status) {
+            this(status, Long.MIN_VALUE, null);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    @NotNull
+    static List<Operation> parse(@NotNull byte[] body) {
+        final ByteBuffer in = ByteBuffer.wrap(body);
+        final List<Operation> operations = new ArrayList<>();
+        try {
+            while (in.hasRemaining()) {
+                final byte type = in.get();
+                if (type != GET && type != PUT && type != DELETE) {
+                    throw new IllegalArgumentException("Unknown operation " + type);
+                }
+                final byte[] key = bytes(in);
+                if (key.length == 0) {
+                    throw new IllegalArgumentException("Empty key");
+                }
+                operations.add(new Operation(type, key, type == PUT ? bytes(in) : null));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated operation", e);
+        }
+        return operations;
+    }
+
+    @NotNull
+    private static byte[] bytes(@NotNull ByteBuffer in) {
+        final int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Bad length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    @NotNull
+    static byte[] encode(@NotNull List<Operation> operations) {
+        int size = 0;
+        for (final Operation operation : operations) {
+            size += 1 + Integer.BYTES + operation.key.length;
+            if (operation.value != null) {
+                size += Integer.BYTES + operation.value.length;
+            }
+        }
+        final ByteBuffer out = ByteBuffer.allocate(size);
+        for (final Operation operation : operations) {
+            out.put(operation.type).putInt(operation.key.length).put(operation.key);
+            if (operation.value != null) {
+                out.putInt(operation.value.length).put(operation.value);
+            }
+        }
+        return out.array();
+    }
+
+    @NotNull
+    static byte[] encode(@NotNull Result[] results) {
+        int size = 0;
+        for (final Result result : results) {
+            size += RESULT_HEADER_SIZE + (result.value == null ? 0 : result.value.remaining());
+        }
+        final ByteBuffer out = ByteBuffer.allocate(size);
+        for (final Result result : results) {
+            out.putShort((short) result.status)
+                    .putLong(result.timestamp)
+                    .putInt(result.value == null ? 0 : result.value.remaining());
+            if (result.value != null) {
+                out.put(result.value.duplicate());
+            }
+        }
+        return out.array();
+    }
+
+    /**
+     * @return the results or {@code null} if the body doesn't hold exactly {@code count} of them
+     */
+    @Nullable
+    static Result[] parseResults(@NotNull byte[] body, int count) {
+        final ByteBuffer in = ByteBuffer.wrap(body);
+        final Result[] results = new Result[count];
+        for (int i = 0; i < count; i++) {
+            if (in.remaining() < RESULT_HEADER_SIZE) {
+                return null;
+            }
+            final int status = in.getShort();
+            final long timestamp = in.getLong();
+            final int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                return null;
+            }
+            final ByteBuffer value = in.slice();
+            value.limit(length);
+            in.position(in.position() + length);
+            results[i] = new Result(status, timestamp, length == 0 && status != 200 ? null : value);
+        }
+        return in.hasRemaining() ? null : results;
+    }
+}
@@ -0,0 +1,34 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * {@link VersionedKVDao} whose values can expire.
+ * <p>
+ * An expired version reads as a tombstone of its own timestamp and is eventually replaced by one,
+ * so replicas expiring the same write agree on the result and a later write of the key survives.
+ */
+public interface ExpiringKVDao extends VersionedKVDao {
+
+    /**
+     * No deadline.
+     */
+    long NEVER = 0;
+
+    /**
+     * @param expiresAt wall-clock milliseconds after which the value is gone, {@link #NEVER} for none
+     */
+    void upsert(
+            @NotNull byte[] key,
+            @NotNull byte[] value,
+            long timestamp,
+            long expiresAt) throws IOException;
+
+    /**
+     * @return the deadline of the version of the key written at {@code timestamp},
+     * {@link #NEVER} if it has none or is not the stored one
+     */
+    long expiresAt(@NotNull byte[] key, long timestamp) throws IOException;
+}
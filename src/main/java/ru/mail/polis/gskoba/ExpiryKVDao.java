@@ -0,0 +1,429 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Expires the values written with a deadline.
+ * <p>
+ * Deadlines are kept beside the stored values in a store of their own, a {@link WalKVDao} over
+ * an {@link LsmKVDao} in the {@code ttl} directory, ordered by deadline. A deadline is durable
+ * before its value is written, writers share the fsyncs of the log. Only the deadlines due within
+ * {@link #HORIZON_MILLIS} are in memory: in a {@link TimingWheel} and in an index by key, loaded
+ * from the store as the horizon moves. A version past its deadline reads as a tombstone, and
+ * once the wheel gets to it, a tombstone of the same timestamp is written. That replaces exactly
+ * the expired version: a later write of the key is newer and survives. Writes without a deadline
+ * go straight to the delegate, and reads only look into the index while it has entries.
+ * <p>
+ * Store key layouts, both at the timestamp of the version:
+ * <ul>
+ * <li>{@code 0:byte expiresAt:long key} with an empty value, the deadline with the sign bit of
+ * every byte flipped, so signed byte order is time order;</li>
+ * <li>{@code 1:byte key} with the value {@code expiresAt:long}, so the deadline of a version can
+ * be looked up to be sent to the other replicas along with it.</li>
+ * </ul>
+ */
+public class ExpiryKVDao implements ExpiringKVDao, StreamingKVDao, ZeroCopyKVDao, KVDaoDecorator, Flushable {
+
+    private static final String DEADLINES = "ttl";
+    private static final long TICK_MILLIS = 1000;
+    /**
+     * Deadlines are loaded into the wheel this far ahead, about an hour
+     */
+    private static final long HORIZON_MILLIS = TICK_MILLIS << 12;
+    private static final long FLUSH_THRESHOLD = 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte SCHEDULED = 0;
+    private static final byte BY_KEY = 1;
+
+    @NotNull
+    private final VersionedKVDao delegate;
+    private final WalKVDao deadlines;
+    /**
+     * Deadlines before {@link #horizon} by key, the one of the newest version
+     */
+    private final ConcurrentMap<ByteBuffer, Deadline> near = new ConcurrentHashMap<>();
+    /**
+     * Guarded by itself
+     */
+    private final TimingWheel<Due> wheel = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+    /**
+     * Deadlines before it are in the wheel or being loaded into it. Moved by the loader only,
+     * before it reads the store: a writer that sees the old value wrote before the read.
+     */
+    private volatile long horizon;
+    /**
+     * Deadlines before it are loaded. Guarded by {@link #loadLock}.
+     */
+    private long loaded;
+    private final Object loadLock = new Object();
+    private final ScheduledExecutorService expirer;
+    private final LongAdder expired = new LongAdder();
+
+    private static final class Deadline {
+        final long timestamp;
+        final long expiresAt;
+
+        Deadline(long timestamp, long expiresAt) {
+            this.timestamp = timestamp;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean hides(@Nullable Value value, long now) {
+            return value != null && !value.isRemoved() && value.getTimestamp() == timestamp && expiresAt <= now;
+        }
+    }
+
+    private static final class Due {
+        final ByteBuffer key;
+        final Deadline deadline;
+
+        Due(@NotNull ByteBuffer key, @NotNull Deadline deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    public ExpiryKVDao(@NotNull VersionedKVDao delegate, @NotNull File directory) throws IOException {
+        this.delegate = delegate;
+        final File store = new File(directory, DEADLINES);
+        if (!store.isDirectory() && !store.mkdirs()) {
+            throw new IOException("Can't create " + store);
+        }
+        this.deadlines = new WalKVDao(
+                new LsmKVDao(
+                        store,
+                        FLUSH_THRESHOLD,
+                        LsmKVDao.DEFAULT_BLOOM_FPP,
+                        CompactionStrategy.sizeTiered(),
+                        LsmKVDao.DEFAULT_COMPACTION_RATE,
+                        // Not replicated, nobody needs the tombstones
+                        0),
+                store,
+                0);
+        load(System.currentTimeMillis() + HORIZON_MILLIS);
+        this.expirer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("expiry"));
+        expirer.scheduleWithFixedDelay(this::expireQuietly, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the store key of the deadline in the schedule
+     */
+    @NotNull
+    private static byte[] record(long expiresAt, @NotNull byte[] key) {
+        final ByteBuffer record = ByteBuffer.allocate(1 + Long.BYTES + key.length);
+        record.put(SCHEDULED).putLong(expiresAt ^ 0x8080808080808080L).put(key);
+        return record.array();
+    }
+
+    /**
+     * @return the store key of the deadline by key
+     */
+    @NotNull
+    private static byte[] byKey(@NotNull byte[] key) {
+        final ByteBuffer record = ByteBuffer.allocate(1 + key.length);
+        record.put(BY_KEY).put(key);
+        return record.array();
+    }
+
+    @NotNull
+    private static ByteBuffer order(long expiresAt) {
+        return ByteBuffer.wrap(record(expiresAt, EMPTY));
+    }
+
+    /**
+     * Loads the deadlines before {@code until} into the wheel.
+     */
+    private void load(long until) throws IOException {
+        synchronized (loadLock) {
+            if (until <= loaded) {
+                return;
+            }
+            horizon = until;
+            final Iterator<Map.Entry<ByteBuffer, Value>> records = deadlines.range(order(loaded), order(until));
+            while (records.hasNext()) {
+                final Map.Entry<ByteBuffer, Value> record = records.next();
+                if (record.getValue().isRemoved()) {
+                    continue;
+                }
+                final ByteBuffer stored = record.getKey().duplicate();
+                stored.get();
+                final long expiresAt = stored.getLong() ^ 0x8080808080808080L;
+                final byte[] key = new byte[stored.remaining()];
+                stored.get(key);
+                schedule(ByteBuffer.wrap(key), new Deadline(record.getValue().getTimestamp(), expiresAt));
+            }
+            loaded = until;
+        }
+    }
+
+    /**
+     * Puts the deadline into the wheel, and into the index unless one of a newer write is known.
+     * A deadline scheduled twice is expired once.
+     */
+    private void schedule(@NotNull ByteBuffer key, @NotNull Deadline deadline) {
+        near.merge(key, deadline, (known, added) -> added.timestamp >= known.timestamp ? added : known);
+        synchronized (wheel) {
+            wheel.add(new Due(key, deadline), deadline.expiresAt);
+        }
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value, long timestamp, long expiresAt) throws IOException {
+        if (expiresAt == NEVER) {
+            upsert(key, value, timestamp);
+            return;
+        }
+        // Stored first: a value must not outlive a crash without its deadline
+        deadlines.write(
+                new WriteBatch()
+                        .upsert(record(expiresAt, key), EMPTY, timestamp)
+                        .upsert(byKey(key), ByteBuffer.allocate(Long.BYTES).putLong(expiresAt).array(), timestamp));
+        if (expiresAt < horizon) {
+            schedule(ByteBuffer.wrap(key.clone()), new Deadline(timestamp, expiresAt));
+        }
+        delegate.upsert(key, value, timestamp);
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value, long timestamp) throws IOException {
+        delegate.upsert(key, value, timestamp);
+    }
+
+    @Override
+    public long expiresAt(@NotNull byte[] key, long timestamp) throws IOException {
+        final Deadline deadline = near.isEmpty() ? null : near.get(ByteBuffer.wrap(key));
+        if (deadline != null && deadline.timestamp == timestamp) {
+            return deadline.expiresAt;
+        }
+        final Value record = deadlines.getVersion(byKey(key));
+        if (record == null || record.isRemoved() || record.getTimestamp() != timestamp) {
+            return NEVER;
+        }
+        return record.getBuffer().getLong();
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        delegate.upsert(key, value);
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key, long timestamp) throws IOException {
+        delegate.remove(key, timestamp);
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        delegate.remove(key);
+    }
+
+    @Override
+    public void write(@NotNull WriteBatch batch) throws IOException {
+        delegate.write(batch);
+    }
+
+    /**
+     * @return the version or a tombstone of it if it has expired
+     */
+    @Nullable
+    private Value visible(@NotNull ByteBuffer key, @Nullable Value value) {
+        if (value == null || value.isRemoved() || near.isEmpty()) {
+            return value;
+        }
+        final Deadline deadline = near.get(key);
+        if (deadline == null || !deadline.hides(value, System.currentTimeMillis())) {
+            return value;
+        }
+        return Value.tombstone(value.getTimestamp());
+    }
+
+    @Nullable
+    @Override
+    public Value getVersion(@NotNull byte[] key) throws IOException {
+        return visible(ByteBuffer.wrap(key), delegate.getVersion(key));
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        final Value value = getVersion(key);
+        if (value == null || value.isRemoved()) {
+            throw new NoSuchElementException();
+        }
+        return value.getData();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer getBuffer(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        final Value value = getVersion(key);
+        if (value == null || value.isRemoved()) {
+            throw new NoSuchElementException();
+        }
+        return value.getBuffer();
+    }
+
+    @Nullable
+    @Override
+    public Blob open(@NotNull byte[] key) throws IOException {
+        if (!(delegate instanceof StreamingKVDao)) {
+            return null;
+        }
+        final Blob blob = ((StreamingKVDao) delegate).open(key);
+        if (blob == null || near.isEmpty()) {
+            return blob;
+        }
+        final Deadline deadline = near.get(ByteBuffer.wrap(key));
+        if (deadline != null
+                && deadline.timestamp == blob.getTimestamp()
+                && deadline.expiresAt <= System.currentTimeMillis()) {
+            // Read through getVersion as a tombstone
+            blob.close();
+            return null;
+        }
+        return blob;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> versions() throws IOException {
+        return visible(delegate.versions());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> range(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException {
+        return visible(delegate.range(from, to));
+    }
+
+    @NotNull
+    private Iterator<Map.Entry<ByteBuffer, Value>> visible(@NotNull Iterator<Map.Entry<ByteBuffer, Value>> stored) {
+        return new Iterator<Map.Entry<ByteBuffer, Value>>() {
+            @Override
+            public boolean hasNext() {
+                return stored.hasNext();
+            }
+
+            @Override
+            public Map.Entry<ByteBuffer, Value> next() {
+                final Map.Entry<ByteBuffer, Value> entry = stored.next();
+                final Value value = visible(entry.getKey(), entry.getValue());
+                return value == entry.getValue() ? entry : new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), value);
+            }
+        };
+    }
+
+    /**
+     * Writes the tombstones of the versions whose deadlines have passed and drops the deadlines,
+     * then moves the horizon if half of it has passed.
+     *
+     * @return versions expired
+     */
+    public int expire() throws IOException {
+        final long now = System.currentTimeMillis();
+        final List<Due> due;
+        synchronized (wheel) {
+            due = wheel.advance(now);
+        }
+        int count = 0;
+        IOException failure = null;
+        for (final Due item : due) {
+            final Deadline deadline = item.deadline;
+            try {
+                if (near.get(item.key) == deadline) {
+                    delegate.remove(item.key.array(), deadline.timestamp);
+                    near.remove(item.key, deadline);
+                    count++;
+                }
+                // Otherwise a newer write has a deadline of its own, or this one is scheduled twice
+                // A tombstone of the same timestamp replaces the record by key, a newer one stays
+                deadlines.write(
+                        new WriteBatch()
+                                .remove(record(deadline.expiresAt, item.key.array()), deadline.timestamp)
+                                .remove(byKey(item.key.array()), deadline.timestamp));
+            } catch (IOException e) {
+                synchronized (wheel) {
+                    wheel.add(item, now + TICK_MILLIS);
+                }
+                failure = e;
+            }
+        }
+        expired.add(count);
+        if (failure != null) {
+            throw failure;
+        }
+        if (now + HORIZON_MILLIS / 2 >= horizon) {
+            load(now + HORIZON_MILLIS);
+        }
+        return count;
+    }
+
+    private void expireQuietly() {
+        try {
+            expire();
+        } catch (IOException | UncheckedIOException e) {
+            // Retried on the next tick, expired versions stay hidden meanwhile
+        }
+    }
+
+    /**
+     * Versions removed by their deadlines since the start.
+     */
+    public long expired() {
+        return expired.sum();
+    }
+
+    /**
+     * Deadlines loaded into the wheel, due within the horizon.
+     */
+    public int pending() {
+        return near.size();
+    }
+
+    @NotNull
+    @Override
+    public VersionedKVDao delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        deadlines.flush();
+        if (delegate instanceof Flushable) {
+            ((Flushable) delegate).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        expirer.shutdown();
+        try {
+            expirer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            deadlines.close();
+        } finally {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ru.mail.polis.gskoba;
+
+import one.nio.net.Session;
+import one.nio.net.Socket;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Sends the body from a file with {@code sendfile}, never copying it to the heap.
+ */
+final class FileResponse extends BodyResponse {
+
+    @NotNull
+    private final RandomAccessFile file;
+    private final long start;
+    private final long length;
+
+    private FileResponse(@NotNull RandomAccessFile file, long start, long length) {
+        super(length);
+        this.file = file;
+        this.start = start;
+        this.length = length;
+    }
+
+    /**
+     * Takes over the blob, it is closed once the body is sent or the session is closed.
+     */
+    @NotNull
+    static FileResponse of(@NotNull Blob blob) {
+        return new FileResponse(blob.getFile(), blob.getOffset(), blob.getLength());
+    }
+
+    @NotNull
+    @Override
+    Session.QueueItem body() {
+        return new FileItem();
+    }
+
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Nothing left to read
+        }
+    }
+
+    private final class FileItem extends Session.QueueItem {
+        private long offset;
+
+        @Override
+        public int remaining() {
+            return (int) Math.min(length - offset, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int write(Socket socket) throws IOException {
+            final long sent = socket.sendFile(file, start + offset, length - offset);
+            offset += sent;
+            return (int) sent;
+        }
+
+        @Override
+        public void release() {
+            close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ru.mail.polis.gskoba;
+
+/**
+ * Count-min sketch of 4-bit counters used as the TinyLFU frequency estimate.
+ * <p>
+ * Every counter is halved once the number of increments reaches ten times the table width,
+ * so the estimate follows recent popularity rather than all-time counts.
+ * Not thread safe.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        final int width = Integer.highestOneBit(Math.max(64, expectedEntries - 1) << 1);
+        this.table = new long[width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    int frequency(long hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            final long h = hash * SEEDS[i];
+            final int index = (int) (h >>> 32) & mask;
+            final int shift = (int) ((h >>> 28) & 15) << 2;
+            frequency = Math.min(frequency, (int) ((table[index] >>> shift) & MAX_COUNT));
+        }
+        return frequency;
+    }
+
+    void increment(long hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            final long h = hash * SEEDS[i];
+            final int index = (int) (h >>> 32) & mask;
+            final int shift = (int) ((h >>> 28) & 15) << 2;
+            if (((table[index] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+    }
+}
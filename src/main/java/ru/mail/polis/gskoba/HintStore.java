@@ -0,0 +1,434 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes a coordinator couldn't deliver to a replica, kept until the replica is back (hinted handoff).
+ * <p>
+ * Every node has an append-only file of hints. Once its size limit is reached new hints are dropped,
+ * the replica has to be repaired by reads then. A background job checks the nodes with hints
+ * and replays them, throttled, to the ones that are alive, oldest first, stopping at the first
+ * failure. A replayed file is truncated. The offset of the first hint not delivered is saved
+ * after every replay, so a restart only resends what the last one delivered before a crash.
+ * Replaying a hint twice is harmless anyway: the replica keeps the newest version by timestamp.
+ * <p>
+ * A hint is durable when {@link #add} returns. Appenders share fsyncs: whoever forces the file
+ * covers everything appended before it started, so a burst of failed writes costs a few fsyncs
+ * rather than one per hint.
+ * <p>
+ * Record layout: {@code keyLength:int timestamp:long valueLength:int replicas:int expiresAt:long key value}
+ * ({@code valueLength == -1} marks a remove, {@code replicas} is the replication factor of the write,
+ * {@code expiresAt} the deadline of a written value). A record torn by a crash is cut off on startup.
+ */
+final class HintStore implements Closeable {
+
+    private static final String SUFFIX = ".hints";
+    private static final String REPLAYED_SUFFIX = ".replayed";
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int REMOVE = -1;
+    private static final long REPLAY_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Sends hints to the replicas.
+     */
+    interface Delivery {
+        /**
+         * @return whether the node answers its status
+         */
+        boolean isAlive(@NotNull String node);
+
+        /**
+         * @param value     {@code null} for a remove
+         * @param replicas  replication factor of the write
+         * @param expiresAt deadline of a written value
+         * @return whether the node has applied the write
+         */
+        boolean deliver(
+                @NotNull String node,
+                @NotNull byte[] key,
+                long timestamp,
+                @Nullable byte[] value,
+                int replicas,
+                long expiresAt);
+    }
+
+    private final Map<String, Hints> hints = new HashMap<>();
+    private final Delivery delivery;
+    private final long maxBytes;
+    private final RateLimiter limiter;
+    private final ScheduledExecutorService replayer;
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    /**
+     * @param root           where the nodes sharing it keep their hints, each one in a directory of its own
+     * @param self           the node keeping the hints
+     * @param nodes          the nodes hints may be kept for
+     * @param maxBytes       size limit of the hints of one node
+     * @param bytesPerSecond replay rate, {@code 0} for no limit
+     */
+    HintStore(
+            @NotNull File root,
+            @NotNull String self,
+            @NotNull Collection<String> nodes,
+            @NotNull Delivery delivery,
+            long maxBytes,
+            long bytesPerSecond) throws IOException {
+        final File directory = new File(root, name(self));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        this.delivery = delivery;
+        this.maxBytes = maxBytes;
+        this.limiter = new RateLimiter(bytesPerSecond);
+        for (final String node : nodes) {
+            hints.put(node, new Hints(
+                    node,
+                    new File(directory, name(node) + SUFFIX),
+                    new File(directory, name(node) + REPLAYED_SUFFIX)));
+        }
+        this.replayer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("hints"));
+        replayer.scheduleWithFixedDelay(
+                this::replayQuietly,
+                REPLAY_INTERVAL_MILLIS,
+                REPLAY_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @NotNull
+    private static String name(@NotNull String node) {
+        return node.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+
+    /**
+     * Keeps a write for the node.
+     *
+     * @param value     {@code null} for a remove
+     * @param replicas  replication factor of the write
+     * @param expiresAt deadline of a written value
+     * @return {@code false} if the hint was dropped
+     */
+    boolean add(
+            @NotNull String node,
+            @NotNull byte[] key,
+            long timestamp,
+            @Nullable byte[] value,
+            int replicas,
+            long expiresAt) {
+        final Hints target = hints.get(node);
+        if (target == null) {
+            throw new IllegalArgumentException("Unknown node " + node);
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + (value == null ? 0 : value.length));
+        record.putInt(key.length).putLong(timestamp);
+        if (value == null) {
+            record.putInt(REMOVE).putInt(replicas).putLong(expiresAt).put(key);
+        } else {
+            record.putInt(value.length).putInt(replicas).putLong(expiresAt).put(key).put(value);
+        }
+        record.flip();
+        try {
+            if (target.append(record)) {
+                stored.increment();
+                return true;
+            }
+        } catch (IOException e) {
+            // Counted as dropped
+        }
+        dropped.increment();
+        return false;
+    }
+
+    /**
+     * Bytes of hints waiting for the node.
+     */
+    long pending(@NotNull String node) {
+        final Hints target = hints.get(node);
+        return target == null ? 0 : target.pending();
+    }
+
+    long stored() {
+        return stored.sum();
+    }
+
+    /**
+     * Hints not kept because the node had too many of them or they couldn't be written.
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    long delivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * Replays the hints of every node that is alive.
+     */
+    void replay() throws IOException {
+        for (final Hints target : hints.values()) {
+            if (target.pending() > 0 && delivery.isAlive(target.node)) {
+                target.replay();
+            }
+        }
+    }
+
+    private void replayQuietly() {
+        try {
+            replay();
+        } catch (IOException e) {
+            // Retried on the next run
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        replayer.shutdown();
+        try {
+            replayer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (final Hints target : hints.values()) {
+            target.close();
+        }
+    }
+
+    private final class Hints {
+        final String node;
+        private final FileChannel channel;
+        /**
+         * Holds {@link #replayed} across restarts, only touched by the replayer
+         */
+        private final FileChannel offset;
+        /**
+         * Guarded by {@code this}
+         */
+        private long size;
+        /**
+         * Bytes ever appended, unlike {@link #size} never reset. Guarded by {@code this}.
+         */
+        private long appended;
+        private final Object forceLock = new Object();
+        /**
+         * Appended bytes known to be on disk. Guarded by {@link #forceLock}.
+         */
+        private long forced;
+        /**
+         * Offset of the first hint not delivered yet, only moved by the replayer.
+         */
+        private volatile long replayed;
+
+        Hints(@NotNull String node, @NotNull File file, @NotNull File offsetFile) throws IOException {
+            this.node = node;
+            this.channel = FileChannel.open(
+                    file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = complete(channel.size());
+            if (size < channel.size()) {
+                channel.truncate(size);
+            }
+            this.offset = FileChannel.open(
+                    offsetFile.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            final ByteBuffer saved = ByteBuffer.allocate(Long.BYTES);
+            while (saved.hasRemaining() && offset.read(saved, saved.position()) > 0) {
+                // Read the whole offset
+            }
+            this.replayed = saved.hasRemaining() ? 0 : restored(saved.getLong(0));
+        }
+
+        /**
+         * @return the saved offset if a record starts there, {@code 0} otherwise
+         */
+        private long restored(long saved) throws IOException {
+            if (saved <= 0 || saved > size) {
+                return 0;
+            }
+            long position = 0;
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (position < saved) {
+                header.clear();
+                read(header, position);
+                position += recordSize(header);
+            }
+            return position == saved ? saved : 0;
+        }
+
+        /**
+         * @return the length of the complete records
+         */
+        private long complete(long end) throws IOException {
+            long position = 0;
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (end - position >= HEADER_SIZE) {
+                header.clear();
+                read(header, position);
+                final long recordSize = recordSize(header);
+                if (recordSize < 0 || position + recordSize > end) {
+                    break;
+                }
+                position += recordSize;
+            }
+            return position;
+        }
+
+        /**
+         * @return size of the record starting with the header, {@code -1} if the header is garbage
+         */
+        private long recordSize(@NotNull ByteBuffer header) {
+            final int keyLength = header.getInt(0);
+            final int valueLength = header.getInt(Integer.BYTES + Long.BYTES);
+            if (keyLength < 0 || valueLength < REMOVE) {
+                return -1;
+            }
+            return (long) HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+        }
+
+        boolean append(@NotNull ByteBuffer record) throws IOException {
+            final long end;
+            synchronized (this) {
+                if (size - replayed + record.remaining() > maxBytes) {
+                    return false;
+                }
+                final long length = record.remaining();
+                while (record.hasRemaining()) {
+                    channel.write(record, size + length - record.remaining());
+                }
+                size += length;
+                appended += length;
+                end = appended;
+            }
+            force(end);
+            return true;
+        }
+
+        /**
+         * Waits until the bytes appended up to {@code end} are on disk, forcing the file
+         * unless a force started after they were written has done it meanwhile.
+         */
+        private void force(long end) throws IOException {
+            synchronized (forceLock) {
+                if (forced >= end) {
+                    return;
+                }
+                final long written = appended();
+                channel.force(false);
+                forced = written;
+            }
+        }
+
+        private synchronized long appended() {
+            return appended;
+        }
+
+        synchronized long pending() {
+            return size - replayed;
+        }
+
+        private synchronized long size() {
+            return size;
+        }
+
+        void replay() throws IOException {
+            final long end = size();
+            final long start = replayed;
+            long position = start;
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (end - position >= HEADER_SIZE) {
+                header.clear();
+                read(header, position);
+                final int keyLength = header.getInt(0);
+                final long timestamp = header.getLong(Integer.BYTES);
+                final int valueLength = header.getInt(Integer.BYTES + Long.BYTES);
+                final int replicas = header.getInt(Integer.BYTES + Long.BYTES + Integer.BYTES);
+                final long expiresAt = header.getLong(Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES);
+                final long recordSize = recordSize(header);
+                if (recordSize < 0 || position + recordSize > end) {
+                    throw new IOException("Corrupted hints of " + node + " at " + position);
+                }
+                final ByteBuffer key = ByteBuffer.allocate(keyLength);
+                read(key, position + HEADER_SIZE);
+                byte[] value = null;
+                if (valueLength != REMOVE) {
+                    final ByteBuffer data = ByteBuffer.allocate(valueLength);
+                    read(data, position + HEADER_SIZE + keyLength);
+                    value = data.array();
+                }
+                limiter.acquire(recordSize);
+                if (!delivery.deliver(node, key.array(), timestamp, value, replicas, expiresAt)) {
+                    break;
+                }
+                delivered.increment();
+                position += recordSize;
+                replayed = position;
+            }
+            if (position >= end && truncateIfReplayed(end)) {
+                return;
+            }
+            if (position != start) {
+                save(position);
+            }
+        }
+
+        /**
+         * Drops the file if nothing was appended since the replay started.
+         *
+         * @return whether the file was dropped
+         */
+        private synchronized boolean truncateIfReplayed(long end) throws IOException {
+            if (size != end) {
+                return false;
+            }
+            // A crash in between resends the hints rather than skipping new ones
+            save(0);
+            channel.truncate(0);
+            channel.force(false);
+            size = 0;
+            replayed = 0;
+            return true;
+        }
+
+        private void save(long replayed) throws IOException {
+            final ByteBuffer saved = ByteBuffer.allocate(Long.BYTES).putLong(0, replayed);
+            while (saved.hasRemaining()) {
+                offset.write(saved, saved.position());
+            }
+            offset.force(false);
+        }
+
+        private void read(@NotNull ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Hint is past the end of the file of " + node);
+                }
+            }
+            buffer.flip();
+        }
+
+        void close() throws IOException {
+            channel.close();
+            offset.close();
+        }
+    }
+}
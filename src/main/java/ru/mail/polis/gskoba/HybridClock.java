@@ -0,0 +1,67 @@
+package ru.mail.polis.gskoba;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock of a node: timestamps follow the wall clock but never go backwards,
+ * and a timestamp taken after seeing another node's one is greater than it, so causally
+ * ordered writes are ordered by their timestamps even if the wall clocks disagree.
+ * <p>
+ * Layout: {@code millis:43 logical:12 node:8}. The logical counter orders events within
+ * a millisecond and carries into the millis if it overflows. The node id breaks ties
+ * between nodes deterministically, so every replica picks the same winner.
+ */
+public final class HybridClock {
+
+    private static final int NODE_BITS = 8;
+    private static final int LOGICAL_BITS = 12;
+    private static final int NODE_MASK = (1 << NODE_BITS) - 1;
+
+    private final long node;
+    /**
+     * {@code millis:43 logical:12} of the last timestamp
+     */
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * @param node id of the node, only its low 8 bits are used
+     */
+    public HybridClock(int node) {
+        this.node = node & NODE_MASK;
+    }
+
+    /**
+     * @return a timestamp greater than every one taken or seen before
+     */
+    public long now() {
+        return tick(0);
+    }
+
+    /**
+     * Takes a timestamp received from another node into account.
+     *
+     * @return a timestamp greater than the received one and every one taken or seen before
+     */
+    public long update(long received) {
+        return tick((received >>> NODE_BITS) + 1);
+    }
+
+    private long tick(long atLeast) {
+        while (true) {
+            final long previous = last.get();
+            final long next = Math.max(
+                    Math.max(previous + 1, atLeast),
+                    System.currentTimeMillis() << LOGICAL_BITS);
+            if (last.compareAndSet(previous, next)) {
+                return next << NODE_BITS | node;
+            }
+        }
+    }
+
+    /**
+     * Wall clock milliseconds of a timestamp.
+     */
+    public static long millis(long timestamp) {
+        return timestamp >>> (LOGICAL_BITS + NODE_BITS);
+    }
+}
@@ -0,0 +1,31 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.KVDao;
+
+/**
+ * {@link KVDao} adding a feature on top of another one.
+ */
+public interface KVDaoDecorator extends KVDao {
+
+    @NotNull
+    KVDao delegate();
+
+    /**
+     * @return the first layer of the given type from the outside in, {@code null} if there is none
+     */
+    @Nullable
+    static <T> T find(@NotNull KVDao dao, @NotNull Class<T> type) {
+        KVDao layer = dao;
+        while (true) {
+            if (type.isInstance(layer)) {
+                return type.cast(layer);
+            }
+            if (!(layer instanceof KVDaoDecorator)) {
+                return null;
+            }
+            layer = ((KVDaoDecorator) layer).delegate();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Level {@code L} holds tables up to {@code baseSize * fanout^L} bytes. A table is merged into
+ * the older one next to it while it is on the same level or above, so there is about one table
+ * per level and a lookup reads about {@code log(size / baseSize) / log(fanout)} tables.
+ */
+final class LeveledStrategy implements CompactionStrategy {
+
+    static final int DEFAULT_FANOUT = 10;
+
+    private final long baseSize;
+    private final double logFanout;
+
+    LeveledStrategy(long baseSize, int fanout) {
+        if (baseSize < 1 || fanout < 2) {
+            throw new IllegalArgumentException("Bad base size or fanout: " + baseSize + ", " + fanout);
+        }
+        this.baseSize = baseSize;
+        this.logFanout = Math.log(fanout);
+    }
+
+    @Nullable
+    @Override
+    public int[] select(@NotNull long[] sizes) {
+        for (int i = 0; i + 1 < sizes.length; i++) {
+            if (level(sizes[i]) >= level(sizes[i + 1])) {
+                return new int[]{i, i + 2};
+            }
+        }
+        return null;
+    }
+
+    private int level(long size) {
+        return size <= baseSize ? 0 : (int) Math.ceil(Math.log((double) size / baseSize) / logFanout);
+    }
+}
@@ -0,0 +1,486 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log-structured storage: writes go to a {@link MemTable} which is flushed
+ * to an immutable {@link SSTable} once it grows over the threshold.
+ * Reads consult the memtables first and then the tables from newest to oldest,
+ * so heap usage is bounded by the memtable size whatever the data size is.
+ * <p>
+ * A replica may receive writes out of timestamp order, so a lookup takes the newest version
+ * of all the sources rather than the first one found, skipping tables with nothing newer.
+ * <p>
+ * New tables are merged in the background by a {@link CompactionScheduler} following
+ * the {@link CompactionStrategy}. Tombstones older than the grace period are dropped
+ * when the oldest table takes part.
+ */
+public class LsmKVDao implements ZeroCopyKVDao, VersionedKVDao, DirectoryKVDao, Flushable {
+
+    public static final long DEFAULT_FLUSH_THRESHOLD = 8 * 1024 * 1024;
+    public static final double DEFAULT_BLOOM_FPP = 0.01;
+    public static final long DEFAULT_COMPACTION_RATE = 64 * 1024 * 1024;
+    public static final long DEFAULT_TOMBSTONE_GRACE_MILLIS = 24 * 60 * 60 * 1000;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long flushThreshold;
+    private final double bloomFpp;
+    private final long tombstoneGraceMillis;
+    private final AtomicLong generation;
+
+    private final LongAdder bloomChecks = new LongAdder();
+    private final LongAdder bloomNegatives = new LongAdder();
+    private final LongAdder bloomFalsePositives = new LongAdder();
+    private final LongAdder tableLookups = new LongAdder();
+    private final LongAdder tableReads = new LongAdder();
+    private final LongAdder userBytes = new LongAdder();
+    private final LongAdder flushedBytes = new LongAdder();
+
+    private final CompactionScheduler compaction;
+
+    /**
+     * Writers hold the read lock while they insert, so a memtable being swapped out is complete.
+     */
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final Object flushLock = new Object();
+
+    private volatile MemTable memTable = new MemTable();
+    @Nullable
+    private volatile MemTable flushing;
+    /**
+     * Newest first, replaced as a whole.
+     */
+    private volatile List<SSTable> tables;
+
+    public LsmKVDao(@NotNull File directory) throws IOException {
+        this(directory, DEFAULT_FLUSH_THRESHOLD, DEFAULT_BLOOM_FPP);
+    }
+
+    /**
+     * @param flushThreshold memtable size in bytes that triggers a flush
+     * @param bloomFpp       false positive probability of the per-table Bloom filters
+     */
+    public LsmKVDao(
+            @NotNull File directory,
+            long flushThreshold,
+            double bloomFpp) throws IOException {
+        this(
+                directory,
+                flushThreshold,
+                bloomFpp,
+                CompactionStrategy.sizeTiered(),
+                DEFAULT_COMPACTION_RATE,
+                DEFAULT_TOMBSTONE_GRACE_MILLIS);
+    }
+
+    /**
+     * @param compactionRate       bytes per second compactions may write, {@code 0} for no limit
+     * @param tombstoneGraceMillis how long a tombstone is kept for replicas that missed the remove
+     */
+    public LsmKVDao(
+            @NotNull File directory,
+            long flushThreshold,
+            double bloomFpp,
+            @NotNull CompactionStrategy strategy,
+            long compactionRate,
+            long tombstoneGraceMillis) throws IOException {
+        if (bloomFpp <= 0 || bloomFpp >= 1) {
+            throw new IllegalArgumentException("False positive probability out of (0, 1): " + bloomFpp);
+        }
+        this.directory = directory;
+        this.flushThreshold = flushThreshold;
+        this.bloomFpp = bloomFpp;
+        this.tombstoneGraceMillis = tombstoneGraceMillis;
+
+        final List<SSTable> opened = new ArrayList<>();
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list " + directory);
+        }
+        for (final File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                java.nio.file.Files.delete(file.toPath());
+            } else if (SSTable.isTable(file)) {
+                opened.add(SSTable.open(file));
+            }
+        }
+        opened.sort(Comparator.comparingLong(SSTable::generation).reversed());
+        final List<SSTable> live = new ArrayList<>(opened.size());
+        for (final SSTable table : opened) {
+            if (opened.stream().anyMatch(other -> other.replaces(table))) {
+                // Compacted into another table before a crash
+                table.close();
+                java.nio.file.Files.delete(table.file().toPath());
+            } else {
+                live.add(table);
+            }
+        }
+        this.tables = Collections.unmodifiableList(live);
+        this.generation = new AtomicLong(live.isEmpty() ? 0 : live.get(0).generation());
+        this.compaction = new CompactionScheduler(this, strategy, compactionRate);
+        compaction.schedule();
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        final Value value = lookup(ByteBuffer.wrap(key));
+        if (value == null || value.isRemoved()) throw new NoSuchElementException();
+        return value.getData();
+    }
+
+    /**
+     * Values already on disk are slices of the mapped tables.
+     */
+    @NotNull
+    @Override
+    public ByteBuffer getBuffer(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        final Value value = lookup(ByteBuffer.wrap(key));
+        if (value == null || value.isRemoved()) throw new NoSuchElementException();
+        return value.getBuffer().asReadOnlyBuffer();
+    }
+
+    @Nullable
+    @Override
+    public Value getVersion(@NotNull byte[] key) throws IOException {
+        return lookup(ByteBuffer.wrap(key));
+    }
+
+    /**
+     * @return the {@link Value#newest} version, the one from the newer source on a tie of the same kind
+     */
+    @Nullable
+    private Value lookup(@NotNull ByteBuffer key) {
+        Value value = memTable.get(key);
+
+        final MemTable flushing = this.flushing;
+        if (flushing != null) {
+            value = Value.newest(value, flushing.get(key));
+        }
+
+        tableLookups.increment();
+        final long hash = BloomFilter.hash(key);
+        for (final SSTable table : tables) {
+            if (value != null && (table.maxTimestamp() < value.getTimestamp()
+                    || table.maxTimestamp() == value.getTimestamp() && value.isRemoved())) {
+                // Nothing there replaces it
+                continue;
+            }
+            bloomChecks.increment();
+            if (!table.mightContain(hash)) {
+                bloomNegatives.increment();
+                continue;
+            }
+            tableReads.increment();
+            final Value found = table.get(key);
+            if (found == null) {
+                bloomFalsePositives.increment();
+                continue;
+            }
+            value = Value.newest(value, found);
+        }
+        return value;
+    }
+
+    /**
+     * In key order, merged from the memtables and the tables.
+     */
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> versions() {
+        final List<Iterator<Map.Entry<ByteBuffer, Value>>> sources = new ArrayList<>();
+        sources.add(memTable.iterator());
+        final MemTable flushing = this.flushing;
+        if (flushing != null) {
+            sources.add(flushing.iterator());
+        }
+        for (final SSTable table : tables) {
+            sources.add(table.iterator());
+        }
+        return new MergeIterator(sources);
+    }
+
+    /**
+     * Merged from the memtables and the tables, each of them only read from {@code from} on.
+     */
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> range(@NotNull ByteBuffer from, @Nullable ByteBuffer to) {
+        final List<Iterator<Map.Entry<ByteBuffer, Value>>> sources = new ArrayList<>();
+        sources.add(memTable.iterator(from, to));
+        final MemTable flushing = this.flushing;
+        if (flushing != null) {
+            sources.add(flushing.iterator(from, to));
+        }
+        for (final SSTable table : tables) {
+            sources.add(table.iterator(from, to));
+        }
+        return new MergeIterator(sources);
+    }
+
+    /**
+     * Tables probed with a Bloom filter.
+     */
+    public long bloomChecks() {
+        return bloomChecks.sum();
+    }
+
+    /**
+     * Probes answered by the filter alone, without touching the table.
+     */
+    public long bloomNegatives() {
+        return bloomNegatives.sum();
+    }
+
+    /**
+     * Probes the filter passed but the table didn't contain the key.
+     */
+    public long bloomFalsePositives() {
+        return bloomFalsePositives.sum();
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        put(ByteBuffer.wrap(key), Value.present(Value.now(), value));
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        put(ByteBuffer.wrap(key), Value.tombstone(Value.now()));
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value, long timestamp) throws IOException {
+        put(ByteBuffer.wrap(key), Value.present(timestamp, value));
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key, long timestamp) throws IOException {
+        put(ByteBuffer.wrap(key), Value.tombstone(timestamp));
+    }
+
+    /**
+     * Inserts the whole batch into one memtable, in key order, and checks for a flush once.
+     */
+    @Override
+    public void write(@NotNull WriteBatch batch) throws IOException {
+        final WriteBatch sorted = batch.sorted();
+        swapLock.readLock().lock();
+        try {
+            for (int i = 0; i < sorted.size(); i++) {
+                userBytes.add(sorted.key(i).length + sorted.value(i).size());
+                memTable.put(ByteBuffer.wrap(sorted.key(i)), sorted.value(i));
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        if (memTable.sizeInBytes() >= flushThreshold) {
+            flush(false);
+        }
+    }
+
+    private void put(@NotNull ByteBuffer key, @NotNull Value value) throws IOException {
+        userBytes.add(key.remaining() + value.size());
+        swapLock.readLock().lock();
+        try {
+            memTable.put(key, value);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        if (memTable.sizeInBytes() >= flushThreshold) {
+            flush(false);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flush(true);
+    }
+
+    /**
+     * Writes the current memtable to a new table. The calling writer pays for the flush,
+     * which throttles writers while the disk can't keep up.
+     *
+     * @param force flush even if the memtable is below the threshold
+     */
+    private void flush(boolean force) throws IOException {
+        synchronized (flushLock) {
+            final MemTable toFlush;
+            swapLock.writeLock().lock();
+            try {
+                toFlush = memTable;
+                if (toFlush.isEmpty() || (!force && toFlush.sizeInBytes() < flushThreshold)) {
+                    return;
+                }
+                flushing = toFlush;
+                memTable = new MemTable();
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+
+            final SSTable table = SSTable.write(directory, generation.incrementAndGet(), toFlush.iterator(), bloomFpp);
+            final List<SSTable> updated = new ArrayList<>(tables.size() + 1);
+            updated.add(table);
+            updated.addAll(tables);
+            tables = Collections.unmodifiableList(updated);
+            flushing = null;
+            flushedBytes.add(table.sizeInBytes());
+        }
+        compaction.schedule();
+    }
+
+    /**
+     * Newest first.
+     */
+    @NotNull
+    List<SSTable> tables() {
+        return tables;
+    }
+
+    /**
+     * Merges a contiguous run of tables into one that takes its place.
+     *
+     * @param run newest first
+     * @return bytes written
+     */
+    long merge(@NotNull List<SSTable> run, @NotNull RateLimiter limiter) throws IOException {
+        final SSTable newest = run.get(0);
+        final SSTable oldest = run.get(run.size() - 1);
+        final List<SSTable> before = tables;
+        final boolean bottom = before.get(before.size() - 1) == oldest;
+
+        final List<Iterator<Map.Entry<ByteBuffer, Value>>> sources = new ArrayList<>(run.size());
+        for (final SSTable table : run) {
+            sources.add(table.iterator());
+        }
+        final Iterator<Map.Entry<ByteBuffer, Value>> merged = new MergeIterator(sources);
+        final Iterator<Map.Entry<ByteBuffer, Value>> cells = new Iterator<Map.Entry<ByteBuffer, Value>>() {
+            private Map.Entry<ByteBuffer, Value> next = advance();
+
+            private Map.Entry<ByteBuffer, Value> advance() {
+                while (merged.hasNext()) {
+                    final Map.Entry<ByteBuffer, Value> cell = merged.next();
+                    if (!bottom || !expired(cell.getValue())) {
+                        return cell;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<ByteBuffer, Value> next() {
+                final Map.Entry<ByteBuffer, Value> cell = next;
+                if (cell == null) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    limiter.acquire(cell.getKey().remaining() + cell.getValue().size());
+                } catch (InterruptedIOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                next = advance();
+                return cell;
+            }
+        };
+
+        final SSTable table;
+        try {
+            table = SSTable.write(directory, newest.generation(), oldest.oldestGeneration(), cells, bloomFpp);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        synchronized (flushLock) {
+            final List<SSTable> current = tables;
+            final int from = current.indexOf(newest);
+            final List<SSTable> updated = new ArrayList<>(current.size() - run.size() + 1);
+            updated.addAll(current.subList(0, from));
+            updated.add(table);
+            updated.addAll(current.subList(from + run.size(), current.size()));
+            tables = Collections.unmodifiableList(updated);
+        }
+        for (final SSTable replaced : run) {
+            // Lookups in flight keep using the mapping
+            replaced.close();
+            java.nio.file.Files.delete(replaced.file().toPath());
+        }
+        return table.sizeInBytes();
+    }
+
+    /**
+     * @return whether the version is a tombstone every replica should have seen by now
+     */
+    private boolean expired(@NotNull Value value) {
+        return value.isRemoved() && Value.ageMillis(value.getTimestamp()) > tombstoneGraceMillis;
+    }
+
+    /**
+     * Runs a pass of the compaction strategy, or merges all the tables if {@code major}.
+     */
+    @NotNull
+    public CompletableFuture<Void> compact(boolean major) {
+        return compaction.trigger(major);
+    }
+
+    @NotNull
+    public CompactionStatus compactionStatus() {
+        final List<SSTable> tables = this.tables;
+        long tableBytes = 0;
+        for (final SSTable table : tables) {
+            tableBytes += table.sizeInBytes();
+        }
+        final long user = userBytes.sum();
+        final long lookups = tableLookups.sum();
+        return new CompactionStatus(
+                compaction.isRunning(),
+                tables.size(),
+                tableBytes,
+                compaction.compactions(),
+                compaction.bytesRead(),
+                compaction.bytesWritten(),
+                user == 0 ? 0 : (double) (flushedBytes.sum() + compaction.bytesWritten()) / user,
+                lookups == 0 ? 0 : (double) tableReads.sum() / lookups);
+    }
+
+    @NotNull
+    @Override
+    public File directory() {
+        return directory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        compaction.close();
+        flush(true);
+        for (final SSTable table : tables) {
+            table.close();
+        }
+    }
+}
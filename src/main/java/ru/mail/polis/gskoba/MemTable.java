@@ -0,0 +1,57 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorted in-memory write buffer of an {@link LsmKVDao}.
+ */
+final class MemTable {
+
+    private final NavigableMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+
+    @Nullable
+    Value get(@NotNull ByteBuffer key) {
+        return map.get(key);
+    }
+
+    /**
+     * Keeps the stored version if it is newer than the given one.
+     * Replaced versions are not subtracted, so the size is an upper bound.
+     */
+    void put(@NotNull ByteBuffer key, @NotNull Value value) {
+        final Value stored = map.merge(key, value, (old, v) -> Value.replaces(v, old) ? v : old);
+        if (stored == value) {
+            sizeInBytes.addAndGet(key.remaining() + value.size());
+        }
+    }
+
+    long sizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @NotNull
+    Iterator<Map.Entry<ByteBuffer, Value>> iterator() {
+        return map.entrySet().iterator();
+    }
+
+    /**
+     * @param to exclusive, {@code null} for the end
+     */
+    @NotNull
+    Iterator<Map.Entry<ByteBuffer, Value>> iterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to) {
+        return (to == null ? map.tailMap(from, true) : map.subMap(from, true, to, false)).entrySet().iterator();
+    }
+}
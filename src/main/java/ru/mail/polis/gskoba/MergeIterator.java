@@ -0,0 +1,82 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges sorted cell sources into one sorted sequence with one cell per key,
+ * the newest version by timestamp and the earlier source on a tie.
+ */
+final class MergeIterator implements Iterator<Map.Entry<ByteBuffer, Value>> {
+
+    private final PriorityQueue<Source> queue;
+
+    private static final class Source {
+        final int index;
+        final Iterator<Map.Entry<ByteBuffer, Value>> iterator;
+        Map.Entry<ByteBuffer, Value> head;
+
+        Source(int index, @NotNull Iterator<Map.Entry<ByteBuffer, Value>> iterator) {
+            this.index = index;
+            this.iterator = iterator;
+            this.head = iterator.next();
+        }
+
+        boolean advance() {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            head = iterator.next();
+            return true;
+        }
+    }
+
+    /**
+     * @param sources newest first
+     */
+    MergeIterator(@NotNull List<Iterator<Map.Entry<ByteBuffer, Value>>> sources) {
+        this.queue = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+            final int cmp = a.head.getKey().compareTo(b.head.getKey());
+            return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).hasNext()) {
+                queue.add(new Source(i, sources.get(i)));
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<ByteBuffer, Value> next() {
+        if (queue.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        Source source = queue.poll();
+        final Map.Entry<ByteBuffer, Value> first = source.head;
+        Value value = first.getValue();
+        while (true) {
+            if (source.advance()) {
+                queue.add(source);
+            }
+            final Source next = queue.peek();
+            if (next == null || !next.head.getKey().equals(first.getKey())) {
+                break;
+            }
+            source = queue.poll();
+            value = Value.newest(value, source.head.getValue());
+        }
+        return value == first.getValue() ? first : new AbstractMap.SimpleImmutableEntry<>(first.getKey(), value);
+    }
+}
@@ -0,0 +1,72 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hash tree over the versions of the keys shared with a replica, bucketed by key hash.
+ * <p>
+ * A leaf is the XOR of the hashes of the versions in its bucket, whatever order they were
+ * counted in. Leaves are set by whoever counts them, inner nodes are derived from the leaves
+ * when they are asked for. Level {@code 0} is the root, level {@link #DEPTH} are the leaves,
+ * node {@code i} of a level has children {@code 2i} and {@code 2i + 1}.
+ */
+final class MerkleTree {
+
+    static final int DEPTH = 12;
+    static final int LEAVES = 1 << DEPTH;
+
+    private static final long TOMBSTONE = 0x5bd1e9955bd1e995L;
+
+    private final long[] leaves = new long[LEAVES];
+
+    static int bucket(@NotNull ByteBuffer key) {
+        return (int) (BloomFilter.hash(key) >>> (Long.SIZE - DEPTH));
+    }
+
+    /**
+     * Replicas holding the same version of a key hash it the same, whatever the value looks like.
+     */
+    static long hash(@NotNull ByteBuffer key, @NotNull Value value) {
+        return mix(BloomFilter.hash(key) ^ mix(value.getTimestamp()) ^ (value.isRemoved() ? TOMBSTONE : 0));
+    }
+
+    /**
+     * @param hash XOR of the hashes of the versions in the bucket
+     */
+    synchronized void leaf(int bucket, long hash) {
+        leaves[bucket] = hash;
+    }
+
+    @NotNull
+    synchronized long[] nodes(int level, @NotNull int[] indices) {
+        if (level < 0 || level > DEPTH) {
+            throw new IllegalArgumentException("Level out of [0, " + DEPTH + "]: " + level);
+        }
+        final long[] nodes = new long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] < 0 || indices[i] >= 1 << level) {
+                throw new IllegalArgumentException("No node " + indices[i] + " at level " + level);
+            }
+            nodes[i] = node(level, indices[i]);
+        }
+        return nodes;
+    }
+
+    private long node(int level, int index) {
+        if (level == DEPTH) {
+            return leaves[index];
+        }
+        return mix(node(level + 1, 2 * index) * 0x9e3779b97f4a7c15L + node(level + 1, 2 * index + 1));
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe51a85dbL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,245 @@
+package ru.mail.polis.gskoba;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Latencies, counters and gauges of a node, rendered by {@code /v0/stats}.
+ * <p>
+ * Recording doesn't lock or allocate once a histogram exists: latencies go to HdrHistogram
+ * {@link Recorder}s, whose writers are wait-free, and counts to {@link LongAdder}s, so request
+ * threads contend neither with each other nor with a reader. A reader folds what was recorded
+ * since the last read into cumulative histograms. Gauges are read when the metrics are rendered.
+ */
+final class Metrics {
+
+    static final int DAO_GET = 0;
+    static final int DAO_UPSERT = 1;
+    static final int DAO_REMOVE = 2;
+    static final int DAO_BATCH = 3;
+    static final int DAO_RANGE = 4;
+
+    private static final String[] DAO_OPERATIONS = {"get", "upsert", "remove", "batch", "range"};
+    /**
+     * Indexed by the one-nio method constants
+     */
+    private static final String[] METHODS = {
+            "UNKNOWN", "GET", "POST", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE", "CONNECT", "PATCH"};
+    private static final int STATUSES = 600;
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILES = {"p50", "p90", "p99", "p999"};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final String REQUEST_SECONDS = "kv_request_duration_seconds";
+    private static final String DAO_SECONDS = "kv_dao_duration_seconds";
+
+    /**
+     * By method and status, created on first use
+     */
+    private final AtomicReferenceArray<Latency> requests = new AtomicReferenceArray<>(METHODS.length * STATUSES);
+    private final Latency[] dao = new Latency[DAO_OPERATIONS.length];
+    private final LongAdder received = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final List<Sampled> sampled = new CopyOnWriteArrayList<>();
+
+    private static final class Latency {
+        private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+        private final LongAdder nanos = new LongAdder();
+        /**
+         * Guarded by {@code this}
+         */
+        private final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+        private Histogram interval;
+
+        void record(long nanos) {
+            recorder.recordValue(Math.max(0, nanos));
+            this.nanos.add(nanos);
+        }
+
+        /**
+         * @return everything recorded so far
+         */
+        @NotNull
+        synchronized Histogram snapshot() {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return total.copy();
+        }
+    }
+
+    private static final class Sampled {
+        final String name;
+        final String help;
+        final boolean counter;
+        final LongSupplier value;
+
+        Sampled(@NotNull String name, @NotNull String help, boolean counter, @NotNull LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.counter = counter;
+            this.value = value;
+        }
+    }
+
+    Metrics() {
+        for (int i = 0; i < dao.length; i++) {
+            dao[i] = new Latency();
+        }
+        counter("kv_received_bytes_total", "Request body bytes received", received::sum);
+        counter("kv_sent_bytes_total", "Response body bytes sent", sent::sum);
+    }
+
+    /**
+     * @return name of a one-nio method constant
+     */
+    @NotNull
+    static String method(int method) {
+        return METHODS[method > 0 && method < METHODS.length ? method : 0];
+    }
+
+    /**
+     * @param nanos from parsing the request to sending the response headers
+     */
+    void request(int method, int status, long nanos) {
+        final int index = (method > 0 && method < METHODS.length ? method : 0) * STATUSES
+                + (status > 0 && status < STATUSES ? status : 0);
+        Latency latency = requests.get(index);
+        if (latency == null) {
+            requests.compareAndSet(index, null, new Latency());
+            latency = requests.get(index);
+        }
+        latency.record(nanos);
+    }
+
+    /**
+     * @param operation one of the {@code DAO_*} constants
+     */
+    void dao(int operation, long nanos) {
+        dao[operation].record(nanos);
+    }
+
+    void received(long bytes) {
+        received.add(bytes);
+    }
+
+    void sent(long bytes) {
+        sent.add(bytes);
+    }
+
+    /**
+     * Registers a monotonic count kept elsewhere.
+     */
+    void counter(@NotNull String name, @NotNull String help, @NotNull LongSupplier value) {
+        sampled.add(new Sampled(name, help, true, value));
+    }
+
+    /**
+     * Registers a value that goes up and down, such as a queue depth.
+     */
+    void gauge(@NotNull String name, @NotNull String help, @NotNull LongSupplier value) {
+        sampled.add(new Sampled(name, help, false, value));
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    @NotNull
+    String prometheus() {
+        final StringBuilder out = new StringBuilder();
+        header(out, REQUEST_SECONDS, "summary", "Time from parsing a request to sending the response headers");
+        for (int i = 0; i < requests.length(); i++) {
+            final Latency latency = requests.get(i);
+            if (latency != null) {
+                final String labels = "method=\"" + METHODS[i / STATUSES] + "\",status=\"" + i % STATUSES + "\"";
+                summary(out, REQUEST_SECONDS, labels, latency);
+            }
+        }
+        header(out, DAO_SECONDS, "summary", "Time spent in the storage by operation");
+        for (int i = 0; i < dao.length; i++) {
+            summary(out, DAO_SECONDS, "operation=\"" + DAO_OPERATIONS[i] + "\"", dao[i]);
+        }
+        for (final Sampled metric : sampled) {
+            header(out, metric.name, metric.counter ? "counter" : "gauge", metric.help);
+            out.append(metric.name).append(' ').append(metric.value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(
+            @NotNull StringBuilder out,
+            @NotNull String name,
+            @NotNull String type,
+            @NotNull String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(
+            @NotNull StringBuilder out,
+            @NotNull String name,
+            @NotNull String labels,
+            @NotNull Latency latency) {
+        final Histogram histogram = latency.snapshot();
+        for (final double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(seconds(latency.nanos.sum())).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.getTotalCount()).append('\n');
+    }
+
+    /**
+     * @return the metrics as a JSON object
+     */
+    @NotNull
+    String json() {
+        final StringBuilder out = new StringBuilder("{\"requests\":[");
+        boolean first = true;
+        for (int i = 0; i < requests.length(); i++) {
+            final Latency latency = requests.get(i);
+            if (latency != null) {
+                out.append(first ? "" : ",")
+                        .append("{\"method\":\"").append(METHODS[i / STATUSES])
+                        .append("\",\"status\":").append(i % STATUSES)
+                        .append(',');
+                latency(out, latency);
+                out.append('}');
+                first = false;
+            }
+        }
+        out.append("],\"dao\":[");
+        for (int i = 0; i < dao.length; i++) {
+            out.append(i == 0 ? "" : ",").append("{\"operation\":\"").append(DAO_OPERATIONS[i]).append("\",");
+            latency(out, dao[i]);
+            out.append('}');
+        }
+        out.append("]");
+        for (final Sampled metric : sampled) {
+            out.append(",\"").append(metric.name).append("\":").append(metric.value.getAsLong());
+        }
+        return out.append('}').toString();
+    }
+
+    private static void latency(@NotNull StringBuilder out, @NotNull Latency latency) {
+        final Histogram histogram = latency.snapshot();
+        out.append("\"count\":").append(histogram.getTotalCount())
+                .append(",\"sumSeconds\":").append(seconds(latency.nanos.sum()));
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(",\"").append(PERCENTILES[i]).append("\":")
+                    .append(seconds(histogram.getValueAtPercentile(QUANTILES[i] * 100)));
+        }
+        out.append(",\"max\":").append(seconds(histogram.getMaxValue()));
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / NANOS_PER_SECOND;
+    }
+}
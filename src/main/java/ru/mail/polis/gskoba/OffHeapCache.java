@@ -0,0 +1,275 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Value cache keeping the bytes in direct memory.
+ * <p>
+ * Every segment owns one direct buffer used as a ring log: records
+ * {@code keyLength:int valueLength:int key value} are appended at the head and
+ * evicted from the tail, so there is no fragmentation and no per-entry allocation.
+ * Invalidated records stay in the ring as garbage until the tail passes them.
+ * A TinyLFU frequency sketch guards admission: a new value may evict the oldest live
+ * record only if it was requested more often recently. Otherwise the candidate is dropped
+ * and the oldest record is moved to the head, CLOCK style, so the next candidate
+ * faces another victim. Only keys and positions live on the heap.
+ * <p>
+ * The cache is split into independently locked segments by key hash.
+ */
+final class OffHeapCache {
+
+    private static final int SEGMENTS = 16;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int PADDING = -1;
+    private static final int AVERAGE_ENTRY_SIZE = 1024;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param capacity direct memory budget in bytes
+     */
+    OffHeapCache(long capacity) {
+        final int segmentSize = (int) Math.min(Integer.MAX_VALUE, Math.max(HEADER_SIZE, capacity / SEGMENTS));
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * @return a copy of the cached value or {@code null}
+     */
+    @Nullable
+    byte[] get(@NotNull ByteBuffer key) {
+        final long hash = BloomFilter.hash(key);
+        final byte[] value = segment(hash).get(key, hash);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Opaque token to pass to {@link #put}, taken before reading the value from storage.
+     */
+    long version(@NotNull ByteBuffer key) {
+        return segment(BloomFilter.hash(key)).version;
+    }
+
+    /**
+     * Caches the value unless the key was invalidated after {@code version} was taken,
+     * so a value read before a concurrent write can't outlive it.
+     */
+    void put(@NotNull ByteBuffer key, @NotNull byte[] value, long version) {
+        put(key, ByteBuffer.wrap(value), version);
+    }
+
+    void put(@NotNull ByteBuffer key, @NotNull ByteBuffer value, long version) {
+        final long hash = BloomFilter.hash(key);
+        segment(hash).put(key, hash, value, version);
+    }
+
+    void invalidate(@NotNull ByteBuffer key) {
+        segment(BloomFilter.hash(key)).invalidate(key);
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long rejections() {
+        return rejections.sum();
+    }
+
+    @NotNull
+    private Segment segment(long hash) {
+        return segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private static final class Entry {
+        final long hash;
+        final int position;
+
+        Entry(long hash, int position) {
+            this.hash = hash;
+            this.position = position;
+        }
+    }
+
+    private final class Segment {
+        private final int capacity;
+        private final Map<ByteBuffer, Entry> index = new HashMap<>();
+        private final FrequencySketch sketch;
+        @Nullable
+        private ByteBuffer ring;
+        private int head;
+        private int tail;
+        /**
+         * Bytes from tail to head, garbage and padding included.
+         */
+        private int size;
+        private volatile long version;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.sketch = new FrequencySketch(Math.max(1, capacity / AVERAGE_ENTRY_SIZE));
+        }
+
+        @Nullable
+        synchronized byte[] get(@NotNull ByteBuffer key, long hash) {
+            sketch.increment(hash);
+            final Entry entry = index.get(key);
+            if (entry == null || ring == null) {
+                return null;
+            }
+            final int keyLength = ring.getInt(entry.position);
+            final byte[] value = new byte[ring.getInt(entry.position + Integer.BYTES)];
+            final ByteBuffer record = ring.duplicate();
+            record.position(entry.position + HEADER_SIZE + keyLength);
+            record.get(value);
+            return value;
+        }
+
+        synchronized void put(@NotNull ByteBuffer key, long hash, @NotNull ByteBuffer value, long version) {
+            final int length = HEADER_SIZE + key.remaining() + value.remaining();
+            if (this.version != version || length > capacity || index.containsKey(key)) {
+                return;
+            }
+            if (ring == null) {
+                ring = ByteBuffer.allocateDirect(capacity);
+            }
+            if (!reserve(length, hash, false)) {
+                rejections.increment();
+                return;
+            }
+
+            final ByteBuffer ownKey = ByteBuffer.allocate(key.remaining());
+            ownKey.put(key.duplicate()).flip();
+            final ByteBuffer record = ring.duplicate();
+            record.position(head);
+            record.putInt(key.remaining()).putInt(value.remaining()).put(key.duplicate()).put(value.duplicate());
+            appended(ownKey, hash, length);
+        }
+
+        private void appended(@NotNull ByteBuffer key, long hash, int length) {
+            index.put(key, new Entry(hash, head));
+            head += length;
+            size += length;
+        }
+
+        /**
+         * Frees {@code length} contiguous bytes at the head, evicting from the tail.
+         *
+         * @param force evict without consulting the frequency sketch
+         * @return {@code false} if the oldest live record is more popular than the candidate
+         */
+        private boolean reserve(int length, long hash, boolean force) {
+            final ByteBuffer ring = this.ring;
+            assert ring != null;
+            boolean admitted = force;
+            while (true) {
+                if (size == 0) {
+                    head = 0;
+                    tail = 0;
+                }
+                final int free;
+                if (size == 0 || tail < head) {
+                    free = capacity - head;
+                } else {
+                    free = tail - head;
+                }
+                if (free >= length) {
+                    return true;
+                }
+
+                if (size != 0 && tail < head) {
+                    // No room before the end: pad it and wrap around
+                    if (capacity - head >= Integer.BYTES) {
+                        ring.putInt(head, PADDING);
+                    }
+                    size += capacity - head;
+                    head = 0;
+                    continue;
+                }
+
+                if (capacity - tail < HEADER_SIZE || ring.getInt(tail) == PADDING) {
+                    size -= capacity - tail;
+                    tail = 0;
+                    continue;
+                }
+                final int keyLength = ring.getInt(tail);
+                final int recordLength = HEADER_SIZE + keyLength + ring.getInt(tail + Integer.BYTES);
+                final ByteBuffer victimKey = ring.duplicate();
+                victimKey.position(tail + HEADER_SIZE).limit(tail + HEADER_SIZE + keyLength);
+                final Entry victim = index.get(victimKey);
+                if (victim != null && victim.position == tail) {
+                    if (!admitted) {
+                        if (sketch.frequency(hash) <= sketch.frequency(victim.hash)) {
+                            rotate(victimKey, victim.hash, recordLength);
+                            return false;
+                        }
+                        admitted = true;
+                    }
+                    index.remove(victimKey);
+                    evictions.increment();
+                }
+                tail += recordLength;
+                size -= recordLength;
+                if (tail == capacity) {
+                    tail = 0;
+                }
+            }
+        }
+
+        /**
+         * Moves the live record at the tail to the head.
+         */
+        private void rotate(@NotNull ByteBuffer key, long hash, int length) {
+            final ByteBuffer ring = this.ring;
+            assert ring != null;
+            final byte[] record = new byte[length];
+            final ByteBuffer source = ring.duplicate();
+            source.position(tail);
+            source.get(record);
+            final ByteBuffer ownKey = ByteBuffer.allocate(key.remaining());
+            ownKey.put(key.duplicate()).flip();
+
+            index.remove(ownKey);
+            tail += length;
+            size -= length;
+            if (tail == capacity) {
+                tail = 0;
+            }
+            reserve(length, hash, true);
+            final ByteBuffer target = ring.duplicate();
+            target.position(head);
+            target.put(record);
+            appended(ownKey, hash, length);
+        }
+
+        synchronized void invalidate(@NotNull ByteBuffer key) {
+            version++;
+            index.remove(key);
+        }
+    }
+}
@@ -1,52 +1,266 @@
 package ru.mail.polis.gskoba;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
 import org.mapdb.Serializer;
-import ru.mail.polis.KVDao;
 
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class PersistentKVDao implements KVDao {
+/**
+ * MapDB storage. Every entry is a {@link Value} with its timestamp, removes leave tombstones
+ * which are swept in the background once they are older than the grace period.
+ * <p>
+ * The file records its format. A file without one holds the plain values of the first version,
+ * they are copied into versions of timestamp {@code 0}, older than any write, before it is used.
+ * A file of a newer format is refused. Removes are also listed in a tree by timestamp,
+ * so a sweep reads only the tombstones due, at most {@link #SWEEP_BATCH} of them at a time.
+ * Writes and the sweep of a key hold its stripe, so a tombstone is stored only while it is listed.
+ * <p>
+ * Writes are committed by {@link #flush}, the checkpoint of a {@link WalKVDao} in front of it, and on close.
+ * A crash rolls the file back to the last commit, so it opens and the journal replays the rest.
+ */
+public class PersistentKVDao implements VersionedKVDao, DirectoryKVDao, Flushable {
 
+    private static final long MAX_SWEEP_INTERVAL_MILLIS = 60 * 60 * 1000;
+    private static final int SWEEP_BATCH = 1024;
+    private static final String FORMAT = "format";
+    private static final int VERSIONED = 1;
+    private static final String VERSIONS = "versions";
+    private static final String TOMBSTONES = "tombstones";
+    private static final int STRIPES = 256;
 
     private final DB db;
     private final File data;
     private final HTreeMap<byte[], byte[]> storage;
+    /**
+     * {@code timestamp:long key} of every remove, in time order
+     */
+    private final BTreeMap<byte[], byte[]> tombstones;
+    private final long tombstoneGraceMillis;
+    private final ScheduledExecutorService sweeper;
+    /**
+     * Keeps the versions and the list of tombstones consistent for one key.
+     */
+    private final Object[] stripes = new Object[STRIPES];
 
-    public PersistentKVDao(File directory) {
+    public PersistentKVDao(File directory) throws IOException {
+        this(directory, LsmKVDao.DEFAULT_TOMBSTONE_GRACE_MILLIS);
+    }
+
+    /**
+     * @param tombstoneGraceMillis how long a tombstone is kept for replicas that missed the remove
+     * @throws IOException if the file is of a newer format
+     */
+    public PersistentKVDao(File directory, long tombstoneGraceMillis) throws IOException {
         this.data = new File(directory,"db");
         this.db = DBMaker.fileDB(data).fileChannelEnable()
                 .fileMmapPreclearDisable().fileMmapEnable()
-                .fileMmapEnableIfSupported().make();
-        this.storage = db.hashMap(data.getName()).keySerializer(Serializer.BYTE_ARRAY).valueSerializer(Serializer.BYTE_ARRAY).createOrOpen();
+                .fileMmapEnableIfSupported().transactionEnable().make();
+        try {
+            this.storage = open(db, data);
+        } catch (IOException | RuntimeException e) {
+            db.close();
+            throw e;
+        }
+        this.tombstones = db.treeMap(TOMBSTONES, Serializer.BYTE_ARRAY, Serializer.BYTE_ARRAY).createOrOpen();
+        this.tombstoneGraceMillis = tombstoneGraceMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("tombstone-sweep"));
+        final long interval = Math.max(1, Math.min(tombstoneGraceMillis, MAX_SWEEP_INTERVAL_MILLIS));
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the versions, copied from the plain values of a file without a format
+     */
+    @NotNull
+    private static HTreeMap<byte[], byte[]> open(@NotNull DB db, @NotNull File data) throws IOException {
+        final Atomic.Integer format = db.atomicInteger(FORMAT).createOrOpen();
+        if (format.get() > VERSIONED) {
+            throw new IOException("Storage format " + format.get() + " of " + data + " is newer than " + VERSIONED);
+        }
+        final HTreeMap<byte[], byte[]> versions = map(db, VERSIONS);
+        if (format.get() == VERSIONED) {
+            return versions;
+        }
+        if (db.exists(data.getName())) {
+            // Copied again from the start if the migration was cut short
+            versions.clear();
+            final HTreeMap<byte[], byte[]> plain = map(db, data.getName());
+            for (final Map.Entry<byte[], byte[]> entry : plain.getEntries()) {
+                versions.put(entry.getKey(), Value.present(0, entry.getValue()).toBytes());
+            }
+            db.commit();
+            plain.clear();
+        }
+        format.set(VERSIONED);
+        db.commit();
+        return versions;
+    }
+
+    @NotNull
+    private static HTreeMap<byte[], byte[]> map(@NotNull DB db, @NotNull String name) {
+        return db.hashMap(name).keySerializer(Serializer.BYTE_ARRAY).valueSerializer(Serializer.BYTE_ARRAY).createOrOpen();
     }
 
     @NotNull
     @Override
     public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
-        final byte[] out = this.storage.get(key);
-        if (out == null) throw new NoSuchElementException();
-        return out;
+        final Value value = getVersion(key);
+        if (value == null || value.isRemoved()) throw new NoSuchElementException();
+        return value.getData();
     }
 
+    @Nullable
+    @Override
+    public Value getVersion(@NotNull byte[] key) throws IOException {
+        final byte[] stored = this.storage.get(key);
+        return stored == null ? null : Value.fromBytes(ByteBuffer.wrap(stored));
+    }
 
     @Override
     public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
-        this.storage.put(key,value);
+        put(key, Value.present(Value.now(), value));
     }
 
     @Override
     public void remove(@NotNull byte[] key) throws IOException{
-        this.storage.remove(key);
+        put(key, Value.tombstone(Value.now()));
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value, long timestamp) throws IOException {
+        put(key, Value.present(timestamp, value));
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key, long timestamp) throws IOException {
+        put(key, Value.tombstone(timestamp));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> versions() {
+        final Iterator<Map.Entry<byte[], byte[]>> entries = this.storage.getEntries().iterator();
+        return new Iterator<Map.Entry<ByteBuffer, Value>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Map.Entry<ByteBuffer, Value> next() {
+                final Map.Entry<byte[], byte[]> entry = entries.next();
+                return new AbstractMap.SimpleImmutableEntry<>(
+                        ByteBuffer.wrap(entry.getKey()).asReadOnlyBuffer(),
+                        Value.fromBytes(ByteBuffer.wrap(entry.getValue())));
+            }
+        };
+    }
+
+    /**
+     * Stores the version unless a newer one is stored.
+     */
+    private void put(@NotNull byte[] key, @NotNull Value value) {
+        final byte[] record = value.toBytes();
+        synchronized (stripe(key)) {
+            final byte[] stored = this.storage.get(key);
+            if (stored != null && !Value.replaces(value, Value.fromBytes(ByteBuffer.wrap(stored)))) {
+                return;
+            }
+            if (value.isRemoved()) {
+                this.tombstones.put(tombstone(key, value.getTimestamp()), record);
+            }
+            this.storage.put(key, record);
+        }
+    }
+
+    @NotNull
+    private Object stripe(@NotNull byte[] key) {
+        return stripes[Arrays.hashCode(key) & (STRIPES - 1)];
+    }
+
+    /**
+     * @return {@code timestamp:long key}, big-endian timestamps sort in time order
+     */
+    @NotNull
+    private static byte[] tombstone(@NotNull byte[] key, long timestamp) {
+        return ByteBuffer.allocate(Long.BYTES + key.length).putLong(timestamp).put(key).array();
+    }
+
+    /**
+     * Drops the tombstones past the grace period unless they have been overwritten meanwhile,
+     * a batch at a time, oldest first.
+     */
+    private void sweep() {
+        while (true) {
+            final List<byte[]> due = new ArrayList<>(SWEEP_BATCH);
+            final Iterator<byte[]> listed = this.tombstones.keyIterator();
+            while (due.size() < SWEEP_BATCH && listed.hasNext()) {
+                final byte[] tombstone = listed.next();
+                if (Value.ageMillis(ByteBuffer.wrap(tombstone).getLong()) <= tombstoneGraceMillis) {
+                    break;
+                }
+                due.add(tombstone);
+            }
+            for (final byte[] tombstone : due) {
+                final byte[] key = Arrays.copyOfRange(tombstone, Long.BYTES, tombstone.length);
+                synchronized (stripe(key)) {
+                    final byte[] record = this.tombstones.remove(tombstone);
+                    if (record != null) {
+                        this.storage.remove(key, record);
+                    }
+                }
+            }
+            if (due.size() < SWEEP_BATCH) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        db.commit();
+    }
+
+    @NotNull
+    @Override
+    public File directory() {
+        return data.getParentFile();
     }
 
     @Override
     public void close() throws IOException{
-        db.close();
+        sweeper.shutdown();
+        try {
+            sweeper.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            db.commit();
+        } finally {
+            db.close();
+        }
     }
 }
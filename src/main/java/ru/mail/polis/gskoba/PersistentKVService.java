@@ -1,24 +1,433 @@
 package ru.mail.polis.gskoba;
 
 import one.nio.http.*;
+import one.nio.net.ConnectionString;
+import one.nio.net.Socket;
+import one.nio.server.RejectedSessionException;
+import one.nio.util.URLEncoder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.KVDao;
 import ru.mail.polis.KVService;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 public class PersistentKVService extends HttpServer implements KVService {
 
     private final String ID = "id=";
+    private final String REPLICAS = "replicas=";
+    private final String ENTITY = "/v0/entity?id=";
+    private final String MAJOR = "major=";
+    /**
+     * Seconds a written value lives.
+     */
+    private final String EXPIRES = "expires=";
+    private static final String STATUS = "/v0/status";
+    private static final String STATS = "/v0/stats";
+    private static final String FORMAT = "format=";
+    private static final String TRACES = "/v0/traces";
+    private static final String LIMIT = "limit=";
+    private static final int DEFAULT_TRACES = 10;
+    private static final int MAX_TRACES = 100;
+    private static final String ENTITIES = "/v0/entities";
+    private static final String START = "start=";
+    private static final String END = "end=";
+    /**
+     * Continues a range after the given key, hex encoded as it needn't be UTF-8,
+     * for a coordinator fetching it page by page.
+     */
+    private static final String AFTER = "after=";
+    private static final String NOT_IMPLEMENTED = "501 Not Implemented";
+    /**
+     * Bytes of versions a replica answers a range page with.
+     */
+    private static final int PAGE_SIZE = 256 * 1024;
+    /**
+     * How long a client may not read a streamed response.
+     */
+    private static final long STREAM_TIMEOUT_MILLIS = 30_000;
+    private static final String MERKLE_TREE = "/v0/merkle/tree";
+    private static final String MERKLE_ENTRIES = "/v0/merkle/entries";
+    private static final String LEVEL = "level=";
 
+    /**
+     * Marks a request sent by a coordinator to a replica, which must handle it locally.
+     */
+    private static final String PROXIED = "X-Proxied: ";
+    private static final String PROXIED_HEADER = PROXIED + "true";
+    /**
+     * Version of a write sent to a replica, or of the value a replica answers with.
+     * A replica answers {@code 404} with it for a removed key and without it for a key it never had.
+     */
+    private static final String TIMESTAMP = "X-Timestamp: ";
+    /**
+     * Wall-clock deadline of a write sent to a replica, in milliseconds.
+     */
+    private static final String EXPIRES_AT = "X-Expires: ";
+    /**
+     * Replication factor of a write sent to a replica, which anti-entropy keeps it to.
+     * A write without it is replicated to every node.
+     */
+    private static final String REPLICATION = "X-Replicas: ";
+    /**
+     * Id of a traced request, carried by its calls to the replicas. A client may send one to force tracing.
+     */
+    private static final String TRACE = "X-Trace: ";
+    /**
+     * Endpoint of the node calling an internal endpoint.
+     */
+    private static final String NODE = "X-Node: ";
+
+    @NotNull
+    private final VersionedKVDao kvDao;
+    @NotNull
+    private final String self;
+    @NotNull
+    private final RendezvousPlacement placement;
+    @NotNull
+    private final Map<String, HttpClient> peers = new HashMap<>();
+    @NotNull
+    private final ReplicaCoordinator coordinator;
+    /**
+     * Stamps writes coordinated here, keeps up with the versions seen from other nodes.
+     */
+    @NotNull
+    private final HybridClock clock;
+    /**
+     * Probability that a read seeing diverged replicas repairs them.
+     */
+    private final double readRepairChance;
+    private final LongAdder readRepairs = new LongAdder();
+    /**
+     * Writes the replicas missed, replayed once they are back.
+     */
+    @NotNull
+    private final HintStore hints;
+    /**
+     * Merkle trees shared with the peers, {@code null} in a single node cluster.
+     */
+    @Nullable
+    private final AntiEntropy antiEntropy;
+    /**
+     * Handles entity requests off the selector threads.
+     */
+    @NotNull
+    private final ExecutorService workers;
+    @NotNull
+    private final Metrics metrics = new Metrics();
     @NotNull
-    private final KVDao kvDao;
+    private final Tracer tracer;
+    /**
+     * Largest request body read, bytes.
+     */
+    private final int maxBody;
 
-    public PersistentKVService(@NotNull HttpServerConfig config, @NotNull KVDao kvDao) throws IOException {
+    /**
+     * @param self      endpoint of this node as listed in the topology
+     * @param placement replica placement over all the cluster endpoints including this one
+     * @param settings  worker pools and peer timeouts
+     * @throws IllegalArgumentException if the storage doesn't keep versions or has no directory for the hints
+     */
+    public PersistentKVService(
+            @NotNull HttpServerConfig config,
+            @NotNull KVDao kvDao,
+            @NotNull String self,
+            @NotNull RendezvousPlacement placement,
+            @NotNull ServerSettings settings) throws IOException {
         super(config);
-        this.kvDao = kvDao;
+        if (!placement.nodes().contains(self)) {
+            throw new IllegalArgumentException("Topology doesn't contain " + self);
+        }
+        if (!(kvDao instanceof VersionedKVDao)) {
+            throw new IllegalArgumentException("Storage doesn't keep versions: " + kvDao.getClass().getName());
+        }
+        this.kvDao = (VersionedKVDao) kvDao;
+        this.self = self;
+        this.placement = placement;
+        this.clock = new HybridClock(placement.nodes().indexOf(self));
+        this.readRepairChance = settings.readRepairChance();
+        this.tracer = new Tracer(settings.traceSample(), settings.traceEvents());
+        this.maxBody = settings.maxBody();
+        for (final String node : placement.nodes()) {
+            if (!node.equals(self)) {
+                final int timeout = settings.peerTimeout(node);
+                peers.put(node, new HttpClient(new ConnectionString(node + "?timeout=" + timeout)));
+            }
+        }
+        this.coordinator = new ReplicaCoordinator(settings.replicaThreads(), settings.replicaQueue());
+        this.hints = new HintStore(
+                hintsDirectory(settings.hintsDirectory(), kvDao),
+                self,
+                peers.keySet(),
+                new HintStore.Delivery() {
+                    @Override
+                    public boolean isAlive(@NotNull String node) {
+                        try {
+                            return peers.get(node).get(STATUS).getStatus() == 200;
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        } catch (Exception e) {
+                            return false;
+                        }
+                    }
+
+                    @Override
+                    public boolean deliver(
+                            @NotNull String node,
+                            @NotNull byte[] key,
+                            long timestamp,
+                            @Nullable byte[] value,
+                            int replicas,
+                            long expiresAt) {
+                        return write(node, key, timestamp, value, expiresAt, replicas);
+                    }
+                },
+                settings.hintsMaxBytes(),
+                settings.hintsRate());
+        this.antiEntropy = peers.isEmpty()
+                ? null
+                : new AntiEntropy(
+                        self,
+                        placement,
+                        this.kvDao,
+                        storageDirectory(kvDao, "anti-entropy"),
+                        new MerklePeers(),
+                        settings.antiEntropyIntervalMillis(),
+                        settings.tombstoneGraceMillis());
+        final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+                settings.workers(),
+                settings.workers(),
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(settings.workerQueue()),
+                new DaemonThreadFactory("worker"));
+        this.workers = workers;
+        registerMetrics(workers);
+    }
+
+    /**
+     * @return the configured directory, {@code hints} in the storage directory by default
+     */
+    @NotNull
+    private static File hintsDirectory(@Nullable File configured, @NotNull KVDao kvDao) {
+        if (configured != null) {
+            return configured;
+        }
+        return new File(storageDirectory(kvDao, "hints, set kv.hints.dir"), "hints");
+    }
+
+    /**
+     * @param what is kept there, for the error
+     * @throws IllegalArgumentException if the storage has no directory
+     */
+    @NotNull
+    private static File storageDirectory(@NotNull KVDao kvDao, @NotNull String what) {
+        final DirectoryKVDao stored = KVDaoDecorator.find(kvDao, DirectoryKVDao.class);
+        if (stored == null) {
+            throw new IllegalArgumentException("Storage has no directory for " + what);
+        }
+        return stored.directory();
+    }
+
+    private void registerMetrics(@NotNull ThreadPoolExecutor workers) {
+        metrics.gauge("kv_worker_queue_depth", "Requests waiting for a worker", () -> workers.getQueue().size());
+        metrics.gauge("kv_worker_active", "Workers handling a request", workers::getActiveCount);
+        metrics.gauge("kv_replica_queue_depth", "Replica calls waiting for a thread", coordinator::queued);
+        metrics.gauge("kv_hints_pending", "Hinted writes waiting for their replicas", () -> {
+            long pending = 0;
+            for (final String node : peers.keySet()) {
+                pending += hints.pending(node);
+            }
+            return pending;
+        });
+        metrics.counter("kv_hints_stored_total", "Writes hinted for unavailable replicas", hints::stored);
+        metrics.counter("kv_hints_dropped_total", "Hints dropped over the size limit", hints::dropped);
+        metrics.counter("kv_hints_delivered_total", "Hints replayed to their replicas", hints::delivered);
+        metrics.counter("kv_read_repairs_total", "Writes pushed to stale replicas by reads", readRepairs::sum);
+        if (antiEntropy != null) {
+            final AntiEntropy antiEntropy = this.antiEntropy;
+            metrics.counter("kv_anti_entropy_rounds_total", "Merkle tree rounds with the peers", antiEntropy::rounds);
+            metrics.counter("kv_anti_entropy_pulled_total", "Versions taken from the peers", antiEntropy::pulled);
+            metrics.counter("kv_anti_entropy_pushed_total", "Versions sent to the peers", antiEntropy::pushed);
+        }
+        final CachingKVDao cache = KVDaoDecorator.find(kvDao, CachingKVDao.class);
+        if (cache != null) {
+            metrics.counter("kv_cache_hits_total", "Reads served by the value cache", cache::hits);
+            metrics.counter("kv_cache_misses_total", "Reads missing the value cache", cache::misses);
+        }
+        final ExpiryKVDao expiry = KVDaoDecorator.find(kvDao, ExpiryKVDao.class);
+        if (expiry != null) {
+            metrics.gauge("kv_expiry_pending", "Deadlines loaded for the next hour", expiry::pending);
+            metrics.counter("kv_expired_total", "Versions removed by their deadlines", expiry::expired);
+        }
+    }
+
+    @Override
+    public HttpSession createSession(Socket socket) throws RejectedSessionException {
+        return new StreamingSession(socket, this, metrics, tracer, maxBody);
     }
 
-    @Path("/v0/status")
+    @Override
+    public void handleRequest(Request request, HttpSession session) throws IOException {
+        final String header = request.getHeader(TRACE);
+        long trace = Tracer.NONE;
+        if (header != null) {
+            try {
+                trace = Tracer.parse(header);
+            } catch (NumberFormatException e) {
+                // Not ours, sampled as any other
+            }
+        }
+        final boolean proxied = request.getHeader(PROXIED) != null;
+        if (trace == Tracer.NONE && !proxied) {
+            trace = tracer.sample();
+        }
+        ((StreamingSession) session).started(request, trace);
+        tracer.record(trace, proxied ? Tracer.PROXIED : Tracer.RECEIVED, request.getMethod());
+        super.handleRequest(request, session);
+    }
+
+    /**
+     * Unknown paths are a client error, not a missing entity.
+     */
+    @Override
+    public void handleDefault(Request request, HttpSession session) throws IOException {
+        session.sendError(Response.BAD_REQUEST, null);
+    }
+
+    private static long trace(@NotNull HttpSession session) {
+        return ((StreamingSession) session).trace();
+    }
+
+    /**
+     * {@code GET [?limit=]} answers the slowest sampled client requests this node coordinated as JSON,
+     * with the phases every node went through for them, times in microseconds from the node's first phase.
+     * A coordinator gets the events of its peers by {@code POST} with the trace ids as longs.
+     */
+    @Path(TRACES)
+    public void traces(Request request, HttpSession session) throws IOException {
+        if (request.getMethod() == Request.METHOD_POST && request.getHeader(PROXIED) != null) {
+            final long[] traces;
+            try {
+                traces = longs(request.getBody() == null ? Response.EMPTY : request.getBody());
+            } catch (IllegalArgumentException e) {
+                session.sendError(Response.BAD_REQUEST, e.getMessage());
+                return;
+            }
+            session.sendResponse(Response.ok(Tracer.encode(tracer.events(traces))));
+            return;
+        }
+        if (request.getMethod() != Request.METHOD_GET) {
+            session.sendError(Response.BAD_REQUEST, null);
+            return;
+        }
+        final int limit;
+        try {
+            final String value = request.getParameter(LIMIT);
+            limit = value == null ? DEFAULT_TRACES : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            session.sendError(Response.BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (limit < 1 || limit > MAX_TRACES) {
+            session.sendError(Response.BAD_REQUEST, "Limit out of [1, " + MAX_TRACES + "]");
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                final long[] slowest = tracer.slowest(limit);
+                final List<String> nodes = placement.nodes();
+                final List<Supplier<List<Tracer.Event>>> calls = new ArrayList<>(nodes.size());
+                for (final String node : nodes) {
+                    calls.add(node.equals(self) ? () -> tracer.events(slowest) : () -> remoteEvents(node, slowest));
+                }
+                coordinator.all(calls).whenComplete((answers, failure) -> {
+                    if (failure != null) {
+                        send(session, failed(failure));
+                        return;
+                    }
+                    final Map<String, List<Tracer.Event>> events = new LinkedHashMap<>();
+                    for (int i = 0; i < nodes.size(); i++) {
+                        if (answers.get(i) != null) {
+                            events.put(nodes.get(i), answers.get(i));
+                        }
+                    }
+                    final Response response = new Response(
+                            Response.OK,
+                            Tracer.json(slowest, events, nodes).getBytes(StandardCharsets.UTF_8));
+                    response.addHeader("Content-Type: application/json");
+                    send(session, response);
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            session.sendError(Response.SERVICE_UNAVAILABLE, null);
+        }
+    }
+
+    /**
+     * @return the peer's events of the traces or {@code null} if it is unreachable
+     */
+    @Nullable
+    private List<Tracer.Event> remoteEvents(@NotNull String node, @NotNull long[] traces) {
+        try {
+            final Response response = peers.get(node).post(TRACES, bytes(traces), PROXIED_HEADER);
+            return response.getStatus() == 200 ? Tracer.decode(response.getBody()) : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * {@code GET [?format=json]} reports request and storage latencies, counters and queue depths
+     * of this node in the Prometheus text format or as JSON.
+     */
+    @Path(STATS)
+    public void stats(Request request, HttpSession session) throws IOException {
+        if (request.getMethod() != Request.METHOD_GET) {
+            session.sendError(Response.BAD_REQUEST, null);
+            return;
+        }
+        final Response response;
+        if ("json".equals(request.getParameter(FORMAT))) {
+            response = new Response(Response.OK, metrics.json().getBytes(StandardCharsets.UTF_8));
+            response.addHeader("Content-Type: application/json");
+        } else {
+            response = new Response(Response.OK, metrics.prometheus().getBytes(StandardCharsets.UTF_8));
+            response.addHeader("Content-Type: text/plain; version=0.0.4");
+        }
+        session.sendResponse(response);
+    }
+
+    @Path(STATUS)
     public void status(Request request, HttpSession session) throws IOException {
 
         if (request.getMethod() == Request.METHOD_GET) {
@@ -29,30 +438,272 @@ public class PersistentKVService extends HttpServer implements KVService {
     }
 
 
+    /**
+     * {@code GET} reports the compaction status of the local storage,
+     * {@code POST [?major=true]} starts a compaction.
+     */
+    @Path("/v0/compaction")
+    public void compaction(Request request, HttpSession session) throws IOException {
+        final LsmKVDao lsm = KVDaoDecorator.find(kvDao, LsmKVDao.class);
+        if (lsm == null) {
+            session.sendError(Response.NOT_FOUND, "Storage doesn't compact");
+            return;
+        }
+        switch (request.getMethod()) {
+            case Request.METHOD_GET:
+                final CompactionStatus status = lsm.compactionStatus();
+                session.sendResponse(Response.ok(String.format(
+                        Locale.ROOT,
+                        "{\"running\":%b,\"tables\":%d,\"tableBytes\":%d,\"compactions\":%d,"
+                                + "\"bytesRead\":%d,\"bytesWritten\":%d,"
+                                + "\"writeAmplification\":%.3f,\"readAmplification\":%.3f}",
+                        status.isRunning(),
+                        status.getTables(),
+                        status.getTableBytes(),
+                        status.getCompactions(),
+                        status.getCompactionBytesRead(),
+                        status.getCompactionBytesWritten(),
+                        status.getWriteAmplification(),
+                        status.getReadAmplification())));
+                break;
+            case Request.METHOD_POST:
+                lsm.compact(Boolean.parseBoolean(request.getParameter(MAJOR)));
+                session.sendResponse(new Response(Response.ACCEPTED, Response.EMPTY));
+                break;
+            default:
+                session.sendError(Response.BAD_REQUEST, null);
+                break;
+        }
+    }
+
+    /**
+     * {@code POST ?level=} with the node indices as ints answers the nodes of the tree kept
+     * for the calling peer as longs.
+     */
+    @Path(MERKLE_TREE)
+    public void merkleTree(Request request, HttpSession session) throws IOException {
+        internal(request, session, (antiEntropy, node, body) -> {
+            final String level = request.getParameter(LEVEL);
+            if (level == null) {
+                return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            }
+            final long[] nodes = antiEntropy.tree(node, Integer.parseInt(level), ints(body));
+            final ByteBuffer answer = ByteBuffer.allocate(nodes.length * Long.BYTES);
+            answer.asLongBuffer().put(nodes);
+            return Response.ok(answer.array());
+        });
+    }
+
+    /**
+     * {@code POST} with {@code count:int}, the buckets as ints and the index key of the last version
+     * received answers the next page of the local versions in them shared with the calling peer.
+     */
+    @Path(MERKLE_ENTRIES)
+    public void merkleEntries(Request request, HttpSession session) throws IOException {
+        internal(request, session, (antiEntropy, node, body) -> {
+            final ByteBuffer in = ByteBuffer.wrap(body);
+            final int count = in.remaining() < Integer.BYTES ? -1 : in.getInt();
+            if (count < 0 || count > in.remaining() / Integer.BYTES) {
+                throw new IllegalArgumentException("Malformed buckets");
+            }
+            final int[] buckets = new int[count];
+            in.asIntBuffer().get(buckets);
+            in.position(in.position() + count * Integer.BYTES);
+            return Response.ok(antiEntropy.entries(node, buckets, in.hasRemaining() ? in.slice() : null));
+        });
+    }
+
+    private interface Internal {
+        @NotNull
+        Response handle(@NotNull AntiEntropy antiEntropy, @NotNull String node, @NotNull byte[] body) throws IOException;
+    }
+
+    private void internal(Request request, HttpSession session, @NotNull Internal handler) throws IOException {
+        final AntiEntropy antiEntropy = this.antiEntropy;
+        final String node = request.getHeader(NODE);
+        if (antiEntropy == null || node == null) {
+            session.sendError(Response.NOT_FOUND, null);
+            return;
+        }
+        if (request.getMethod() != Request.METHOD_POST) {
+            session.sendError(Response.BAD_REQUEST, null);
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                Response response;
+                try {
+                    response = handler.handle(
+                            antiEntropy,
+                            node.trim(),
+                            request.getBody() == null ? Response.EMPTY : request.getBody());
+                } catch (IllegalArgumentException e) {
+                    response = new Response(Response.BAD_REQUEST, Response.EMPTY);
+                } catch (IOException | UncheckedIOException e) {
+                    response = new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+                }
+                send(session, response);
+            });
+        } catch (RejectedExecutionException e) {
+            session.sendError(Response.SERVICE_UNAVAILABLE, null);
+        }
+    }
+
+    @NotNull
+    private static int[] ints(@NotNull byte[] body) {
+        if (body.length % Integer.BYTES != 0) {
+            throw new IllegalArgumentException("Not a list of ints");
+        }
+        final int[] ints = new int[body.length / Integer.BYTES];
+        ByteBuffer.wrap(body).asIntBuffer().get(ints);
+        return ints;
+    }
+
+    @NotNull
+    private static byte[] bytes(@NotNull int[] ints) {
+        final ByteBuffer bytes = ByteBuffer.allocate(ints.length * Integer.BYTES);
+        bytes.asIntBuffer().put(ints);
+        return bytes.array();
+    }
+
+    /**
+     * @return the stored form of a key: UTF-8 bytes of the {@code id} parameter, as placed
+     */
+    @NotNull
+    private static byte[] bytes(@NotNull String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @throws IllegalArgumentException if it isn't an even number of hex digits
+     */
+    @NotNull
+    private static byte[] hex(@NotNull String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits");
+        }
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(hex.charAt(2 * i), 16);
+            final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not hex: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    @NotNull
+    private static long[] longs(@NotNull byte[] body) {
+        if (body.length % Long.BYTES != 0) {
+            throw new IllegalArgumentException("Not a list of longs");
+        }
+        final long[] longs = new long[body.length / Long.BYTES];
+        ByteBuffer.wrap(body).asLongBuffer().get(longs);
+        return longs;
+    }
+
+    @NotNull
+    private static byte[] bytes(@NotNull long[] longs) {
+        final ByteBuffer bytes = ByteBuffer.allocate(longs.length * Long.BYTES);
+        bytes.asLongBuffer().put(longs);
+        return bytes.array();
+    }
+
+    /**
+     * Headers of a call to a replica on behalf of a request, carrying its trace.
+     */
+    @NotNull
+    private static String[] proxied(long trace, @NotNull String... headers) {
+        final String[] all = Arrays.copyOf(headers, headers.length + (trace == Tracer.NONE ? 1 : 2));
+        all[headers.length] = PROXIED_HEADER;
+        if (trace != Tracer.NONE) {
+            all[headers.length + 1] = TRACE + Tracer.format(trace);
+        }
+        return all;
+    }
+
     @Path("/v0/entity")
     public void entity(Request request, HttpSession session) throws IOException {
+        final long trace = trace(session);
+        try {
+            workers.execute(() -> {
+                tracer.record(trace, Tracer.STARTED, 0);
+                try {
+                    handleEntity(request, session, trace);
+                } catch (IOException e) {
+                    session.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            session.sendError(Response.SERVICE_UNAVAILABLE, null);
+        }
+    }
 
-        String key = request.getParameter(ID);
+    private void handleEntity(Request request, HttpSession session, long trace) throws IOException {
+
+        final String key;
+        try {
+            key = request.getParameter(ID);
+        } catch (IllegalArgumentException e) {
+            // Malformed escapes
+            session.sendError(Response.BAD_REQUEST, e.getMessage());
+            return;
+        }
 
         if (key == null || key.isEmpty()) {
             session.sendError(Response.BAD_REQUEST, null);
             return;
         }
 
+        if (request.getHeader(PROXIED) != null) {
+            final long timestamp;
+            final long expiresAt;
+            final int replicas;
+            try {
+                timestamp = timestamp(request);
+                final String header = request.getHeader(EXPIRES_AT);
+                expiresAt = header == null ? ExpiringKVDao.NEVER : Long.parseLong(header.trim());
+                replicas = replicas(request);
+            } catch (IllegalArgumentException e) {
+                session.sendError(Response.BAD_REQUEST, e.getMessage());
+                return;
+            }
+            tracer.record(trace, Tracer.STORAGE, 0);
+            final Response response = local(
+                    request.getMethod(),
+                    bytes(key),
+                    request.getBody(),
+                    timestamp,
+                    expiresAt,
+                    replicas);
+            tracer.record(trace, Tracer.STORAGE_DONE, 0);
+            send(session, response);
+            return;
+        }
+
+        final ReplicationFactor rf;
+        final long ttlMillis;
+        try {
+            rf = ReplicationFactor.parse(request.getParameter(REPLICAS), placement.size());
+            ttlMillis = ttlMillis(request);
+        } catch (IllegalArgumentException e) {
+            session.sendError(Response.BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (ttlMillis > 0 && !(kvDao instanceof ExpiringKVDao)) {
+            session.sendError(NOT_IMPLEMENTED, "Storage doesn't expire values");
+            return;
+        }
+
         switch (request.getMethod()) {
 
             case Request.METHOD_GET:
-                session.sendResponse(new Response(Response.OK, kvDao.get(key.getBytes())));
-                break;
-
             case Request.METHOD_PUT:
-                kvDao.upsert(key.getBytes(), request.getBody());
-                session.sendResponse(new Response(Response.CREATED, Response.EMPTY));
-                break;
-
             case Request.METHOD_DELETE:
-                kvDao.remove(key.getBytes());
-                session.sendResponse(new Response(Response.ACCEPTED, Response.EMPTY));
+                replicate(request.getMethod(), key, request.getBody(), rf, ttlMillis, trace)
+                        .whenComplete((response, failure) -> send(session, failure == null ? response : failed(failure)));
                 break;
 
             default:
@@ -62,5 +713,1121 @@ public class PersistentKVService extends HttpServer implements KVService {
 
     }
 
+    /**
+     * @return version of a write sent by a coordinator, a new one without it
+     * @throws NumberFormatException if the version isn't a number
+     */
+    private long timestamp(@NotNull Request request) {
+        final String header = request.getHeader(TIMESTAMP);
+        if (header == null) {
+            return clock.now();
+        }
+        final long timestamp = Long.parseLong(header.trim());
+        clock.update(timestamp);
+        return timestamp;
+    }
+
+    /**
+     * @return replication factor of a write sent by a coordinator, every node without it
+     * @throws IllegalArgumentException if it isn't a number of nodes
+     */
+    private int replicas(@NotNull Request request) {
+        final String header = request.getHeader(REPLICATION);
+        if (header == null) {
+            return placement.size();
+        }
+        final int replicas = Integer.parseInt(header.trim());
+        if (replicas < 1 || replicas > placement.size()) {
+            throw new IllegalArgumentException("Replicas out of [1, " + placement.size() + "]: " + replicas);
+        }
+        return replicas;
+    }
+
+    /**
+     * {@code POST [?replicas=ack/from]} with operations encoded as an {@link EntityBatch}
+     * answers their results in the same order. The writes are applied first, then the reads,
+     * each operation is acknowledged by its own replicas.
+     * <p>
+     * {@code GET ?start=[&end=]} streams the keys from {@code start} inclusive to {@code end} exclusive
+     * in byte order as chunks of {@code keyLength:int valueLength:int key value}, merged from all the nodes.
+     * Needs an ordered storage.
+     */
+    @Path(ENTITIES)
+    public void entities(Request request, HttpSession session) throws IOException {
+        if (request.getMethod() != Request.METHOD_POST && request.getMethod() != Request.METHOD_GET) {
+            session.sendError(Response.BAD_REQUEST, null);
+            return;
+        }
+        final long trace = trace(session);
+        try {
+            workers.execute(() -> {
+                tracer.record(trace, Tracer.STARTED, 0);
+                try {
+                    if (request.getMethod() == Request.METHOD_GET) {
+                        handleRange(request, session, trace);
+                    } else {
+                        handleEntities(request, session, trace);
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    session.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            session.sendError(Response.SERVICE_UNAVAILABLE, null);
+        }
+    }
+
+    private void handleEntities(Request request, HttpSession session, long trace) throws IOException {
+        final List<EntityBatch.Operation> operations;
+        final ReplicationFactor rf;
+        try {
+            operations = EntityBatch.parse(request.getBody() == null ? Response.EMPTY : request.getBody());
+            rf = ReplicationFactor.parse(request.getParameter(REPLICAS), placement.size());
+        } catch (IllegalArgumentException e) {
+            session.sendError(Response.BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        if (request.getHeader(PROXIED) != null) {
+            final long timestamp;
+            final long expiresAt;
+            final int replicas;
+            try {
+                timestamp = timestamp(request);
+                final String header = request.getHeader(EXPIRES_AT);
+                expiresAt = header == null ? ExpiringKVDao.NEVER : Long.parseLong(header.trim());
+                replicas = replicas(request);
+            } catch (IllegalArgumentException e) {
+                session.sendError(Response.BAD_REQUEST, e.getMessage());
+                return;
+            }
+            tracer.record(trace, Tracer.STORAGE, 0);
+            final EntityBatch.Result[] results = local(operations, timestamp, expiresAt, replicas);
+            tracer.record(trace, Tracer.STORAGE_DONE, 0);
+            send(session, Response.ok(EntityBatch.encode(results)));
+            return;
+        }
+
+        replicate(operations, rf, trace).whenComplete((results, failure) -> send(
+                session,
+                failure == null ? Response.ok(EntityBatch.encode(results)) : failed(failure)));
+    }
+
+    private void handleRange(Request request, HttpSession session, long trace) throws IOException {
+        final String start;
+        final String end;
+        final String after;
+        try {
+            start = request.getParameter(START);
+            end = request.getParameter(END);
+            after = request.getParameter(AFTER);
+        } catch (IllegalArgumentException e) {
+            // Malformed escapes
+            session.sendError(Response.BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (start == null || start.isEmpty()) {
+            session.sendError(Response.BAD_REQUEST, null);
+            return;
+        }
+        final byte[] skipped;
+        try {
+            skipped = after == null ? null : hex(after);
+        } catch (IllegalArgumentException e) {
+            session.sendError(Response.BAD_REQUEST, e.getMessage());
+            return;
+        }
+        final ByteBuffer from = ByteBuffer.wrap(skipped == null ? bytes(start) : skipped);
+        final ByteBuffer to = end == null || end.isEmpty() ? null : ByteBuffer.wrap(bytes(end));
+
+        final long started = System.nanoTime();
+        tracer.record(trace, Tracer.STORAGE, 0);
+        final Iterator<Map.Entry<ByteBuffer, Value>> local;
+        try {
+            local = kvDao.range(from, to);
+        } catch (UnsupportedOperationException e) {
+            session.sendError(NOT_IMPLEMENTED, e.getMessage());
+            return;
+        }
+
+        if (request.getHeader(PROXIED) != null) {
+            final byte[] page = page(local, skipped);
+            metrics.dao(Metrics.DAO_RANGE, System.nanoTime() - started);
+            tracer.record(trace, Tracer.STORAGE_DONE, 0);
+            send(session, Response.ok(page));
+            return;
+        }
+        metrics.dao(Metrics.DAO_RANGE, System.nanoTime() - started);
+        tracer.record(trace, Tracer.STORAGE_DONE, 0);
+
+        final List<Iterator<Map.Entry<ByteBuffer, Value>>> sources = new ArrayList<>(placement.size());
+        sources.add(local);
+        for (final String node : placement.nodes()) {
+            if (!node.equals(self)) {
+                final RemoteRange remote = new RemoteRange(node, start, end, trace);
+                if (!remote.fetch()) {
+                    session.sendError(Response.GATEWAY_TIMEOUT, null);
+                    return;
+                }
+                sources.add(remote);
+            }
+        }
+        final Iterator<Map.Entry<ByteBuffer, Value>> merged = new MergeIterator(sources);
+        final ChunkedStream stream = new ChunkedStream(session, STREAM_TIMEOUT_MILLIS);
+        while (merged.hasNext()) {
+            final Map.Entry<ByteBuffer, Value> entry = merged.next();
+            final Value value = entry.getValue();
+            if (value.isRemoved()) {
+                continue;
+            }
+            stream.writeInt(entry.getKey().remaining());
+            stream.writeInt(value.getBuffer().remaining());
+            stream.write(entry.getKey());
+            stream.write(value.getBuffer());
+        }
+        stream.finish();
+    }
+
+    /**
+     * @param after key returned last, skipped
+     * @return {@link VersionRecords} of the range for a coordinator, at least one
+     * and as many as fit into {@link #PAGE_SIZE} bytes
+     */
+    @NotNull
+    private static byte[] page(
+            @NotNull Iterator<Map.Entry<ByteBuffer, Value>> range,
+            @Nullable byte[] after) throws IOException {
+        final ByteBuffer skipped = after == null ? null : ByteBuffer.wrap(after);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        int size = 0;
+        while (size < PAGE_SIZE && range.hasNext()) {
+            final Map.Entry<ByteBuffer, Value> entry = range.next();
+            if (!entry.getKey().equals(skipped)) {
+                size += VersionRecords.write(out, entry.getKey(), entry.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A replica's part of a range, fetched a page at a time as it is consumed.
+     */
+    private final class RemoteRange implements Iterator<Map.Entry<ByteBuffer, Value>> {
+        @NotNull
+        private final String node;
+        @NotNull
+        private final String start;
+        @Nullable
+        private final String end;
+        @NotNull
+        private ByteBuffer page = ByteBuffer.wrap(Response.EMPTY);
+        @Nullable
+        private ByteBuffer last;
+        @Nullable
+        private Map.Entry<ByteBuffer, Value> next;
+        private boolean done;
+        private final long trace;
+
+        RemoteRange(@NotNull String node, @NotNull String start, @Nullable String end, long trace) {
+            this.node = node;
+            this.start = start;
+            this.end = end;
+            this.trace = trace;
+        }
+
+        /**
+         * Fetches the page following the last key returned, an empty one ends the range.
+         *
+         * @return {@code false} if the replica failed to answer
+         */
+        boolean fetch() {
+            final StringBuilder uri = new StringBuilder(ENTITIES)
+                    .append('?').append(START).append(URLEncoder.encode(start));
+            if (end != null) {
+                uri.append('&').append(END).append(URLEncoder.encode(end));
+            }
+            if (last != null) {
+                uri.append('&').append(AFTER);
+                for (int i = last.position(); i < last.limit(); i++) {
+                    final byte b = last.get(i);
+                    uri.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                }
+            }
+            final Response response;
+            tracer.record(trace, Tracer.PEER, peer(trace, node));
+            try {
+                response = peers.get(node).get(uri.toString(), proxied(trace));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                return false;
+            } finally {
+                tracer.record(trace, Tracer.PEER_DONE, peer(trace, node));
+            }
+            if (response.getStatus() != 200) {
+                return false;
+            }
+            page = ByteBuffer.wrap(response.getBody());
+            done = !page.hasRemaining();
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !done) {
+                next = VersionRecords.read(page);
+                if (next == null && !fetch()) {
+                    throw new UncheckedIOException(new IOException("Range failed on " + node));
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<ByteBuffer, Value> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<ByteBuffer, Value> result = next;
+            next = null;
+            last = result.getKey();
+            return result;
+        }
+    }
+
+    /**
+     * Sends every replica one sub-batch with the operations on the keys it holds and waits
+     * for all of them. All the writes of a batch share one timestamp.
+     */
+    @NotNull
+    private CompletableFuture<EntityBatch.Result[]> replicate(
+            @NotNull List<EntityBatch.Operation> operations,
+            @NotNull ReplicationFactor rf,
+            long trace) {
+        final long timestamp = clock.now();
+        final Map<String, List<Integer>> byNode = new HashMap<>();
+        for (int i = 0; i < operations.size(); i++) {
+            for (final String node : placement.replicas(operations.get(i).key, rf.from)) {
+                byNode.computeIfAbsent(node, n -> new ArrayList<>()).add(i);
+            }
+        }
+        final List<String> nodes = new ArrayList<>(byNode.keySet());
+        final List<Supplier<EntityBatch.Result[]>> calls = new ArrayList<>(nodes.size());
+        for (final String node : nodes) {
+            final List<EntityBatch.Operation> sub = new ArrayList<>(byNode.get(node).size());
+            byNode.get(node).forEach(i -> sub.add(operations.get(i)));
+            calls.add(node.equals(self)
+                    ? () -> traced(trace, null, () -> local(sub, timestamp, ExpiringKVDao.NEVER, rf.from))
+                    : () -> traced(trace, node, () -> remoteOrHint(node, sub, timestamp, rf.from, trace)));
+        }
+        return coordinator.all(calls).thenApply(answers -> {
+            final int[] acks = new int[operations.size()];
+            final EntityBatch.Result[] newest = new EntityBatch.Result[operations.size()];
+            for (int n = 0; n < nodes.size(); n++) {
+                final EntityBatch.Result[] answer = answers.get(n);
+                if (answer == null) {
+                    continue;
+                }
+                final List<Integer> indices = byNode.get(nodes.get(n));
+                for (int j = 0; j < indices.size(); j++) {
+                    final int i = indices.get(j);
+                    final int method = method(operations.get(i).type);
+                    if (!isSuccess(method, answer[j].status)) {
+                        continue;
+                    }
+                    acks[i]++;
+                    if (newest[i] == null || Value.newer(
+                            answer[j].timestamp,
+                            answer[j].status != 200,
+                            newest[i].timestamp,
+                            newest[i].status != 200)) {
+                        newest[i] = answer[j];
+                    }
+                }
+            }
+            final EntityBatch.Result[] results = new EntityBatch.Result[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                if (acks[i] < rf.ack) {
+                    results[i] = new EntityBatch.Result(504);
+                } else if (operations.get(i).isWrite()) {
+                    results[i] = new EntityBatch.Result(newest[i].status, timestamp, null);
+                } else {
+                    if (newest[i].timestamp != Long.MIN_VALUE) {
+                        clock.update(newest[i].timestamp);
+                    }
+                    results[i] = newest[i];
+                }
+            }
+            return results;
+        });
+    }
+
+    private static int method(byte type) {
+        switch (type) {
+            case EntityBatch.GET:
+                return Request.METHOD_GET;
+            case EntityBatch.PUT:
+                return Request.METHOD_PUT;
+            default:
+                return Request.METHOD_DELETE;
+        }
+    }
+
+    /**
+     * @return milliseconds from the {@code expires} parameter of a {@code PUT}, {@code 0} without one
+     * @throws IllegalArgumentException if it isn't a positive number of seconds
+     */
+    private long ttlMillis(@NotNull Request request) {
+        final String expires = request.getParameter(EXPIRES);
+        if (expires == null || request.getMethod() != Request.METHOD_PUT) {
+            return 0;
+        }
+        final long seconds;
+        try {
+            seconds = Long.parseLong(expires);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected seconds: " + expires, e);
+        }
+        if (seconds <= 0 || seconds > TimeUnit.MILLISECONDS.toSeconds(Long.MAX_VALUE / 2)) {
+            throw new IllegalArgumentException("Expiry out of range: " + expires);
+        }
+        return TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * Runs the operation on {@code rf.from} replicas of the key in parallel
+     * and answers as soon as {@code rf.ack} of them succeed. A write is stamped here once,
+     * so every replica stores the same version, and a read answers with the newest one.
+     * A deadline is counted from the stamp, so the replicas expire the value together.
+     *
+     * @param ttlMillis how long a written value lives, {@code 0} for ever
+     */
+    @NotNull
+    private CompletableFuture<Response> replicate(
+            int method,
+            @NotNull String key,
+            @Nullable byte[] body,
+            @NotNull ReplicationFactor rf,
+            long ttlMillis,
+            long trace) {
+        final long timestamp = clock.now();
+        final long expiresAt = ttlMillis == 0 ? ExpiringKVDao.NEVER : HybridClock.millis(timestamp) + ttlMillis;
+        final List<Supplier<Reply>> calls = new ArrayList<>(rf.from);
+        final CompletableFuture<Repair> repairable = new CompletableFuture<>();
+        for (final String node : placement.replicas(key, rf.from)) {
+            calls.add(node.equals(self)
+                    ? () -> traced(trace, null, () -> Reply.of(
+                            node,
+                            local(method, bytes(key), body, timestamp, expiresAt, rf.from)))
+                    : () -> traced(trace, node, () -> Reply.of(
+                            node,
+                            remoteOrHint(node, method, key, body, timestamp, expiresAt, rf.from, trace))));
+        }
+        return coordinator.collect(
+                calls,
+                reply -> isSuccess(method, reply.response.getStatus()),
+                rf.ack,
+                reply -> {
+                    release(reply.response);
+                    if (method == Request.METHOD_GET && isSuccess(method, reply.response.getStatus())) {
+                        repairable.thenAccept(newest -> {
+                            if (newest != null
+                                    && Value.newer(newest.timestamp, newest.removed, reply.timestamp, reply.removed())) {
+                                repair(key, newest, Collections.singletonList(reply.node), rf.from);
+                            }
+                        });
+                    }
+                })
+                .thenApply(answers -> {
+                    if (answers.size() < rf.ack) {
+                        answers.forEach(reply -> release(reply.response));
+                        repairable.complete(null);
+                        return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
+                    }
+                    switch (method) {
+                        case Request.METHOD_GET:
+                            return newest(key, answers, rf.from, repairable);
+                        case Request.METHOD_PUT:
+                            return new Response(Response.CREATED, Response.EMPTY);
+                        default:
+                            return new Response(Response.ACCEPTED, Response.EMPTY);
+                    }
+                });
+    }
+
+    /**
+     * Answers with the newest version and, with the read repair chance, pushes it in the background
+     * to the replicas that answered with an older one, or with the data a tombstone of the same
+     * timestamp replaces. Replicas answering after the quorum
+     * are compared once {@code repairable} completes.
+     *
+     * @param replicas   replication factor of the read, the repair writes are made with
+     * @param repairable completed with the version to push, {@code null} if the read doesn't repair
+     * @return the value of the newest version, {@code 404} if it is a tombstone or no replica has the key
+     */
+    @NotNull
+    private Response newest(
+            @NotNull String key,
+            @NotNull List<Reply> answers,
+            int replicas,
+            @NotNull CompletableFuture<Repair> repairable) {
+        Reply newest = null;
+        for (final Reply answer : answers) {
+            if (answer.timestamp != Long.MIN_VALUE && (newest == null || Value.newer(
+                    answer.timestamp,
+                    answer.removed(),
+                    newest.timestamp,
+                    newest.removed()))) {
+                newest = answer;
+            }
+        }
+        if (newest == null) {
+            answers.forEach(reply -> release(reply.response));
+            repairable.complete(null);
+            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        }
+        clock.update(newest.timestamp);
+
+        final List<String> stale = new ArrayList<>();
+        for (final Reply answer : answers) {
+            if (Value.newer(newest.timestamp, newest.removed(), answer.timestamp, answer.removed())) {
+                stale.add(answer.node);
+            }
+            if (answer != newest) {
+                release(answer.response);
+            }
+        }
+        final Repair version = ThreadLocalRandom.current().nextDouble() < readRepairChance ? Repair.of(newest) : null;
+        if (version != null && !stale.isEmpty()) {
+            repair(key, version, stale, replicas);
+        }
+        repairable.complete(version);
+
+        final Response response = newest.response;
+        if (response.getStatus() != 200) {
+            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        }
+        return response instanceof BodyResponse ? response : new Response(Response.OK, response.getBody());
+    }
+
+    /**
+     * The newest version seen by a read, to be written to the stale replicas.
+     */
+    private static final class Repair {
+        final long timestamp;
+        final boolean removed;
+        /**
+         * {@code null} if the value was read locally: its response body goes to the client,
+         * so it is read again
+         */
+        @Nullable
+        final byte[] body;
+        final long expiresAt;
+
+        private Repair(long timestamp, boolean removed, @Nullable byte[] body, long expiresAt) {
+            this.timestamp = timestamp;
+            this.removed = removed;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return {@code null} for a value kept in a file of its own: those are too large to go
+         * through the heap, anti-entropy brings their replicas up to date
+         */
+        @Nullable
+        static Repair of(@NotNull Reply newest) {
+            if (newest.response instanceof FileResponse) {
+                return null;
+            }
+            return new Repair(
+                    newest.timestamp,
+                    newest.removed(),
+                    newest.response instanceof BodyResponse ? null : newest.response.getBody(),
+                    newest.expiresAt);
+        }
+    }
+
+    private void repair(@NotNull String key, @NotNull Repair newest, @NotNull List<String> stale, int replicas) {
+        try {
+            coordinator.execute(() -> repair(
+                    key,
+                    newest.timestamp,
+                    newest.removed,
+                    newest.body,
+                    newest.expiresAt,
+                    stale,
+                    replicas));
+        } catch (RejectedExecutionException e) {
+            // Stopping or overloaded, a later read finds the replicas stale again
+        }
+    }
+
+    private void repair(
+            @NotNull String key,
+            long newestTimestamp,
+            boolean removed,
+            @Nullable byte[] body,
+            long newestExpiresAt,
+            @NotNull List<String> stale,
+            int replicas) {
+        int method = removed ? Request.METHOD_DELETE : Request.METHOD_PUT;
+        long timestamp = newestTimestamp;
+        byte[] value = body;
+        long expiresAt = newestExpiresAt;
+        if (!removed && value == null) {
+            try {
+                final Value local = kvDao.getVersion(bytes(key));
+                if (local == null) {
+                    return;
+                }
+                method = local.isRemoved() ? Request.METHOD_DELETE : Request.METHOD_PUT;
+                timestamp = local.getTimestamp();
+                value = local.isRemoved() ? null : local.getData();
+                expiresAt = local.isRemoved() ? ExpiringKVDao.NEVER : expiresAt(bytes(key), timestamp);
+            } catch (IOException e) {
+                return;
+            }
+        }
+        for (final String node : stale) {
+            final Response response = node.equals(self)
+                    ? local(method, bytes(key), value, timestamp, expiresAt, replicas)
+                    : remote(node, method, key, value, timestamp, expiresAt, replicas);
+            if (response != null && isSuccess(method, response.getStatus())) {
+                readRepairs.increment();
+            }
+        }
+    }
+
+    /**
+     * Writes pushed to stale replicas by read repair.
+     */
+    public long readRepairs() {
+        return readRepairs.sum();
+    }
+
+    private static void send(@NotNull HttpSession session, @NotNull Response response) {
+        try {
+            session.sendResponse(response);
+        } catch (IOException e) {
+            release(response);
+            session.close();
+        }
+    }
+
+    /**
+     * @return {@code 503} if the replica calls didn't fit into the queue, {@code 500} otherwise
+     */
+    @NotNull
+    private static Response failed(@NotNull Throwable failure) {
+        final Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+        return cause instanceof RejectedExecutionException
+                ? new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY)
+                : new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+    }
+
+    /**
+     * Releases the body of an answer that won't be sent.
+     */
+    private static void release(@NotNull Response response) {
+        if (response instanceof BodyResponse) {
+            ((BodyResponse) response).close();
+        }
+    }
+
+    private static boolean isSuccess(int method, int status) {
+        switch (method) {
+            case Request.METHOD_GET:
+                return status == 200 || status == 404;
+            case Request.METHOD_PUT:
+                return status == 201;
+            case Request.METHOD_DELETE:
+                return status == 202;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Runs the call as a phase of the trace.
+     *
+     * @param node the replica called, {@code null} for the local storage
+     */
+    private <T> T traced(long trace, @Nullable String node, @NotNull Supplier<T> call) {
+        final byte phase = node == null ? Tracer.STORAGE : Tracer.PEER;
+        final int peer = peer(trace, node);
+        tracer.record(trace, phase, peer);
+        try {
+            return call.get();
+        } finally {
+            tracer.record(trace, phase == Tracer.STORAGE ? Tracer.STORAGE_DONE : Tracer.PEER_DONE, peer);
+        }
+    }
+
+    /**
+     * @return index of the node in the topology if the request is traced
+     */
+    private int peer(long trace, @Nullable String node) {
+        return trace == Tracer.NONE || node == null ? 0 : placement.nodes().indexOf(node);
+    }
+
+    /**
+     * @param timestamp version of a write
+     * @param expiresAt deadline of a written value
+     * @param replicas  replication factor of a write
+     */
+    @NotNull
+    private Response local(
+            int method,
+            @NotNull byte[] key,
+            @Nullable byte[] body,
+            long timestamp,
+            long expiresAt,
+            int replicas) {
+        final long started = System.nanoTime();
+        try {
+            switch (method) {
+                case Request.METHOD_GET:
+                    if (kvDao instanceof StreamingKVDao) {
+                        final Blob blob = ((StreamingKVDao) kvDao).open(key);
+                        if (blob != null) {
+                            final Response response = FileResponse.of(blob);
+                            response.addHeader(TIMESTAMP + blob.getTimestamp());
+                            addExpiresAt(response, key, blob.getTimestamp());
+                            return response;
+                        }
+                    }
+                    final Value value = kvDao.getVersion(key);
+                    if (value == null) {
+                        return new Response(Response.NOT_FOUND, Response.EMPTY);
+                    }
+                    final Response response = value.isRemoved()
+                            ? new Response(Response.NOT_FOUND, Response.EMPTY)
+                            : found(value.getBuffer());
+                    response.addHeader(TIMESTAMP + value.getTimestamp());
+                    if (!value.isRemoved()) {
+                        addExpiresAt(response, key, value.getTimestamp());
+                    }
+                    return response;
+                case Request.METHOD_PUT:
+                    final byte[] data = body == null ? Response.EMPTY : body;
+                    if (expiresAt != ExpiringKVDao.NEVER && !(kvDao instanceof ExpiringKVDao)) {
+                        return new Response(NOT_IMPLEMENTED, Response.EMPTY);
+                    }
+                    if (antiEntropy != null) {
+                        antiEntropy.upsert(key, data, timestamp, expiresAt, replicas);
+                    } else if (expiresAt != ExpiringKVDao.NEVER) {
+                        ((ExpiringKVDao) kvDao).upsert(key, data, timestamp, expiresAt);
+                    } else {
+                        kvDao.upsert(key, data, timestamp);
+                    }
+                    return new Response(Response.CREATED, Response.EMPTY);
+                case Request.METHOD_DELETE:
+                    if (antiEntropy == null) {
+                        kvDao.remove(key, timestamp);
+                    } else {
+                        antiEntropy.remove(key, timestamp, replicas);
+                    }
+                    return new Response(Response.ACCEPTED, Response.EMPTY);
+                default:
+                    return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            }
+        } catch (IOException e) {
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        } finally {
+            final long elapsed = System.nanoTime() - started;
+            if (method == Request.METHOD_GET) {
+                metrics.dao(Metrics.DAO_GET, elapsed);
+            } else if (method == Request.METHOD_PUT) {
+                metrics.dao(Metrics.DAO_UPSERT, elapsed);
+            } else if (method == Request.METHOD_DELETE) {
+                metrics.dao(Metrics.DAO_REMOVE, elapsed);
+            }
+        }
+    }
+
+    /**
+     * Applies the writes as one batch, then answers the reads. Writes with a deadline,
+     * as a hint or an anti-entropy push sends them, are applied one by one.
+     *
+     * @param timestamp version of the writes
+     * @param expiresAt deadline of the written values
+     * @param replicas  replication factor of the writes
+     */
+    @NotNull
+    private EntityBatch.Result[] local(
+            @NotNull List<EntityBatch.Operation> operations,
+            long timestamp,
+            long expiresAt,
+            int replicas) {
+        final EntityBatch.Result[] results = new EntityBatch.Result[operations.size()];
+        final long started = System.nanoTime();
+        try {
+            final WriteBatch batch = new WriteBatch();
+            for (int i = 0; i < results.length; i++) {
+                final EntityBatch.Operation operation = operations.get(i);
+                if (!operation.isWrite()) {
+                    continue;
+                }
+                if (expiresAt != ExpiringKVDao.NEVER) {
+                    final Response response = local(
+                            method(operation.type),
+                            operation.key,
+                            operation.value,
+                            timestamp,
+                            expiresAt,
+                            replicas);
+                    results[i] = new EntityBatch.Result(response.getStatus(), timestamp, null);
+                } else if (operation.type == EntityBatch.PUT) {
+                    batch.upsert(operation.key, operation.value == null ? Response.EMPTY : operation.value, timestamp);
+                    results[i] = new EntityBatch.Result(201, timestamp, null);
+                } else {
+                    batch.remove(operation.key, timestamp);
+                    results[i] = new EntityBatch.Result(202, timestamp, null);
+                }
+            }
+            if (antiEntropy == null) {
+                kvDao.write(batch);
+            } else {
+                antiEntropy.write(batch, replicas);
+            }
+            for (int i = 0; i < results.length; i++) {
+                final EntityBatch.Operation operation = operations.get(i);
+                if (operation.isWrite()) {
+                    continue;
+                }
+                final Value value = kvDao.getVersion(operation.key);
+                if (value == null) {
+                    results[i] = new EntityBatch.Result(404);
+                } else if (value.isRemoved()) {
+                    results[i] = new EntityBatch.Result(404, value.getTimestamp(), null);
+                } else {
+                    results[i] = new EntityBatch.Result(200, value.getTimestamp(), value.getBuffer());
+                }
+            }
+        } catch (IOException e) {
+            Arrays.fill(results, new EntityBatch.Result(500));
+        }
+        metrics.dao(Metrics.DAO_BATCH, System.nanoTime() - started);
+        return results;
+    }
+
+    /**
+     * @return deadline of the stored version of the key, {@link ExpiringKVDao#NEVER} if values don't expire
+     */
+    private long expiresAt(@NotNull byte[] key, long timestamp) throws IOException {
+        return kvDao instanceof ExpiringKVDao
+                ? ((ExpiringKVDao) kvDao).expiresAt(key, timestamp)
+                : ExpiringKVDao.NEVER;
+    }
+
+    /**
+     * Sends the deadline of a value read for a coordinator, so read repair writes it along.
+     */
+    private void addExpiresAt(@NotNull Response response, @NotNull byte[] key, long timestamp) throws IOException {
+        final long expiresAt = expiresAt(key, timestamp);
+        if (expiresAt != ExpiringKVDao.NEVER) {
+            response.addHeader(EXPIRES_AT + expiresAt);
+        }
+    }
+
+    /**
+     * Mapped values are written to the socket as they are, heap ones go through the response bytes.
+     */
+    @NotNull
+    private static Response found(@NotNull ByteBuffer value) {
+        if (value.isDirect()) {
+            return new BufferResponse(value);
+        }
+        final byte[] body = new byte[value.remaining()];
+        value.duplicate().get(body);
+        return new Response(Response.OK, body);
+    }
 
+    /**
+     * Same as {@link #remote}, keeping a hint for a write the replica failed, deadline included.
+     */
+    @Nullable
+    private Response remoteOrHint(
+            @NotNull String node,
+            int method,
+            @NotNull String key,
+            @Nullable byte[] body,
+            long timestamp,
+            long expiresAt,
+            int replicas,
+            long trace) {
+        final Response response = remote(node, method, key, body, timestamp, expiresAt, replicas, trace);
+        if ((method == Request.METHOD_PUT || method == Request.METHOD_DELETE)
+                && (response == null || response.getStatus() >= 500)) {
+            hints.add(
+                    node,
+                    bytes(key),
+                    timestamp,
+                    method == Request.METHOD_PUT ? (body == null ? Response.EMPTY : body) : null,
+                    replicas,
+                    expiresAt);
+        }
+        return response;
+    }
+
+    /**
+     * Sends a sub-batch to the replica, keeping hints for its writes if it fails.
+     *
+     * @return the results or {@code null} if the replica is unreachable
+     */
+    @Nullable
+    private EntityBatch.Result[] remoteOrHint(
+            @NotNull String node,
+            @NotNull List<EntityBatch.Operation> operations,
+            long timestamp,
+            int replicas,
+            long trace) {
+        EntityBatch.Result[] results = null;
+        try {
+            final Response response = peers.get(node).post(
+                    ENTITIES,
+                    EntityBatch.encode(operations),
+                    proxied(trace, TIMESTAMP + timestamp, REPLICATION + replicas));
+            if (response.getStatus() == 200) {
+                results = EntityBatch.parseResults(response.getBody(), operations.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // Unreachable
+        }
+        if (results == null) {
+            for (final EntityBatch.Operation operation : operations) {
+                if (operation.isWrite()) {
+                    hints.add(node, operation.key, timestamp, operation.value, replicas, ExpiringKVDao.NEVER);
+                }
+            }
+        }
+        return results;
+    }
+
+    @Nullable
+    private Response remote(
+            @NotNull String node,
+            int method,
+            @NotNull String key,
+            @Nullable byte[] body,
+            long timestamp,
+            long expiresAt,
+            int replicas) {
+        return remote(node, method, key, body, timestamp, expiresAt, replicas, Tracer.NONE);
+    }
+
+    /**
+     * @param expiresAt deadline of a written value
+     * @param replicas  replication factor of a written value
+     * @param trace     of the request the call is made for
+     * @return the replica's response or {@code null} if it is unreachable
+     */
+    @Nullable
+    private Response remote(
+            @NotNull String node,
+            int method,
+            @NotNull String key,
+            @Nullable byte[] body,
+            long timestamp,
+            long expiresAt,
+            int replicas,
+            long trace) {
+        final HttpClient client = peers.get(node);
+        final String uri = ENTITY + URLEncoder.encode(key);
+        try {
+            switch (method) {
+                case Request.METHOD_GET:
+                    return client.get(uri, proxied(trace));
+                case Request.METHOD_PUT:
+                    final byte[] data = body == null ? Response.EMPTY : body;
+                    return expiresAt == ExpiringKVDao.NEVER
+                            ? client.put(uri, data, proxied(trace, TIMESTAMP + timestamp, REPLICATION + replicas))
+                            : client.put(uri, data, proxied(
+                                    trace,
+                                    TIMESTAMP + timestamp,
+                                    EXPIRES_AT + expiresAt,
+                                    REPLICATION + replicas));
+                case Request.METHOD_DELETE:
+                    return client.delete(uri, proxied(trace, TIMESTAMP + timestamp, REPLICATION + replicas));
+                default:
+                    return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a version to the replica as a batch of one: {@link #ENTITIES} takes keys as they are
+     * stored, and those of hints and of the anti-entropy index needn't be UTF-8.
+     *
+     * @param value {@code null} for a remove
+     * @return whether the replica has applied the write
+     */
+    private boolean write(
+            @NotNull String node,
+            @NotNull byte[] key,
+            long timestamp,
+            @Nullable byte[] value,
+            long expiresAt,
+            int replicas) {
+        final EntityBatch.Operation operation = new EntityBatch.Operation(
+                value == null ? EntityBatch.DELETE : EntityBatch.PUT,
+                key,
+                value);
+        try {
+            final Response response = peers.get(node).post(
+                    ENTITIES,
+                    EntityBatch.encode(Collections.singletonList(operation)),
+                    expiresAt == ExpiringKVDao.NEVER
+                            ? proxied(Tracer.NONE, TIMESTAMP + timestamp, REPLICATION + replicas)
+                            : proxied(Tracer.NONE, TIMESTAMP + timestamp, EXPIRES_AT + expiresAt, REPLICATION + replicas));
+            return response.getStatus() == 200
+                    && isSuccess(method(operation.type), EntityBatch.parseResults(response.getBody(), 1)[0].status);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Anti-entropy calls to the peers over the internal endpoints.
+     */
+    private final class MerklePeers implements AntiEntropy.Peers {
+        @Nullable
+        @Override
+        public long[] tree(@NotNull String node, int level, @NotNull int[] indices) {
+            final byte[] body = post(node, MERKLE_TREE + "?" + LEVEL + level, bytes(indices));
+            if (body == null || body.length % Long.BYTES != 0) {
+                return null;
+            }
+            final long[] nodes = new long[body.length / Long.BYTES];
+            ByteBuffer.wrap(body).asLongBuffer().get(nodes);
+            return nodes;
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer entries(@NotNull String node, @NotNull int[] buckets, @Nullable ByteBuffer after) {
+            final ByteBuffer request = ByteBuffer.allocate(
+                    Integer.BYTES * (1 + buckets.length) + (after == null ? 0 : after.remaining()));
+            request.putInt(buckets.length).put(bytes(buckets));
+            if (after != null) {
+                request.put(after.duplicate());
+            }
+            final byte[] body = post(node, MERKLE_ENTRIES, request.array());
+            return body == null ? null : ByteBuffer.wrap(body);
+        }
+
+        @Override
+        public boolean push(
+                @NotNull String node,
+                @NotNull byte[] key,
+                long timestamp,
+                @Nullable byte[] value,
+                int replicas,
+                long expiresAt) {
+            return write(node, key, timestamp, value, expiresAt, replicas);
+        }
+
+        @Nullable
+        private byte[] post(@NotNull String node, @NotNull String uri, @NotNull byte[] body) {
+            try {
+                final Response response = peers.get(node).post(uri, body, NODE + self);
+                return response.getStatus() == 200 ? response.getBody() : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A replica's response with the version it holds, {@link Long#MIN_VALUE} if it has none.
+     */
+    private static final class Reply {
+        @NotNull
+        final String node;
+        @NotNull
+        final Response response;
+        final long timestamp;
+        final long expiresAt;
+
+        private Reply(@NotNull String node, @NotNull Response response, long timestamp, long expiresAt) {
+            this.node = node;
+            this.response = response;
+            this.timestamp = timestamp;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return whether the replica answered with a tombstone or without the key
+         */
+        boolean removed() {
+            return response.getStatus() != 200;
+        }
+
+        /**
+         * @return {@code null}, a failed reply, if there is no response or its version isn't a number
+         */
+        @Nullable
+        static Reply of(@NotNull String node, @Nullable Response response) {
+            if (response == null) {
+                return null;
+            }
+            final String header = response.getHeader(TIMESTAMP);
+            final String deadline = response.getHeader(EXPIRES_AT);
+            try {
+                return new Reply(
+                        node,
+                        response,
+                        header == null ? Long.MIN_VALUE : Long.parseLong(header.trim()),
+                        deadline == null ? ExpiringKVDao.NEVER : Long.parseLong(deadline.trim()));
+            } catch (NumberFormatException e) {
+                release(response);
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        // Interrupting a worker in the storage would close its file channels
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        coordinator.stop();
+        if (antiEntropy != null) {
+            try {
+                antiEntropy.close();
+            } catch (IOException e) {
+                // Versions lost from the index are taken back from the peers
+            }
+        }
+        try {
+            hints.close();
+        } catch (IOException e) {
+            // Hints are durable once added
+        }
+        for (final HttpClient client : peers.values()) {
+            client.close();
+        }
+    }
 }
@@ -0,0 +1,45 @@
+package ru.mail.polis.gskoba;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces a background job to a number of bytes per second.
+ */
+final class RateLimiter {
+
+    private final long bytesPerSecond;
+    private long next = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond {@code 0} for no limit
+     */
+    RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Sleeps until the bytes fit in the rate.
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        final long wait;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            // No credit for idle time beyond a second
+            next = Math.max(next, now - TimeUnit.SECONDS.toNanos(1));
+            wait = next - now;
+            next += bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+}
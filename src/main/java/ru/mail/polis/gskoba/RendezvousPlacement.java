@@ -0,0 +1,103 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Highest random weight (rendezvous) placement of keys on cluster nodes.
+ * <p>
+ * Every node gets a pseudo-random score for a key and the replicas are the nodes with the
+ * highest scores. Replicas for a smaller {@code from} are a prefix of those for a larger one,
+ * and adding or removing a node only moves the keys for which that node is among the winners,
+ * about {@code from / N} of them. A lookup costs one score per node, no ring or virtual nodes
+ * to keep in memory; {@code RendezvousPlacementBenchmark} in the JMH source set measures it.
+ */
+public final class RendezvousPlacement {
+
+    private final String[] nodes;
+    private final long[] seeds;
+
+    public RendezvousPlacement(@NotNull Collection<String> topology) {
+        if (topology.isEmpty()) {
+            throw new IllegalArgumentException("Empty topology");
+        }
+        this.nodes = new TreeSet<>(topology).toArray(new String[0]);
+        this.seeds = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            seeds[i] = BloomFilter.hash(ByteBuffer.wrap(nodes[i].getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * All the nodes, sorted.
+     */
+    @NotNull
+    public List<String> nodes() {
+        return Collections.unmodifiableList(Arrays.asList(nodes));
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @return {@code from} distinct nodes, best first
+     */
+    @NotNull
+    public List<String> replicas(@NotNull String key, int from) {
+        return replicas(key.getBytes(StandardCharsets.UTF_8), from);
+    }
+
+    @NotNull
+    public List<String> replicas(@NotNull byte[] key, int from) {
+        if (from < 1 || from > nodes.length) {
+            throw new IllegalArgumentException("Can't choose " + from + " of " + nodes.length + " nodes");
+        }
+        final long keyHash = BloomFilter.hash(ByteBuffer.wrap(key));
+        final long[] scores = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            scores[i] = score(keyHash, seeds[i]);
+        }
+
+        // Partial selection sort, from is tiny
+        final int[] order = new int[nodes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final List<String> replicas = new ArrayList<>(from);
+        for (int i = 0; i < from; i++) {
+            int best = i;
+            for (int j = i + 1; j < order.length; j++) {
+                if (Long.compareUnsigned(scores[order[j]], scores[order[best]]) > 0) {
+                    best = j;
+                }
+            }
+            final int chosen = order[best];
+            order[best] = order[i];
+            order[i] = chosen;
+            replicas.add(nodes[chosen]);
+        }
+        return replicas;
+    }
+
+    /**
+     * MurmurHash3 finalizer over the combined hashes.
+     */
+    private static long score(long keyHash, long seed) {
+        long h = keyHash ^ seed;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
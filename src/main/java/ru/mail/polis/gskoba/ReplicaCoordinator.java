@@ -0,0 +1,216 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Sends replica requests in parallel and completes as soon as enough of them succeed.
+ * <p>
+ * Late answers aren't part of the result but are still awaited and passed to the caller:
+ * blocking one-nio calls can't be cancelled without breaking the pooled connection,
+ * and they are bounded by the peer timeouts anyway.
+ * <p>
+ * Calls wait for a thread in a bounded queue. Once it is full a request fails with
+ * {@link RejectedExecutionException} rather than piling up behind the slow replicas,
+ * the same load shedding as the worker pool does.
+ */
+final class ReplicaCoordinator {
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param queue calls waiting for a thread before new ones are rejected
+     */
+    ReplicaCoordinator(int threads, int queue) {
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue),
+                new DaemonThreadFactory("replica"));
+    }
+
+    /**
+     * Replica calls waiting for a thread.
+     */
+    int queued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Runs all the calls concurrently. Every call is made even after the result is known,
+     * so writes still reach all the replicas.
+     *
+     * @param success tells a successful answer, {@code null} answers are failures
+     * @return {@code ack} successful answers once they arrive, or fewer once
+     * too many calls have failed for {@code ack} to be reached; completes with
+     * {@link RejectedExecutionException} if the calls don't fit into the queue
+     */
+    @NotNull
+    <T> CompletableFuture<List<T>> collect(
+            @NotNull List<Supplier<T>> calls,
+            @NotNull Predicate<T> success,
+            int ack) {
+        return collect(calls, success, ack, answer -> {
+        });
+    }
+
+    /**
+     * Same as {@link #collect(List, Predicate, int)}, passing the answers that are not part of the result
+     * to {@code discard} so that resources they hold can be released or late answers looked at.
+     */
+    @NotNull
+    <T> CompletableFuture<List<T>> collect(
+            @NotNull List<Supplier<T>> calls,
+            @NotNull Predicate<T> success,
+            int ack,
+            @NotNull Consumer<T> discard) {
+        final CompletableFuture<List<T>> result = new CompletableFuture<>();
+        final Answers<T> answers = new Answers<>(ack, calls.size() - ack);
+
+        for (final Supplier<T> call : calls) {
+            try {
+                executor.execute(() -> {
+                    T answer;
+                    try {
+                        answer = call.get();
+                    } catch (RuntimeException e) {
+                        answer = null;
+                    }
+                    final boolean successful = answer != null && success.test(answer);
+                    final List<T> complete = answers.add(answer, successful);
+                    if (complete != null) {
+                        result.complete(complete);
+                    }
+                    if (answer != null && (!successful || complete == null && answers.isLate(answer))) {
+                        discard.accept(answer);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The calls already queued still run, their answers are discarded as late
+                answers.abort().forEach(discard);
+                result.completeExceptionally(e);
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs all the calls concurrently and completes once every one of them has answered.
+     *
+     * @return the answers in the order of the calls, {@code null} for the failed ones;
+     * completes with {@link RejectedExecutionException} if the calls don't fit into the queue
+     */
+    @NotNull
+    <T> CompletableFuture<List<T>> all(@NotNull List<Supplier<T>> calls) {
+        final List<CompletableFuture<T>> answers = new ArrayList<>(calls.size());
+        for (final Supplier<T> call : calls) {
+            try {
+                answers.add(CompletableFuture.supplyAsync(call, executor).exceptionally(e -> null));
+            } catch (RejectedExecutionException e) {
+                final CompletableFuture<List<T>> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(e);
+                return rejected;
+            }
+        }
+        return CompletableFuture.allOf(answers.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    final List<T> result = new ArrayList<>(answers.size());
+                    answers.forEach(answer -> result.add(answer.join()));
+                    return result;
+                });
+    }
+
+    /**
+     * Runs a background call, such as a repair, on the replica threads.
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    void execute(@NotNull Runnable call) {
+        executor.execute(call);
+    }
+
+    private static final class Answers<T> {
+        private final int ack;
+        private final int maxFailures;
+        private final List<T> successes;
+        private int failures;
+        private boolean done;
+
+        Answers(int ack, int maxFailures) {
+            this.ack = ack;
+            this.maxFailures = maxFailures;
+            this.successes = new ArrayList<>(ack);
+        }
+
+        /**
+         * @return the result once it is known, exactly once
+         */
+        @Nullable
+        synchronized List<T> add(@Nullable T answer, boolean successful) {
+            if (done) {
+                return null;
+            }
+            if (successful) {
+                successes.add(answer);
+            } else {
+                failures++;
+            }
+            if (successes.size() == ack || failures > maxFailures) {
+                done = true;
+                return Collections.unmodifiableList(new ArrayList<>(successes));
+            }
+            return null;
+        }
+
+        /**
+         * Gives up before all the calls are made.
+         *
+         * @return the successful answers so far, which won't be part of a result
+         */
+        @NotNull
+        synchronized List<T> abort() {
+            if (done) {
+                return Collections.emptyList();
+            }
+            done = true;
+            final List<T> discarded = new ArrayList<>(successes);
+            successes.clear();
+            return discarded;
+        }
+
+        /**
+         * @return whether the answer came after the result and is not part of it
+         */
+        synchronized boolean isLate(@NotNull T answer) {
+            return done && !successes.contains(answer);
+        }
+    }
+
+    /**
+     * Waits for the calls already made, they are bounded by the peer timeouts. Interrupting a local call
+     * would close the storage's file channels under it.
+     */
+    void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Parsed {@code replicas=ack/from} request parameter.
+ */
+final class ReplicationFactor {
+
+    final int ack;
+    final int from;
+
+    private ReplicationFactor(int ack, int from) {
+        this.ack = ack;
+        this.from = from;
+    }
+
+    /**
+     * @param value       parameter value or {@code null} for the quorum of the whole cluster
+     * @param clusterSize number of nodes in the topology
+     * @throws IllegalArgumentException if the value is malformed or out of range
+     */
+    @NotNull
+    static ReplicationFactor parse(@Nullable String value, int clusterSize) {
+        if (value == null) {
+            return new ReplicationFactor(clusterSize / 2 + 1, clusterSize);
+        }
+        final int slash = value.indexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException("Expected ack/from: " + value);
+        }
+        final int ack;
+        final int from;
+        try {
+            ack = Integer.parseInt(value.substring(0, slash));
+            from = Integer.parseInt(value.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected ack/from: " + value, e);
+        }
+        if (ack < 1 || from < ack || from > clusterSize) {
+            throw new IllegalArgumentException("Replication factor out of range: " + value);
+        }
+        return new ReplicationFactor(ack, from);
+    }
+}
@@ -0,0 +1,452 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted file of versioned cells.
+ * <p>
+ * Layout: {@code cell* offset* bloomWord* bloomWords:int bloomHashes:int maxTimestamp:long count:long},
+ * where a cell is {@code keyLength:int key timestamp:long valueLength:int value}
+ * ({@code valueLength == -1} marks a tombstone), offsets are {@code long}s pointing
+ * at cells in key order and the Bloom filter covers all the keys of the table.
+ * The whole file is memory mapped, so lookups and the filter don't touch the heap.
+ * The newest timestamp in the table lets a lookup skip it once it has found a newer version.
+ * <p>
+ * A flushed table is named {@code <generation>.sst}, a compacted one {@code <newest>-<oldest>.sst}
+ * after the generations it replaces. It takes the place of the newest of them, and any table
+ * left within its range by a crash is obsolete.
+ * <p>
+ * A table is mapped by a single buffer, so it can't grow over {@link #MAX_SIZE}. A written table
+ * is opened and checked before it gets its final name, a table that can't be opened never
+ * replaces the ones it was merged from.
+ */
+final class SSTable implements Closeable {
+
+    static final String SUFFIX = ".sst";
+    /**
+     * Largest table a {@link MappedByteBuffer} can hold
+     */
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int TOMBSTONE = -1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FOOTER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+
+    private final File file;
+    private final long generation;
+    private final long oldestGeneration;
+    private final FileChannel channel;
+    private final ByteBuffer cells;
+    private final ByteBuffer offsets;
+    private final BloomFilter bloom;
+    private final int count;
+    private final long maxTimestamp;
+    private final long size;
+
+    private SSTable(@NotNull File file, long generation, long oldestGeneration) throws IOException {
+        this.file = file;
+        this.generation = generation;
+        this.oldestGeneration = oldestGeneration;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+        if (size > MAX_SIZE) {
+            channel.close();
+            throw new IOException("Table is too large to map: " + file);
+        }
+        if (size < FOOTER_SIZE) {
+            channel.close();
+            throw new IOException("Truncated table: " + file);
+        }
+        final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        final int footer = (int) size - FOOTER_SIZE;
+        final int bloomWords = mapped.getInt(footer);
+        final int bloomHashes = mapped.getInt(footer + Integer.BYTES);
+        this.maxTimestamp = mapped.getLong(footer + 2 * Integer.BYTES);
+        final long cellCount = mapped.getLong(footer + 2 * Integer.BYTES + Long.BYTES);
+        final long offsetsStart = footer - ((long) bloomWords + cellCount) * Long.BYTES;
+        if (bloomWords < 1 || bloomHashes < 1 || cellCount < 0 || offsetsStart < 0) {
+            channel.close();
+            throw new IOException("Corrupted table footer: " + file);
+        }
+        this.count = (int) cellCount;
+        final int bloomStart = footer - bloomWords * Long.BYTES;
+
+        final ByteBuffer bloom = mapped.duplicate();
+        bloom.position(bloomStart).limit(footer);
+        this.bloom = new BloomFilter(bloom.slice(), bloomHashes);
+
+        final ByteBuffer offsets = mapped.duplicate();
+        offsets.position((int) offsetsStart).limit(bloomStart);
+        this.offsets = offsets.slice();
+
+        final ByteBuffer cells = mapped.duplicate();
+        cells.limit((int) offsetsStart);
+        this.cells = cells.slice();
+    }
+
+    @NotNull
+    static SSTable open(@NotNull File file) throws IOException {
+        return new SSTable(file, generationOf(file), oldestGenerationOf(file));
+    }
+
+    /**
+     * Writes cells sorted by key to a new table in {@code directory}.
+     * The file appears under its final name only when it is complete.
+     *
+     * @param fpp false positive probability of the table's Bloom filter
+     */
+    @NotNull
+    static SSTable write(
+            @NotNull File directory,
+            long generation,
+            @NotNull Iterator<Map.Entry<ByteBuffer, Value>> cells,
+            double fpp) throws IOException {
+        return write(directory, generation, generation, cells, fpp);
+    }
+
+    /**
+     * Writes a table replacing the generations from {@code oldestGeneration} to {@code generation}.
+     */
+    @NotNull
+    static SSTable write(
+            @NotNull File directory,
+            long generation,
+            long oldestGeneration,
+            @NotNull Iterator<Map.Entry<ByteBuffer, Value>> cells,
+            double fpp) throws IOException {
+        final String name = generation == oldestGeneration
+                ? Long.toString(generation)
+                : generation + "-" + oldestGeneration;
+        final File target = new File(directory, name + SUFFIX);
+        final File tmp = new File(directory, name + SUFFIX + TMP_SUFFIX);
+        final File tmpIndex = new File(directory, name + ".idx" + TMP_SUFFIX);
+
+        boolean written = false;
+        try (FileOutputStream dataFile = new FileOutputStream(tmp)) {
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(dataFile, BUFFER_SIZE));
+
+            // Cells go to the table, (offset, key hash) pairs aside until the count is known
+            long count = 0;
+            long maxTimestamp = Long.MIN_VALUE;
+            long position = 0;
+            try (DataOutputStream index = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpIndex), BUFFER_SIZE))) {
+                while (cells.hasNext()) {
+                    final Map.Entry<ByteBuffer, Value> cell = cells.next();
+                    index.writeLong(position);
+                    index.writeLong(BloomFilter.hash(cell.getKey()));
+                    position += writeCell(data, cell.getKey(), cell.getValue());
+                    maxTimestamp = Math.max(maxTimestamp, cell.getValue().getTimestamp());
+                    count++;
+                    if (position > MAX_SIZE) {
+                        throw new IOException("Table would be too large to map: " + target);
+                    }
+                }
+            }
+
+            final int bloomWords = BloomFilter.words(count, fpp);
+            if (position + ((long) bloomWords + count) * Long.BYTES + FOOTER_SIZE > MAX_SIZE) {
+                throw new IOException("Table would be too large to map: " + target);
+            }
+            final int bloomHashes = BloomFilter.hashes(count, bloomWords);
+            final long[] bloom = new long[bloomWords];
+            try (DataInputStream index = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(tmpIndex), BUFFER_SIZE))) {
+                for (long i = 0; i < count; i++) {
+                    data.writeLong(index.readLong());
+                    BloomFilter.add(bloom, bloomHashes, index.readLong());
+                }
+            }
+            for (final long word : bloom) {
+                data.writeLong(word);
+            }
+            data.writeInt(bloomWords);
+            data.writeInt(bloomHashes);
+            data.writeLong(maxTimestamp);
+            data.writeLong(count);
+            data.flush();
+            dataFile.getFD().sync();
+
+            try (SSTable table = new SSTable(tmp, generation, oldestGeneration)) {
+                table.verify(count, position);
+            }
+            written = true;
+        } finally {
+            java.nio.file.Files.deleteIfExists(tmpIndex.toPath());
+            if (!written) {
+                java.nio.file.Files.deleteIfExists(tmp.toPath());
+            }
+        }
+
+        java.nio.file.Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return new SSTable(target, generation, oldestGeneration);
+    }
+
+    /**
+     * Checks the table holds what was written, its first and last cells included.
+     */
+    private void verify(long expectedCount, long cellsSize) throws IOException {
+        if (count != expectedCount || cells.limit() != cellsSize) {
+            throw new IOException("Written table doesn't match its cells: " + file);
+        }
+        if (count > 0) {
+            final int first = offset(0);
+            final int last = offset(count - 1);
+            final int lastKey = cells.getInt(last);
+            final int lastValue = valueLength(last);
+            final int end = last + Integer.BYTES + lastKey + Long.BYTES + Integer.BYTES
+                    + (lastValue == TOMBSTONE ? 0 : lastValue);
+            if (first != 0 || end != cellsSize) {
+                throw new IOException("Written table doesn't match its cells: " + file);
+            }
+        }
+    }
+
+    private static int writeCell(
+            @NotNull DataOutputStream out,
+            @NotNull ByteBuffer key,
+            @NotNull Value value) throws IOException {
+        final int keyLength = key.remaining();
+        out.writeInt(keyLength);
+        write(out, key);
+        out.writeLong(value.getTimestamp());
+        if (value.isRemoved()) {
+            out.writeInt(TOMBSTONE);
+            return Integer.BYTES + keyLength + Long.BYTES + Integer.BYTES;
+        }
+        final ByteBuffer data = value.getBuffer();
+        final int valueLength = data.remaining();
+        out.writeInt(valueLength);
+        write(out, data);
+        return Integer.BYTES + keyLength + Long.BYTES + Integer.BYTES + valueLength;
+    }
+
+    private static void write(
+            @NotNull DataOutputStream out,
+            @NotNull ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            final ByteBuffer b = buffer.duplicate();
+            final byte[] chunk = new byte[Math.min(b.remaining(), BUFFER_SIZE)];
+            while (b.hasRemaining()) {
+                final int length = Math.min(b.remaining(), chunk.length);
+                b.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+
+    static boolean isTable(@NotNull File file) {
+        final String name = file.getName();
+        return name.endsWith(SUFFIX)
+                && name.substring(0, name.length() - SUFFIX.length()).matches("[0-9]+(-[0-9]+)?");
+    }
+
+    static long generationOf(@NotNull File file) {
+        final String[] range = range(file);
+        return Long.parseLong(range[0]);
+    }
+
+    private static long oldestGenerationOf(@NotNull File file) {
+        final String[] range = range(file);
+        return Long.parseLong(range[range.length - 1]);
+    }
+
+    @NotNull
+    private static String[] range(@NotNull File file) {
+        final String name = file.getName();
+        return name.substring(0, name.length() - SUFFIX.length()).split("-");
+    }
+
+    /**
+     * The newest generation this table holds data of, tables are ordered by it.
+     */
+    long generation() {
+        return generation;
+    }
+
+    long oldestGeneration() {
+        return oldestGeneration;
+    }
+
+    /**
+     * @return whether the other table is a leftover of a compaction that produced this one
+     */
+    boolean replaces(@NotNull SSTable other) {
+        return other != this
+                && oldestGeneration <= other.oldestGeneration
+                && other.generation <= generation
+                && (oldestGeneration != other.oldestGeneration || generation != other.generation);
+    }
+
+    /**
+     * Bytes on disk.
+     */
+    long sizeInBytes() {
+        return size;
+    }
+
+    @NotNull
+    File file() {
+        return file;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * Timestamp of the newest version in the table.
+     */
+    long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    /**
+     * @param hash {@link BloomFilter#hash(ByteBuffer)} of the key
+     * @return {@code false} if the key is definitely absent
+     */
+    boolean mightContain(long hash) {
+        return bloom.mightContain(hash);
+    }
+
+    /**
+     * Cells in key order, keys and values are views of the mapped file.
+     */
+    @NotNull
+    Iterator<Map.Entry<ByteBuffer, Value>> iterator() {
+        return iterator(0, count);
+    }
+
+    /**
+     * Cells from {@code from} inclusive to {@code to} exclusive ({@code null} for the end) in key order.
+     */
+    @NotNull
+    Iterator<Map.Entry<ByteBuffer, Value>> iterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to) {
+        return iterator(lowerBound(from), to == null ? count : lowerBound(to));
+    }
+
+    @NotNull
+    private Iterator<Map.Entry<ByteBuffer, Value>> iterator(int start, int end) {
+        return new Iterator<Map.Entry<ByteBuffer, Value>>() {
+            private int index = start;
+
+            @Override
+            public boolean hasNext() {
+                return index < end;
+            }
+
+            @Override
+            public Map.Entry<ByteBuffer, Value> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int offset = offset(index++);
+                final ByteBuffer key = cells.duplicate();
+                key.position(offset + Integer.BYTES).limit(offset + Integer.BYTES + cells.getInt(offset));
+                return new AbstractMap.SimpleImmutableEntry<>(key.slice(), valueAt(offset));
+            }
+        };
+    }
+
+    @Nullable
+    Value get(@NotNull ByteBuffer key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int offset = offset(mid);
+            final int cmp = compareKey(offset, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return valueAt(offset);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return index of the first cell with a key not less than the given one
+     */
+    private int lowerBound(@NotNull ByteBuffer key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compareKey(offset(mid), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int offset(int index) {
+        return (int) offsets.getLong(index * Long.BYTES);
+    }
+
+    /**
+     * Same ordering as {@link ByteBuffer#compareTo(ByteBuffer)} without slicing.
+     */
+    private int compareKey(int offset, @NotNull ByteBuffer key) {
+        final int keyLength = cells.getInt(offset);
+        final int start = offset + Integer.BYTES;
+        final int length = Math.min(keyLength, key.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(cells.get(start + i), key.get(key.position() + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return keyLength - key.remaining();
+    }
+
+    private int valueLength(int offset) {
+        return cells.getInt(offset + Integer.BYTES + cells.getInt(offset) + Long.BYTES);
+    }
+
+    @NotNull
+    private Value valueAt(int offset) {
+        int position = offset + Integer.BYTES + cells.getInt(offset);
+        final long timestamp = cells.getLong(position);
+        position += Long.BYTES;
+        final int valueLength = cells.getInt(position);
+        if (valueLength == TOMBSTONE) {
+            return Value.tombstone(timestamp);
+        }
+        position += Integer.BYTES;
+        final ByteBuffer value = cells.duplicate();
+        value.position(position).limit(position + valueLength);
+        return Value.present(timestamp, value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,289 @@
+package ru.mail.polis.gskoba;
+
+import one.nio.http.HttpServerConfig;
+import one.nio.server.AcceptorConfig;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Network and request handling settings of a node.
+ * <p>
+ * Read from a properties file named by {@code -Dkv.config} (if any) overridden by system properties:
+ * <ul>
+ * <li>{@code kv.auto} -- size everything not set explicitly from the CPU count</li>
+ * <li>{@code kv.selectors}, {@code kv.affinity} -- selector threads and pinning them to cores</li>
+ * <li>{@code kv.acceptors}, {@code kv.reusePort} -- acceptors bound to the port, several need reuse-port</li>
+ * <li>{@code kv.backlog}, {@code kv.recvBuf}, {@code kv.sendBuf}, {@code kv.noDelay} -- socket options</li>
+ * <li>{@code kv.keepAlive} -- seconds an idle keep-alive connection is kept open</li>
+ * <li>{@code kv.maxBody} -- largest request body accepted, bytes, each is read into the heap</li>
+ * <li>{@code kv.workers}, {@code kv.workers.queue} -- request workers and their queue depth</li>
+ * <li>{@code kv.replica.threads}, {@code kv.replica.queue} -- threads making replica calls and calls waiting for them</li>
+ * <li>{@code kv.peer.timeout}, {@code kv.peer.timeout.<endpoint>} -- replica call timeouts, milliseconds</li>
+ * <li>{@code kv.readRepair.chance} -- probability that a read repairs the stale replicas it sees</li>
+ * <li>{@code kv.hints.dir} -- where writes for unavailable replicas are kept, under the data directory by default</li>
+ * <li>{@code kv.hints.maxBytes}, {@code kv.hints.rate} -- hints kept per replica and their replay rate, bytes per second</li>
+ * <li>{@code kv.antiEntropy.interval} -- seconds between Merkle tree comparisons with every peer, 0 turns them off</li>
+ * <li>{@code kv.tombstone.grace} -- seconds a tombstone is kept by the storage and repaired for, a day by default</li>
+ * <li>{@code kv.trace.sample}, {@code kv.trace.events} -- share of client requests traced and trace events kept</li>
+ * </ul>
+ * Zero selectors, buffers or keep-alive mean the one-nio defaults.
+ */
+public final class ServerSettings {
+
+    public static final String CONFIG_PROPERTY = "kv.config";
+
+    private static final String PREFIX = "kv.";
+    private static final String PEER_TIMEOUT = "peer.timeout";
+
+    private final int selectors;
+    private final boolean affinity;
+    private final int acceptors;
+    private final boolean reusePort;
+    private final int backlog;
+    private final int recvBuf;
+    private final int sendBuf;
+    private final boolean noDelay;
+    private final int keepAlive;
+    private final int maxBody;
+    private final int workers;
+    private final int workerQueue;
+    private final int replicaThreads;
+    private final int replicaQueue;
+    private final int peerTimeout;
+    private final Map<String, Integer> peerTimeouts;
+    private final double readRepairChance;
+    private final File hintsDirectory;
+    private final long hintsMaxBytes;
+    private final long hintsRate;
+    private final long antiEntropyInterval;
+    private final long tombstoneGrace;
+    private final double traceSample;
+    private final int traceEvents;
+
+    private ServerSettings(@NotNull Properties properties) {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        final boolean auto = bool(properties, "auto", false);
+
+        this.selectors = integer(properties, "selectors", auto ? cpus : 0);
+        this.affinity = bool(properties, "affinity", false);
+        this.acceptors = integer(properties, "acceptors", auto ? Math.max(1, Math.min(4, cpus / 4)) : 1);
+        this.reusePort = bool(properties, "reusePort", acceptors > 1);
+        this.backlog = integer(properties, "backlog", auto ? 1024 : 128);
+        this.recvBuf = integer(properties, "recvBuf", 0);
+        this.sendBuf = integer(properties, "sendBuf", 0);
+        this.noDelay = bool(properties, "noDelay", true);
+        this.keepAlive = integer(properties, "keepAlive", 0);
+        this.maxBody = integer(properties, "maxBody", 16 * 1024 * 1024);
+        this.workers = integer(properties, "workers", auto ? 2 * cpus : cpus);
+        this.workerQueue = integer(properties, "workers.queue", auto ? 128 * workers : 1024);
+        this.replicaThreads = integer(properties, "replica.threads", auto ? 4 * cpus : 2 * cpus);
+        this.replicaQueue = integer(properties, "replica.queue", auto ? 128 * replicaThreads : 1024);
+        this.peerTimeout = integer(properties, PEER_TIMEOUT, 500);
+        this.readRepairChance = decimal(properties, "readRepair.chance", 0.1);
+        final String hintsDirectory = value(properties, "hints.dir");
+        this.hintsDirectory = hintsDirectory == null ? null : new File(hintsDirectory.trim());
+        this.hintsMaxBytes = number(properties, "hints.maxBytes", 64 * 1024 * 1024);
+        this.hintsRate = number(properties, "hints.rate", 1024 * 1024);
+        this.antiEntropyInterval = number(properties, "antiEntropy.interval", 60);
+        this.tombstoneGrace = number(
+                properties,
+                "tombstone.grace",
+                TimeUnit.MILLISECONDS.toSeconds(LsmKVDao.DEFAULT_TOMBSTONE_GRACE_MILLIS));
+        this.traceSample = decimal(properties, "trace.sample", 0.001);
+        this.traceEvents = integer(properties, "trace.events", 64 * 1024);
+
+        final Map<String, Integer> peerTimeouts = new HashMap<>();
+        final String peerPrefix = PREFIX + PEER_TIMEOUT + ".";
+        for (final String name : properties.stringPropertyNames()) {
+            if (name.startsWith(peerPrefix)) {
+                peerTimeouts.put(name.substring(peerPrefix.length()), Integer.parseInt(properties.getProperty(name)));
+            }
+        }
+        this.peerTimeouts = Collections.unmodifiableMap(peerTimeouts);
+
+        if (acceptors < 1 || workers < 1 || workerQueue < 1 || replicaThreads < 1 || replicaQueue < 1) {
+            throw new IllegalArgumentException("Acceptors, workers, replica threads and their queues must be positive");
+        }
+        if (maxBody < 1) {
+            throw new IllegalArgumentException("Max body must be positive: " + maxBody);
+        }
+        if (readRepairChance < 0 || readRepairChance > 1) {
+            throw new IllegalArgumentException("Read repair chance out of [0, 1]: " + readRepairChance);
+        }
+        if (antiEntropyInterval < 0) {
+            throw new IllegalArgumentException("Negative anti-entropy interval: " + antiEntropyInterval);
+        }
+        if (tombstoneGrace < 0) {
+            throw new IllegalArgumentException("Negative tombstone grace: " + tombstoneGrace);
+        }
+        if (traceSample < 0 || traceSample > 1) {
+            throw new IllegalArgumentException("Trace sample out of [0, 1]: " + traceSample);
+        }
+        if (traceEvents < 1) {
+            throw new IllegalArgumentException("Trace events must be positive: " + traceEvents);
+        }
+        if (acceptors > 1 && !reusePort) {
+            throw new IllegalArgumentException("Several acceptors need kv.reusePort");
+        }
+    }
+
+    /**
+     * Settings from the {@code -Dkv.config} file overridden by system properties.
+     */
+    @NotNull
+    public static ServerSettings load() throws IOException {
+        final Properties properties = new Properties();
+        final String file = System.getProperty(CONFIG_PROPERTY);
+        if (file != null) {
+            try (InputStream in = new FileInputStream(new File(file))) {
+                properties.load(in);
+            }
+        }
+        properties.putAll(System.getProperties());
+        return new ServerSettings(properties);
+    }
+
+    @NotNull
+    public static ServerSettings of(@NotNull Properties properties) {
+        return new ServerSettings(properties);
+    }
+
+    @NotNull
+    public HttpServerConfig httpServerConfig(int port) {
+        final HttpServerConfig config = new HttpServerConfig();
+        config.selectors = selectors;
+        config.affinity = affinity;
+        config.keepAlive = keepAlive;
+        config.acceptors = new AcceptorConfig[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            final AcceptorConfig acceptor = new AcceptorConfig();
+            acceptor.port = port;
+            acceptor.backlog = backlog;
+            acceptor.recvBuf = recvBuf;
+            acceptor.sendBuf = sendBuf;
+            acceptor.noDelay = noDelay;
+            acceptor.reusePort = reusePort;
+            config.acceptors[i] = acceptor;
+        }
+        return config;
+    }
+
+    /**
+     * @return largest request body accepted, bytes
+     */
+    public int maxBody() {
+        return maxBody;
+    }
+
+    public int workers() {
+        return workers;
+    }
+
+    public int workerQueue() {
+        return workerQueue;
+    }
+
+    public int replicaThreads() {
+        return replicaThreads;
+    }
+
+    public int replicaQueue() {
+        return replicaQueue;
+    }
+
+    /**
+     * @return replica call timeout in milliseconds
+     */
+    public int peerTimeout(@NotNull String node) {
+        return peerTimeouts.getOrDefault(node, peerTimeout);
+    }
+
+    public double readRepairChance() {
+        return readRepairChance;
+    }
+
+    /**
+     * @return {@code null} to keep the hints in the data directory
+     */
+    @Nullable
+    public File hintsDirectory() {
+        return hintsDirectory;
+    }
+
+    /**
+     * @return bytes of hints kept for one replica
+     */
+    public long hintsMaxBytes() {
+        return hintsMaxBytes;
+    }
+
+    /**
+     * @return bytes per second hints are replayed at, {@code 0} for no limit
+     */
+    public long hintsRate() {
+        return hintsRate;
+    }
+
+    /**
+     * @return milliseconds between anti-entropy rounds, {@code 0} if they are off
+     */
+    public long antiEntropyIntervalMillis() {
+        return antiEntropyInterval * 1000;
+    }
+
+    /**
+     * @return milliseconds a tombstone is repaired for
+     */
+    public long tombstoneGraceMillis() {
+        return TimeUnit.SECONDS.toMillis(tombstoneGrace);
+    }
+
+    /**
+     * @return probability that a client request is traced
+     */
+    public double traceSample() {
+        return traceSample;
+    }
+
+    /**
+     * @return trace events kept, the oldest are overwritten
+     */
+    public int traceEvents() {
+        return traceEvents;
+    }
+
+    private static int integer(@NotNull Properties properties, @NotNull String name, int defaultValue) {
+        final String value = value(properties, name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static long number(@NotNull Properties properties, @NotNull String name, long defaultValue) {
+        final String value = value(properties, name);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private static double decimal(@NotNull Properties properties, @NotNull String name, double defaultValue) {
+        final String value = value(properties, name);
+        return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+    private static boolean bool(@NotNull Properties properties, @NotNull String name, boolean defaultValue) {
+        final String value = value(properties, name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    @Nullable
+    private static String value(@NotNull Properties properties, @NotNull String name) {
+        return properties.getProperty(PREFIX + name);
+    }
+}
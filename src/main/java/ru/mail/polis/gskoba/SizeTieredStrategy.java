@@ -0,0 +1,49 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Merges the newest run of at least {@code minThreshold} adjacent tables within
+ * half to one and a half of their average size.
+ */
+final class SizeTieredStrategy implements CompactionStrategy {
+
+    static final int DEFAULT_MIN_THRESHOLD = 4;
+    static final int DEFAULT_MAX_THRESHOLD = 32;
+
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+
+    private final int minThreshold;
+    private final int maxThreshold;
+
+    SizeTieredStrategy(int minThreshold, int maxThreshold) {
+        if (minThreshold < 2 || maxThreshold < minThreshold) {
+            throw new IllegalArgumentException("Bad thresholds: " + minThreshold + ", " + maxThreshold);
+        }
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+    }
+
+    @Nullable
+    @Override
+    public int[] select(@NotNull long[] sizes) {
+        for (int from = 0; from + minThreshold <= sizes.length; from++) {
+            long total = sizes[from];
+            int to = from + 1;
+            while (to < sizes.length && to - from < maxThreshold) {
+                final double average = (double) total / (to - from);
+                if (sizes[to] < average * BUCKET_LOW || sizes[to] > average * BUCKET_HIGH) {
+                    break;
+                }
+                total += sizes[to];
+                to++;
+            }
+            if (to - from >= minThreshold) {
+                return new int[]{from, to};
+            }
+        }
+        return null;
+    }
+}
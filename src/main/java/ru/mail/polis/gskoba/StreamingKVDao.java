@@ -0,0 +1,24 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.KVDao;
+
+import java.io.IOException;
+
+/**
+ * {@link KVDao} that keeps large values in files of their own and sends them from there,
+ * so reading a value never copies it into the heap.
+ * <p>
+ * Writes aren't streamed: one-nio reads a whole request body into the heap before the request
+ * is handled, so a large value is stored with {@link #upsert(byte[], byte[], long)} like any other.
+ */
+public interface StreamingKVDao extends VersionedKVDao {
+
+    /**
+     * @return the value to be sent with {@code transferTo} or {@code sendfile} and closed by the caller,
+     * or {@code null} if the value is small or absent and should be read with {@link #getVersion}
+     */
+    @Nullable
+    Blob open(@NotNull byte[] key) throws IOException;
+}
@@ -0,0 +1,111 @@
+package ru.mail.polis.gskoba;
+
+import one.nio.http.HttpServer;
+import one.nio.http.HttpSession;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Queues the body of a {@link BodyResponse} right after its headers,
+ * before any response to a pipelined request.
+ * <p>
+ * Times each request from {@link #started} to its response headers and ends its trace there.
+ * A session handles its requests one at a time, so the request being answered is the one started last.
+ * <p>
+ * Reads request bodies up to the configured size rather than one-nio's 64 KB, so values large
+ * enough to be kept in files of their own can be written. A body is still read into the heap.
+ */
+final class StreamingSession extends HttpSession {
+
+    @NotNull
+    private final Metrics metrics;
+    @NotNull
+    private final Tracer tracer;
+    private final int maxBody;
+    private int method;
+    private long trace = Tracer.NONE;
+    /**
+     * {@code 0} while no request is being handled
+     */
+    private long started;
+
+    /**
+     * @param maxBody largest request body read, larger ones are answered with {@code 413}
+     */
+    StreamingSession(
+            Socket socket,
+            HttpServer server,
+            @NotNull Metrics metrics,
+            @NotNull Tracer tracer,
+            int maxBody) {
+        super(socket, server);
+        this.metrics = metrics;
+        this.tracer = tracer;
+        this.maxBody = maxBody;
+    }
+
+    @Override
+    protected int getMaxRequestBodyLength() {
+        return maxBody;
+    }
+
+    /**
+     * @param trace of the request, {@link Tracer#NONE} if it isn't traced
+     */
+    void started(@NotNull Request request, long trace) {
+        final byte[] body = request.getBody();
+        if (body != null) {
+            metrics.received(body.length);
+        }
+        method = request.getMethod();
+        this.trace = trace;
+        started = System.nanoTime();
+    }
+
+    /**
+     * @return trace of the request being handled
+     */
+    long trace() {
+        return trace;
+    }
+
+    /**
+     * Counts bytes of a body written past {@link #sendResponse}.
+     */
+    void sent(long bytes) {
+        metrics.sent(bytes);
+    }
+
+    @Override
+    public synchronized void sendResponse(Response response) throws IOException {
+        if (started != 0) {
+            metrics.request(method, response.getStatus(), System.nanoTime() - started);
+            tracer.record(trace, Tracer.RESPONDED, response.getStatus());
+            started = 0;
+            trace = Tracer.NONE;
+        }
+        if (response instanceof BodyResponse) {
+            metrics.sent(((BodyResponse) response).length());
+        } else if (response.getBody() != null) {
+            metrics.sent(response.getBody().length);
+        }
+        super.sendResponse(response);
+    }
+
+    @Override
+    protected void writeResponse(Response response, boolean includeBody) throws IOException {
+        super.writeResponse(response, includeBody);
+        if (response instanceof BodyResponse) {
+            final BodyResponse body = (BodyResponse) response;
+            if (includeBody) {
+                write(body.body());
+            } else {
+                body.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: deadlines are kept in {@link #LEVELS} wheels of {@link #SLOTS} slots,
+ * each slot of a level spanning a whole turn of the level below.
+ * <p>
+ * Adding is O(1), and so is advancing by a tick apart from cascading: when a level turns, the slot
+ * of the next level is spread over the lower ones. Nothing is scanned that isn't due. Deadlines
+ * beyond the top level wait there a full turn and are placed again.
+ * <p>
+ * Not thread-safe.
+ */
+final class TimingWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final List<List<Entry<T>>> slots = new ArrayList<>(LEVELS * SLOTS);
+    /**
+     * Last tick that has been processed
+     */
+    private long current;
+    private int size;
+
+    private static final class Entry<T> {
+        final T item;
+        final long tick;
+
+        Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.current = nowMillis / tickMillis;
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * The item is due at the first {@link #advance} to or past the deadline.
+     */
+    void add(@NotNull T item, long deadlineMillis) {
+        // Rounded up, so nothing comes out before its deadline
+        place(new Entry<>(item, Math.max(current + 1, (deadlineMillis + tickMillis - 1) / tickMillis)));
+        size++;
+    }
+
+    private void place(@NotNull Entry<T> entry) {
+        final long delta = entry.tick - current;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        slot(level, entry.tick).add(entry);
+    }
+
+    @NotNull
+    private List<Entry<T>> slot(int level, long tick) {
+        return slots.get(level * SLOTS + (int) ((tick >>> (BITS * level)) & (SLOTS - 1)));
+    }
+
+    @NotNull
+    private List<Entry<T>> take(int level, long tick) {
+        final int index = level * SLOTS + (int) ((tick >>> (BITS * level)) & (SLOTS - 1));
+        final List<Entry<T>> taken = slots.get(index);
+        slots.set(index, new ArrayList<>());
+        return taken;
+    }
+
+    /**
+     * Moves the time forward.
+     *
+     * @return items whose deadlines have passed
+     */
+    @NotNull
+    List<T> advance(long nowMillis) {
+        final long target = nowMillis / tickMillis;
+        final List<T> due = new ArrayList<>();
+        while (current < target && size > 0) {
+            current++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((current & ((1L << (BITS * level)) - 1)) == 0) {
+                    take(level, current).forEach(this::place);
+                }
+            }
+            for (final Entry<T> entry : take(0, current)) {
+                if (entry.tick <= current) {
+                    due.add(entry.item);
+                    size--;
+                } else {
+                    place(entry);
+                }
+            }
+        }
+        current = Math.max(current, target);
+        return due;
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,311 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Phase timestamps of sampled requests, kept in a ring of preallocated events.
+ * <p>
+ * A client request is traced with probability {@code sample}, and so are the calls it makes
+ * to the replicas, which carry its id. An untraced request only pays for the coin toss:
+ * recording for {@link #NONE} returns at once. An event overwrites the oldest slot of the ring
+ * under the slot's lock, which is contended only if the ring wraps around a slow writer.
+ * <p>
+ * Times are microseconds of the node's clock: phases of one node compare exactly,
+ * phases of different nodes only as well as their clocks agree.
+ */
+final class Tracer {
+
+    static final long NONE = 0;
+
+    /**
+     * Request from a client, the argument is the method
+     */
+    static final byte RECEIVED = 0;
+    /**
+     * Request from a coordinator, the argument is the method
+     */
+    static final byte PROXIED = 1;
+    /**
+     * Taken by a worker
+     */
+    static final byte STARTED = 2;
+    static final byte STORAGE = 3;
+    static final byte STORAGE_DONE = 4;
+    /**
+     * Call to a replica, the argument is its index in the topology
+     */
+    static final byte PEER = 5;
+    static final byte PEER_DONE = 6;
+    /**
+     * Response headers sent, the argument is the status
+     */
+    static final byte RESPONDED = 7;
+
+    private static final String[] PHASES = {
+            "received", "proxied", "started", "storage", "storageDone", "peer", "peerDone", "responded"};
+    private static final int EVENT_SIZE = 2 * Long.BYTES + 1 + Integer.BYTES;
+
+    private final double sample;
+    private final Slot[] ring;
+    private final int mask;
+    /**
+     * Sequence of the next event, slots never written hold {@code 0}
+     */
+    private final AtomicLong next = new AtomicLong(1);
+    /**
+     * Turns {@link System#nanoTime} into wall-clock microseconds
+     */
+    private final long offsetMicros;
+
+    static final class Event {
+        final long trace;
+        final long micros;
+        final byte phase;
+        final int argument;
+
+        Event(long trace, long micros, byte phase, int argument) {
+            this.trace = trace;
+            this.micros = micros;
+            this.phase = phase;
+            this.argument = argument;
+        }
+    }
+
+    /**
+     * Guarded by itself
+     */
+    private static final class Slot {
+        long sequence;
+        long trace;
+        long micros;
+        byte phase;
+        int argument;
+    }
+
+    /**
+     * @param sample probability that a client request is traced
+     * @param events kept, rounded up to a power of two
+     */
+    Tracer(double sample, int events) {
+        this.sample = sample;
+        final int capacity = Integer.highestOneBit(Math.max(1, events - 1)) << 1;
+        this.ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot();
+        }
+        this.mask = capacity - 1;
+        this.offsetMicros = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+    }
+
+    /**
+     * @return the id of a new trace or {@link #NONE} if the request isn't sampled
+     */
+    long sample() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (sample == 0 || random.nextDouble() >= sample) {
+            return NONE;
+        }
+        long trace;
+        do {
+            trace = random.nextLong();
+        } while (trace == NONE);
+        return trace;
+    }
+
+    void record(long trace, byte phase, int argument) {
+        if (trace == NONE) {
+            return;
+        }
+        final long micros = offsetMicros + System.nanoTime() / 1000;
+        final long sequence = next.getAndIncrement();
+        final Slot slot = ring[(int) sequence & mask];
+        synchronized (slot) {
+            if (slot.sequence > sequence) {
+                // Lapped while waiting for the slot
+                return;
+            }
+            slot.sequence = sequence;
+            slot.trace = trace;
+            slot.micros = micros;
+            slot.phase = phase;
+            slot.argument = argument;
+        }
+    }
+
+    /**
+     * @return traces of the slowest client requests answered here, the slowest first
+     */
+    @NotNull
+    long[] slowest(int limit) {
+        final Map<Long, Long> received = new HashMap<>();
+        final Map<Long, Long> responded = new HashMap<>();
+        for (final Event event : events()) {
+            if (event.phase == RECEIVED) {
+                received.put(event.trace, event.micros);
+            } else if (event.phase == RESPONDED) {
+                responded.put(event.trace, event.micros);
+            }
+        }
+        final List<Map.Entry<Long, Long>> durations = new ArrayList<>();
+        for (final Map.Entry<Long, Long> end : responded.entrySet()) {
+            final Long start = received.get(end.getKey());
+            if (start != null) {
+                durations.add(new AbstractMap.SimpleImmutableEntry<>(end.getKey(), end.getValue() - start));
+            }
+        }
+        durations.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return durations.stream().limit(limit).mapToLong(Map.Entry::getKey).toArray();
+    }
+
+    /**
+     * @return events of the traces kept here, in the order they happened
+     */
+    @NotNull
+    List<Event> events(@NotNull long[] traces) {
+        final Set<Long> wanted = new HashSet<>();
+        for (final long trace : traces) {
+            wanted.add(trace);
+        }
+        final List<Event> events = new ArrayList<>();
+        for (final Event event : events()) {
+            if (wanted.contains(event.trace)) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    @NotNull
+    private List<Event> events() {
+        final long last = next.get();
+        final List<Event> events = new ArrayList<>(ring.length);
+        for (long sequence = Math.max(1, last - ring.length); sequence < last; sequence++) {
+            final Slot slot = ring[(int) sequence & mask];
+            synchronized (slot) {
+                if (slot.sequence == sequence) {
+                    events.add(new Event(slot.trace, slot.micros, slot.phase, slot.argument));
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * @return {@code trace:long micros:long phase:byte argument:int} per event
+     */
+    @NotNull
+    static byte[] encode(@NotNull List<Event> events) {
+        final ByteBuffer out = ByteBuffer.allocate(events.size() * EVENT_SIZE);
+        for (final Event event : events) {
+            out.putLong(event.trace).putLong(event.micros).put(event.phase).putInt(event.argument);
+        }
+        return out.array();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the events are malformed
+     */
+    @NotNull
+    static List<Event> decode(@NotNull byte[] bytes) {
+        if (bytes.length % EVENT_SIZE != 0) {
+            throw new IllegalArgumentException("Not a list of events");
+        }
+        final ByteBuffer in = ByteBuffer.wrap(bytes);
+        final List<Event> events = new ArrayList<>(bytes.length / EVENT_SIZE);
+        while (in.hasRemaining()) {
+            final long trace = in.getLong();
+            final long micros = in.getLong();
+            final byte phase = in.get();
+            final int argument = in.getInt();
+            if (phase < 0 || phase >= PHASES.length) {
+                throw new IllegalArgumentException("Unknown phase " + phase);
+            }
+            events.add(new Event(trace, micros, phase, argument));
+        }
+        return events;
+    }
+
+    @NotNull
+    static String format(long trace) {
+        return Long.toHexString(trace);
+    }
+
+    /**
+     * @throws NumberFormatException if it isn't a trace id
+     */
+    static long parse(@NotNull String trace) {
+        return Long.parseUnsignedLong(trace.trim(), 16);
+    }
+
+    /**
+     * Renders the traces with the phases of every node relative to its first one.
+     *
+     * @param traces the slowest first
+     * @param events of every node, by its endpoint
+     * @param nodes  the topology, to name the peers
+     */
+    @NotNull
+    static String json(
+            @NotNull long[] traces,
+            @NotNull Map<String, List<Event>> events,
+            @NotNull List<String> nodes) {
+        final StringBuilder out = new StringBuilder("{\"traces\":[");
+        for (int t = 0; t < traces.length; t++) {
+            final long trace = traces[t];
+            final StringBuilder breakdown = new StringBuilder();
+            Event received = null;
+            Event responded = null;
+            for (final Map.Entry<String, List<Event>> node : events.entrySet()) {
+                final List<Event> own = new ArrayList<>();
+                for (final Event event : node.getValue()) {
+                    if (event.trace == trace) {
+                        own.add(event);
+                    }
+                }
+                if (own.isEmpty()) {
+                    continue;
+                }
+                breakdown.append(breakdown.length() == 0 ? "" : ",")
+                        .append("{\"node\":\"").append(node.getKey()).append("\",\"phases\":[");
+                for (int i = 0; i < own.size(); i++) {
+                    final Event event = own.get(i);
+                    if (event.phase == RECEIVED) {
+                        received = event;
+                    } else if (event.phase == RESPONDED && own.contains(received)) {
+                        responded = event;
+                    }
+                    breakdown.append(i == 0 ? "" : ",")
+                            .append("{\"phase\":\"").append(PHASES[event.phase])
+                            .append("\",\"micros\":").append(event.micros - own.get(0).micros);
+                    if (event.phase == PEER || event.phase == PEER_DONE) {
+                        final boolean known = event.argument >= 0 && event.argument < nodes.size();
+                        breakdown.append(",\"peer\":\"").append(known ? nodes.get(event.argument) : "").append('"');
+                    } else if (event.phase == RESPONDED) {
+                        breakdown.append(",\"status\":").append(event.argument);
+                    }
+                    breakdown.append('}');
+                }
+                breakdown.append("]}");
+            }
+            out.append(t == 0 ? "" : ",").append("{\"id\":\"").append(format(trace)).append('"');
+            if (received != null && responded != null) {
+                out.append(",\"method\":\"").append(Metrics.method(received.argument))
+                        .append("\",\"status\":").append(responded.argument)
+                        .append(",\"micros\":").append(responded.micros - received.micros);
+            }
+            out.append(",\"nodes\":[").append(breakdown).append("]}");
+        }
+        return out.append("]}").toString();
+    }
+}
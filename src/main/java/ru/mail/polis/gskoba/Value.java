@@ -0,0 +1,162 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A versioned value: either data or a tombstone left by a remove.
+ * The newer version by timestamp wins. On a tie a tombstone beats data, as expiry leaves a tombstone
+ * of the expired version's timestamp, and otherwise the one written later wins.
+ */
+public final class Value {
+
+    /**
+     * Stamps writes made through the plain {@link ru.mail.polis.KVDao} methods.
+     */
+    private static final HybridClock CLOCK = new HybridClock(0);
+    private static final byte PRESENT = 0;
+    private static final byte REMOVED = 1;
+
+    private final long timestamp;
+    /**
+     * Heap array for fresh writes, a slice of the mapped table for values read from disk
+     */
+    @Nullable
+    private final ByteBuffer data;
+
+    private Value(long timestamp, @Nullable ByteBuffer data) {
+        this.timestamp = timestamp;
+        this.data = data;
+    }
+
+    @NotNull
+    public static Value present(long timestamp, @NotNull byte[] data) {
+        return new Value(timestamp, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @param data not copied, must not change
+     */
+    @NotNull
+    public static Value present(long timestamp, @NotNull ByteBuffer data) {
+        return new Value(timestamp, data.slice());
+    }
+
+    @NotNull
+    public static Value tombstone(long timestamp) {
+        return new Value(timestamp, null);
+    }
+
+    /**
+     * Strictly increasing {@link HybridClock} timestamp, unique within this JVM.
+     */
+    public static long now() {
+        return CLOCK.now();
+    }
+
+    /**
+     * Milliseconds passed since the timestamp was taken.
+     */
+    static long ageMillis(long timestamp) {
+        return System.currentTimeMillis() - HybridClock.millis(timestamp);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isRemoved() {
+        return data == null;
+    }
+
+    /**
+     * @return the written array itself or a copy of the mapped data
+     */
+    @NotNull
+    public byte[] getData() {
+        final ByteBuffer data = getBuffer();
+        if (data.hasArray() && data.arrayOffset() == 0 && data.remaining() == data.array().length) {
+            return data.array();
+        }
+        final byte[] copy = new byte[data.remaining()];
+        data.get(copy);
+        return copy;
+    }
+
+    /**
+     * @return a view of the data with its own position
+     */
+    @NotNull
+    public ByteBuffer getBuffer() {
+        if (data == null) {
+            throw new IllegalStateException("Tombstone has no data");
+        }
+        return data.duplicate();
+    }
+
+    /**
+     * Approximate heap footprint, used to decide when a memtable is full.
+     */
+    int size() {
+        return Long.BYTES + (data == null ? 0 : data.remaining());
+    }
+
+    /**
+     * Layout: {@code timestamp:long removed:byte data}.
+     */
+    @NotNull
+    byte[] toBytes() {
+        final ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES + 1 + (data == null ? 0 : data.remaining()));
+        bytes.putLong(timestamp);
+        if (data == null) {
+            bytes.put(REMOVED);
+        } else {
+            bytes.put(PRESENT).put(data.duplicate());
+        }
+        return bytes.array();
+    }
+
+    /**
+     * Reads {@link #toBytes()}, the data is a view of the given bytes.
+     */
+    @NotNull
+    static Value fromBytes(@NotNull ByteBuffer bytes) {
+        final ByteBuffer b = bytes.duplicate();
+        final long timestamp = b.getLong();
+        return b.get() == REMOVED ? tombstone(timestamp) : present(timestamp, b);
+    }
+
+    /**
+     * @return whether {@code a} wins over {@code b} whatever order they are written in:
+     * it is newer, or a tombstone of the same timestamp as data
+     */
+    static boolean newer(@NotNull Value a, @NotNull Value b) {
+        return newer(a.timestamp, a.isRemoved(), b.timestamp, b.isRemoved());
+    }
+
+    /**
+     * Same as {@link #newer(Value, Value)} for versions known by timestamp and kind only.
+     */
+    static boolean newer(long timestamp, boolean removed, long other, boolean otherRemoved) {
+        return timestamp > other || timestamp == other && removed && !otherRemoved;
+    }
+
+    /**
+     * @return whether {@code candidate} replaces {@code stored}: {@code stored} isn't {@link #newer}
+     */
+    static boolean replaces(@NotNull Value candidate, @Nullable Value stored) {
+        return stored == null || !newer(stored, candidate);
+    }
+
+    /**
+     * @return the newer of two possibly absent versions, {@code a} on a tie
+     */
+    @Nullable
+    static Value newest(@Nullable Value a, @Nullable Value b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return newer(b, a) ? b : a;
+    }
+}
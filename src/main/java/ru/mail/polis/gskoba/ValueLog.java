@@ -0,0 +1,347 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only log of large values split into segments.
+ * <p>
+ * Values are appended to the head segment, which is sealed and replaced by a new one once it
+ * reaches the segment size. Sealed segments are only read (mapped on first use) and deleted
+ * as a whole by garbage collection. Every open starts a new head, so a torn record can only
+ * be at the end of a sealed segment, where nothing points to it.
+ * <p>
+ * Record layout: {@code keyLength:int valueLength:int key value}.
+ */
+final class ValueLog implements Closeable {
+
+    static final String SUFFIX = ".vlog";
+
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final File directory;
+    private final long segmentSize;
+    private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    /**
+     * Guarded by {@code this}
+     */
+    private Segment head;
+
+    /**
+     * Where a value is: {@code segment:int offset:long length:int} with the offset of the value itself.
+     */
+    static final class Pointer {
+        static final int SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+        final int segment;
+        final long offset;
+        final int length;
+
+        Pointer(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        void writeTo(@NotNull ByteBuffer buffer) {
+            buffer.putInt(segment).putLong(offset).putInt(length);
+        }
+
+        @NotNull
+        static Pointer readFrom(@NotNull ByteBuffer buffer) {
+            return new Pointer(buffer.getInt(), buffer.getLong(), buffer.getInt());
+        }
+
+        /**
+         * Size of the whole record, garbage once the pointer is replaced.
+         */
+        int recordSize(int keyLength) {
+            return HEADER_SIZE + keyLength + length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Pointer)) return false;
+            final Pointer pointer = (Pointer) o;
+            return segment == pointer.segment && offset == pointer.offset && length == pointer.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * segment + Long.hashCode(offset)) + length;
+        }
+    }
+
+    interface Visitor {
+        void visit(@NotNull byte[] key, @NotNull Pointer pointer) throws IOException;
+    }
+
+    ValueLog(@NotNull File directory, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            throw new IOException("Can't list " + directory);
+        }
+        int last = 0;
+        for (final File file : files) {
+            final String name = file.getName();
+            final int id = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+            last = Math.max(last, id);
+            if (file.length() == 0) {
+                Files.delete(file.toPath());
+                continue;
+            }
+            final Segment segment = new Segment(id, file, false);
+            segment.seal();
+            segments.put(id, segment);
+        }
+        this.head = new Segment(last + 1, segmentFile(last + 1), true);
+        segments.put(head.id, head);
+    }
+
+    @NotNull
+    private File segmentFile(int id) {
+        return new File(directory, id + SUFFIX);
+    }
+
+    /**
+     * Appends a record and waits until it is durable. Concurrent appends share a force.
+     */
+    @NotNull
+    Pointer append(@NotNull byte[] key, @NotNull ByteBuffer value) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(key.length).putInt(value.remaining()).flip();
+        final ByteBuffer[] record = {header, ByteBuffer.wrap(key), value.duplicate()};
+        final long recordSize = HEADER_SIZE + key.length + value.remaining();
+
+        final Segment segment;
+        final long offset;
+        synchronized (this) {
+            if (head.size.get() > 0 && head.size.get() + recordSize > segmentSize) {
+                head.seal();
+                head = new Segment(head.id + 1, segmentFile(head.id + 1), true);
+                segments.put(head.id, head);
+            }
+            segment = head;
+            offset = segment.size.get();
+            long written = 0;
+            while (written < recordSize) {
+                written += segment.channel.write(record);
+            }
+            segment.size.addAndGet(recordSize);
+        }
+        segment.force(offset + recordSize);
+        return new Pointer(segment.id, offset + HEADER_SIZE + key.length, value.remaining());
+    }
+
+    /**
+     * @return the value or {@code null} if its segment has been collected meanwhile
+     */
+    @Nullable
+    ByteBuffer read(@NotNull Pointer pointer) throws IOException {
+        final Segment segment = segments.get(pointer.segment);
+        if (segment == null) {
+            return null;
+        }
+        try {
+            return segment.read(pointer.offset, pointer.length);
+        } catch (ClosedChannelException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sealed segments, oldest first.
+     */
+    @NotNull
+    List<Integer> sealed() {
+        final List<Integer> sealed = new ArrayList<>();
+        for (final Segment segment : segments.values()) {
+            if (segment.sealed) {
+                sealed.add(segment.id);
+            }
+        }
+        return sealed;
+    }
+
+    /**
+     * @return bytes in the segment, {@code 0} if it's gone
+     */
+    long size(int id) {
+        final Segment segment = segments.get(id);
+        return segment == null ? 0 : segment.size.get();
+    }
+
+    /**
+     * Bytes known to be unreachable in the segment.
+     */
+    long garbage(int id) {
+        final Segment segment = segments.get(id);
+        return segment == null ? 0 : segment.garbage.get();
+    }
+
+    void addGarbage(int id, long bytes) {
+        final Segment segment = segments.get(id);
+        if (segment != null) {
+            segment.garbage.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Total bytes in all the segments.
+     */
+    long size() {
+        long size = 0;
+        for (final Segment segment : segments.values()) {
+            size += segment.size.get();
+        }
+        return size;
+    }
+
+    /**
+     * Visits every complete record of a sealed segment in order.
+     */
+    void scan(int id, @NotNull Visitor visitor) throws IOException {
+        final Segment segment = segments.get(id);
+        if (segment == null || !segment.sealed) {
+            throw new IllegalArgumentException("Not a sealed segment: " + id);
+        }
+        final ByteBuffer data = segment.mapped();
+        int position = 0;
+        while (data.limit() - position >= HEADER_SIZE) {
+            final int keyLength = data.getInt(position);
+            final int valueLength = data.getInt(position + Integer.BYTES);
+            final int valueOffset = position + HEADER_SIZE + keyLength;
+            if (keyLength < 0 || valueLength < 0 || (long) valueOffset + valueLength > data.limit()) {
+                // Torn by a crash
+                break;
+            }
+            final byte[] key = new byte[keyLength];
+            final ByteBuffer k = data.duplicate();
+            k.position(position + HEADER_SIZE);
+            k.get(key);
+            visitor.visit(key, new Pointer(id, valueOffset, valueLength));
+            position = valueOffset + valueLength;
+        }
+    }
+
+    /**
+     * Drops a sealed segment, values still read from it stay valid.
+     */
+    void delete(int id) throws IOException {
+        final Segment segment = segments.remove(id);
+        if (segment != null) {
+            segment.channel.close();
+            Files.deleteIfExists(segment.file.toPath());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            head.seal();
+        }
+        for (final Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+    }
+
+    private final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final AtomicLong size;
+        final AtomicLong garbage = new AtomicLong();
+        private final Object forceLock = new Object();
+        private volatile long forced;
+        private volatile boolean sealed;
+        private volatile MappedByteBuffer mapped;
+
+        Segment(int id, @NotNull File file, boolean create) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = create
+                    ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.size = new AtomicLong(channel.size());
+            this.forced = size.get();
+        }
+
+        /**
+         * Makes everything up to {@code end} durable, unless another force already did.
+         */
+        void force(long end) throws IOException {
+            if (forced >= end) {
+                return;
+            }
+            synchronized (forceLock) {
+                if (forced >= end) {
+                    return;
+                }
+                final long target = size.get();
+                channel.force(false);
+                forced = target;
+            }
+        }
+
+        void seal() throws IOException {
+            force(size.get());
+            if (size.get() > Integer.MAX_VALUE) {
+                throw new IOException("Segment is too large to map: " + file);
+            }
+            sealed = true;
+        }
+
+        @NotNull
+        ByteBuffer mapped() throws IOException {
+            MappedByteBuffer mapped = this.mapped;
+            if (mapped == null) {
+                synchronized (this) {
+                    mapped = this.mapped;
+                    if (mapped == null) {
+                        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size.get());
+                        this.mapped = mapped;
+                    }
+                }
+            }
+            return mapped.duplicate();
+        }
+
+        /**
+         * A read-only slice of the mapping once sealed, a heap copy while the segment is the head.
+         */
+        @NotNull
+        ByteBuffer read(long offset, int length) throws IOException {
+            if (sealed) {
+                final ByteBuffer value = mapped();
+                value.position((int) offset).limit((int) offset + length);
+                return value.slice().asReadOnlyBuffer();
+            }
+            final ByteBuffer value = ByteBuffer.allocate(length);
+            while (value.hasRemaining()) {
+                if (channel.read(value, offset + value.position()) < 0) {
+                    throw new IOException("Value is past the end of " + file);
+                }
+            }
+            value.flip();
+            return value.asReadOnlyBuffer();
+        }
+    }
+}
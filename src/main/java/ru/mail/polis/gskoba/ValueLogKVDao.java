@@ -0,0 +1,431 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps values of at least {@code threshold} bytes in a {@link ValueLog} and only small pointers
+ * to them in the delegate, so the index stays small and overwrites don't rewrite values in it.
+ * <p>
+ * Every value in the delegate starts with a tag: the value itself follows {@link #INLINE},
+ * a {@link ValueLog.Pointer} follows {@link #POINTER}. The mode has to be chosen for a fresh
+ * data directory.
+ * <p>
+ * Overwrites and removes count the replaced record as garbage of its segment. A background
+ * collector moves the live values out of sealed segments with enough garbage and deletes them.
+ * The counters are not persisted, so they are recounted by scanning the segments on startup.
+ * A write older than the stored version never becomes live, its record is garbage right away.
+ */
+public class ValueLogKVDao implements ZeroCopyKVDao, VersionedKVDao, KVDaoDecorator, Flushable {
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final double DEFAULT_GARBAGE_RATIO = 0.5;
+
+    private static final String DIRECTORY = "vlog";
+    private static final byte INLINE = 0;
+    private static final byte POINTER = 1;
+    private static final long COLLECT_INTERVAL_MILLIS = 1000;
+    private static final int STRIPES = 256;
+
+    @NotNull
+    private final VersionedKVDao delegate;
+    private final ValueLog log;
+    private final int threshold;
+    private final double garbageRatio;
+    private final ScheduledExecutorService collector;
+    private final LongAdder collectedBytes = new LongAdder();
+    private final LongAdder movedBytes = new LongAdder();
+    /**
+     * Keeps the delegate and the garbage counters consistent for writes to one key.
+     */
+    private final Object[] stripes = new Object[STRIPES];
+
+    public ValueLogKVDao(@NotNull VersionedKVDao delegate, @NotNull File directory) throws IOException {
+        this(delegate, directory, DEFAULT_THRESHOLD, DEFAULT_SEGMENT_SIZE, DEFAULT_GARBAGE_RATIO);
+    }
+
+    /**
+     * @param garbageRatio share of garbage that makes a sealed segment worth collecting
+     */
+    public ValueLogKVDao(
+            @NotNull VersionedKVDao delegate,
+            @NotNull File directory,
+            int threshold,
+            long segmentSize,
+            double garbageRatio) throws IOException {
+        this.delegate = delegate;
+        this.threshold = threshold;
+        this.garbageRatio = garbageRatio;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        final File logDirectory = new File(directory, DIRECTORY);
+        if (!logDirectory.isDirectory() && !logDirectory.mkdirs()) {
+            throw new IOException("Can't create " + logDirectory);
+        }
+        this.log = new ValueLog(logDirectory, segmentSize);
+        this.collector = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("vlog-gc"));
+        collector.execute(this::recountQuietly);
+        collector.scheduleWithFixedDelay(
+                this::collectQuietly,
+                COLLECT_INTERVAL_MILLIS,
+                COLLECT_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        final ByteBuffer value = getBuffer(key);
+        final byte[] data = new byte[value.remaining()];
+        value.get(data);
+        return data;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer getBuffer(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        final Value value = getVersion(key);
+        if (value == null || value.isRemoved()) throw new NoSuchElementException();
+        return value.getBuffer();
+    }
+
+    @Nullable
+    @Override
+    public Value getVersion(@NotNull byte[] key) throws IOException {
+        while (true) {
+            final Value version = delegate.getVersion(key);
+            if (version == null || version.isRemoved()) {
+                return version;
+            }
+            final ByteBuffer stored = version.getBuffer();
+            if (stored.get() == INLINE) {
+                return Value.present(version.getTimestamp(), stored.slice().asReadOnlyBuffer());
+            }
+            final ByteBuffer value = log.read(ValueLog.Pointer.readFrom(stored));
+            if (value != null) {
+                return Value.present(version.getTimestamp(), value);
+            }
+            // The segment was collected after the pointer was read, the delegate has a new one
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> versions() throws IOException {
+        return decode(delegate.versions());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> range(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException {
+        return decode(delegate.range(from, to));
+    }
+
+    /**
+     * Replaces the tagged values with the values themselves.
+     */
+    @NotNull
+    private Iterator<Map.Entry<ByteBuffer, Value>> decode(@NotNull Iterator<Map.Entry<ByteBuffer, Value>> stored) {
+        return new Iterator<Map.Entry<ByteBuffer, Value>>() {
+            @Override
+            public boolean hasNext() {
+                return stored.hasNext();
+            }
+
+            @Override
+            public Map.Entry<ByteBuffer, Value> next() {
+                final Map.Entry<ByteBuffer, Value> entry = stored.next();
+                final Value version = entry.getValue();
+                if (version.isRemoved()) {
+                    return entry;
+                }
+                final ByteBuffer data = version.getBuffer();
+                if (data.get() == INLINE) {
+                    return new AbstractMap.SimpleImmutableEntry<>(
+                            entry.getKey(),
+                            Value.present(version.getTimestamp(), data.slice().asReadOnlyBuffer()));
+                }
+                try {
+                    ByteBuffer value = log.read(ValueLog.Pointer.readFrom(data));
+                    if (value == null) {
+                        // Moved by the collector
+                        final byte[] key = new byte[entry.getKey().remaining()];
+                        entry.getKey().duplicate().get(key);
+                        final Value moved = getVersion(key);
+                        return new AbstractMap.SimpleImmutableEntry<>(
+                                entry.getKey(),
+                                moved == null ? Value.tombstone(version.getTimestamp()) : moved);
+                    }
+                    return new AbstractMap.SimpleImmutableEntry<>(
+                            entry.getKey(),
+                            Value.present(version.getTimestamp(), value));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        upsert(key, value, Value.now());
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        remove(key, Value.now());
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value, long timestamp) throws IOException {
+        final ValueLog.Pointer appended;
+        final byte[] stored;
+        if (value.length >= threshold) {
+            appended = log.append(key, ByteBuffer.wrap(value));
+            stored = encode(appended);
+        } else {
+            appended = null;
+            stored = inline(ByteBuffer.wrap(value));
+        }
+        synchronized (stripe(key)) {
+            final Value current = delegate.getVersion(key);
+            if (!Value.replaces(Value.present(timestamp, stored), current)) {
+                discard(key, appended);
+                return;
+            }
+            delegate.upsert(key, stored, timestamp);
+            discard(key, pointer(current));
+        }
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key, long timestamp) throws IOException {
+        synchronized (stripe(key)) {
+            final Value current = delegate.getVersion(key);
+            if (!Value.replaces(Value.tombstone(timestamp), current)) {
+                return;
+            }
+            delegate.remove(key, timestamp);
+            discard(key, pointer(current));
+        }
+    }
+
+    /**
+     * Appends the large values of the batch to the log first, then writes the pointers
+     * and the small values to the delegate in one batch.
+     */
+    @Override
+    public void write(@NotNull WriteBatch batch) throws IOException {
+        final WriteBatch sorted = batch.sorted();
+        final ValueLog.Pointer[] appended = new ValueLog.Pointer[sorted.size()];
+        final Value[] stored = new Value[sorted.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            final Value value = sorted.value(i);
+            if (value.isRemoved()) {
+                stored[i] = value;
+            } else if (value.getBuffer().remaining() >= threshold) {
+                appended[i] = log.append(sorted.key(i), value.getBuffer());
+                stored[i] = Value.present(value.getTimestamp(), encode(appended[i]));
+            } else {
+                stored[i] = Value.present(value.getTimestamp(), inline(value.getBuffer()));
+            }
+        }
+        sorted.locked(stripes, () -> {
+            final WriteBatch accepted = new WriteBatch();
+            final ValueLog.Pointer[] replaced = new ValueLog.Pointer[sorted.size()];
+            for (int i = 0; i < sorted.size(); i++) {
+                final Value current = delegate.getVersion(sorted.key(i));
+                if (!Value.replaces(stored[i], current)) {
+                    discard(sorted.key(i), appended[i]);
+                    continue;
+                }
+                accepted.add(sorted.key(i), stored[i]);
+                replaced[i] = pointer(current);
+            }
+            delegate.write(accepted);
+            for (int i = 0; i < sorted.size(); i++) {
+                discard(sorted.key(i), replaced[i]);
+            }
+        });
+    }
+
+    @NotNull
+    private static byte[] inline(@NotNull ByteBuffer value) {
+        final byte[] stored = new byte[1 + value.remaining()];
+        stored[0] = INLINE;
+        value.duplicate().get(stored, 1, value.remaining());
+        return stored;
+    }
+
+    @NotNull
+    private static byte[] encode(@NotNull ValueLog.Pointer pointer) {
+        final ByteBuffer stored = ByteBuffer.allocate(1 + ValueLog.Pointer.SIZE);
+        stored.put(POINTER);
+        pointer.writeTo(stored);
+        return stored.array();
+    }
+
+    /**
+     * @return where the current value of the key is in the log, {@code null} if it is inline or absent
+     */
+    @Nullable
+    private ValueLog.Pointer pointer(@NotNull byte[] key) throws IOException {
+        return pointer(delegate.getVersion(key));
+    }
+
+    @Nullable
+    private static ValueLog.Pointer pointer(@Nullable Value stored) {
+        if (stored == null || stored.isRemoved()) {
+            return null;
+        }
+        final ByteBuffer data = stored.getBuffer();
+        return data.get() == POINTER ? ValueLog.Pointer.readFrom(data) : null;
+    }
+
+    private void discard(@NotNull byte[] key, @Nullable ValueLog.Pointer replaced) {
+        if (replaced != null) {
+            log.addGarbage(replaced.segment, replaced.recordSize(key.length));
+        }
+    }
+
+    @NotNull
+    private Object stripe(@NotNull byte[] key) {
+        return stripes[Arrays.hashCode(key) & (STRIPES - 1)];
+    }
+
+    /**
+     * Recounts the garbage of every sealed segment and collects the ones over the garbage ratio.
+     *
+     * @return bytes reclaimed
+     */
+    public long collectGarbage() throws IOException {
+        recount();
+        return collect();
+    }
+
+    /**
+     * Bytes reclaimed by deleting collected segments since the start.
+     */
+    public long collectedBytes() {
+        return collectedBytes.sum();
+    }
+
+    /**
+     * Bytes of live values rewritten by the collector since the start.
+     */
+    public long movedBytes() {
+        return movedBytes.sum();
+    }
+
+    /**
+     * Bytes in all the log segments.
+     */
+    public long valueLogSize() {
+        return log.size();
+    }
+
+    private synchronized void recount() throws IOException {
+        for (final int segment : log.sealed()) {
+            final long[] live = {0};
+            log.scan(segment, (key, pointer) -> {
+                if (pointer.equals(pointer(key))) {
+                    live[0] += pointer.recordSize(key.length);
+                }
+            });
+            log.addGarbage(segment, log.size(segment) - live[0] - log.garbage(segment));
+        }
+    }
+
+    private synchronized long collect() throws IOException {
+        long collected = 0;
+        for (final int segment : log.sealed()) {
+            final long size = log.size(segment);
+            if (size == 0 || (double) log.garbage(segment) / size < garbageRatio) {
+                continue;
+            }
+            log.scan(segment, (key, pointer) -> {
+                synchronized (stripe(key)) {
+                    final Value current = delegate.getVersion(key);
+                    if (!pointer.equals(pointer(current))) {
+                        return;
+                    }
+                    final ByteBuffer value = log.read(pointer);
+                    if (value == null) {
+                        return;
+                    }
+                    // Same timestamp: the move replaces the version without making it newer
+                    delegate.upsert(key, encode(log.append(key, value)), current.getTimestamp());
+                    movedBytes.add(pointer.recordSize(key.length));
+                }
+            });
+            // New pointers must survive a crash before their old values are gone
+            flush();
+            log.delete(segment);
+            collected += size;
+        }
+        collectedBytes.add(collected);
+        return collected;
+    }
+
+    private void recountQuietly() {
+        try {
+            recount();
+        } catch (IOException e) {
+            // Counters stay low, collectGarbage() recounts them
+        }
+    }
+
+    private void collectQuietly() {
+        try {
+            collect();
+        } catch (IOException e) {
+            // Retried on the next run
+        }
+    }
+
+    @NotNull
+    @Override
+    public VersionedKVDao delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (delegate instanceof Flushable) {
+            ((Flushable) delegate).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // No interrupts: they would close the channels of the log under a running collection
+        collector.shutdown();
+        try {
+            collector.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            log.close();
+        } finally {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Map;
+
+/**
+ * Versions sent between nodes: {@code keyLength:int timestamp:long valueLength:int key value},
+ * {@code valueLength == -1} marks a tombstone.
+ */
+final class VersionRecords {
+
+    private static final int TOMBSTONE = -1;
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private VersionRecords() {
+    }
+
+    /**
+     * @return bytes written
+     */
+    static int write(@NotNull DataOutputStream out, @NotNull ByteBuffer key, @NotNull Value value) throws IOException {
+        out.writeInt(key.remaining());
+        out.writeLong(value.getTimestamp());
+        out.writeInt(value.isRemoved() ? TOMBSTONE : value.getBuffer().remaining());
+        write(out, key);
+        if (!value.isRemoved()) {
+            write(out, value.getBuffer());
+        }
+        return HEADER_SIZE + key.remaining() + (value.isRemoved() ? 0 : value.getBuffer().remaining());
+    }
+
+    private static void write(@NotNull DataOutputStream out, @NotNull ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            final byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return the next record with views of the buffer, {@code null} at the end
+     * @throws IllegalArgumentException if the record is truncated
+     */
+    @Nullable
+    static Map.Entry<ByteBuffer, Value> read(@NotNull ByteBuffer in) {
+        if (!in.hasRemaining()) {
+            return null;
+        }
+        if (in.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+        final int keyLength = in.getInt();
+        final long timestamp = in.getLong();
+        final int valueLength = in.getInt();
+        if (keyLength < 0 || valueLength < TOMBSTONE
+                || (long) keyLength + Math.max(valueLength, 0) > in.remaining()) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+        final ByteBuffer key = slice(in, keyLength);
+        if (valueLength == TOMBSTONE) {
+            return new AbstractMap.SimpleImmutableEntry<>(key, Value.tombstone(timestamp));
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(key, Value.present(timestamp, slice(in, valueLength)));
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull ByteBuffer in, int length) {
+        final ByteBuffer slice = in.slice();
+        slice.limit(length);
+        in.position(in.position() + length);
+        return slice;
+    }
+}
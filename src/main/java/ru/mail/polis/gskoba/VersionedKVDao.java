@@ -0,0 +1,74 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.KVDao;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * {@link KVDao} storing every write with its timestamp and removes as tombstones,
+ * so replicas can tell which of their versions is the newest.
+ * <p>
+ * A write older than the stored version is ignored. Plain writes are stamped with {@link Value#now()}.
+ * Tombstones are dropped once they are older than a grace period, every replica is expected
+ * to have seen the remove by then.
+ */
+public interface VersionedKVDao extends KVDao {
+
+    /**
+     * @return the newest version, a tombstone if it was removed,
+     * {@code null} if it was never written or the tombstone is gone
+     */
+    @Nullable
+    Value getVersion(@NotNull byte[] key) throws IOException;
+
+    void upsert(
+            @NotNull byte[] key,
+            @NotNull byte[] value,
+            long timestamp) throws IOException;
+
+    void remove(
+            @NotNull byte[] key,
+            long timestamp) throws IOException;
+
+    /**
+     * Applies the writes as if one by one, each ignored if older than the stored version.
+     * Engines override it to sort the keys, take their locks once and make the batch
+     * durable with one write.
+     */
+    default void write(@NotNull WriteBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            final Value value = batch.value(i);
+            if (value.isRemoved()) {
+                remove(batch.key(i), value.getTimestamp());
+            } else {
+                upsert(batch.key(i), value.getData(), value.getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * Every key with its newest version, tombstones included. Weakly consistent: writes made
+     * during the iteration may be missed. Keys and values are read-only views valid while referenced.
+     */
+    @NotNull
+    Iterator<Map.Entry<ByteBuffer, Value>> versions() throws IOException;
+
+    /**
+     * Versions of the keys from {@code from} inclusive to {@code to} exclusive in {@link ByteBuffer} order,
+     * tombstones included. Lazy and weakly consistent like {@link #versions()}.
+     *
+     * @param to {@code null} for the end
+     * @throws UnsupportedOperationException if the storage doesn't keep keys in order
+     */
+    @NotNull
+    default Iterator<Map.Entry<ByteBuffer, Value>> range(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        throw new UnsupportedOperationException("Storage doesn't keep keys in order: " + getClass().getName());
+    }
+}
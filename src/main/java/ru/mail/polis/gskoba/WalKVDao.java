@@ -0,0 +1,286 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Makes every write durable in a {@link WriteAheadLog} before applying it to the delegate.
+ * <p>
+ * The log is replayed into the delegate on startup. Once it grows over the limit the delegate
+ * is flushed (if it is {@link Flushable}) and the log is truncated. Writes are logged with
+ * their timestamps, so a replay restores the same versions.
+ */
+public class WalKVDao implements ZeroCopyKVDao, VersionedKVDao, KVDaoDecorator, Flushable {
+
+    public static final long DEFAULT_MAX_LOG_SIZE = 64 * 1024 * 1024;
+
+    private static final String LOG_NAME = "wal.log";
+    /**
+     * Logged without a timestamp before versions were kept, only replayed.
+     */
+    private static final byte UPSERT = 0;
+    private static final byte REMOVE = 1;
+    private static final byte VERSIONED_UPSERT = 2;
+    private static final byte VERSIONED_REMOVE = 3;
+    /**
+     * {@code count:int} versioned records applied together.
+     */
+    private static final byte BATCH = 4;
+    private static final int STRIPES = 256;
+
+    @NotNull
+    private final VersionedKVDao delegate;
+    private final WriteAheadLog log;
+    private final long maxLogSize;
+
+    /**
+     * Writers share it, a checkpoint takes it exclusively.
+     */
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    /**
+     * Keeps log order and apply order the same for writes to one key.
+     */
+    private final Object[] stripes = new Object[STRIPES];
+
+    public WalKVDao(
+            @NotNull VersionedKVDao delegate,
+            @NotNull File directory,
+            long batchWindowMicros) throws IOException {
+        this(delegate, directory, batchWindowMicros, DEFAULT_MAX_LOG_SIZE);
+    }
+
+    public WalKVDao(
+            @NotNull VersionedKVDao delegate,
+            @NotNull File directory,
+            long batchWindowMicros,
+            long maxLogSize) throws IOException {
+        this.delegate = delegate;
+        this.maxLogSize = maxLogSize;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        this.log = new WriteAheadLog(new File(directory, LOG_NAME), batchWindowMicros, this::apply);
+        flush();
+    }
+
+    private void apply(@NotNull ByteBuffer record) throws IOException {
+        if (record.get(record.position()) == BATCH) {
+            record.get();
+            final WriteBatch batch = new WriteBatch();
+            for (int count = record.getInt(); count > 0; count--) {
+                final byte op = record.get();
+                final byte[] key = new byte[record.getInt()];
+                record.get(key);
+                final long timestamp = record.getLong();
+                switch (op) {
+                    case VERSIONED_REMOVE:
+                        batch.remove(key, timestamp);
+                        break;
+                    case VERSIONED_UPSERT:
+                        batch.upsert(key, value(record), timestamp);
+                        break;
+                    default:
+                        throw new IOException("Unknown batch record type: " + op);
+                }
+            }
+            delegate.write(batch);
+            return;
+        }
+        final byte op = record.get();
+        final byte[] key = new byte[record.getInt()];
+        record.get(key);
+        switch (op) {
+            case REMOVE:
+                delegate.remove(key);
+                break;
+            case UPSERT:
+                delegate.upsert(key, value(record));
+                break;
+            case VERSIONED_REMOVE:
+                delegate.remove(key, record.getLong());
+                break;
+            case VERSIONED_UPSERT:
+                final long timestamp = record.getLong();
+                delegate.upsert(key, value(record), timestamp);
+                break;
+            default:
+                throw new IOException("Unknown log record type: " + op);
+        }
+    }
+
+    @NotNull
+    private static byte[] value(@NotNull ByteBuffer record) {
+        final byte[] value = new byte[record.getInt()];
+        record.get(value);
+        return value;
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        return delegate.get(key);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer getBuffer(@NotNull byte[] key) throws NoSuchElementException, IOException {
+        return ZeroCopyKVDao.getBuffer(delegate, key);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> versions() throws IOException {
+        return delegate.versions();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<ByteBuffer, Value>> range(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException {
+        return delegate.range(from, to);
+    }
+
+    @Nullable
+    @Override
+    public Value getVersion(@NotNull byte[] key) throws IOException {
+        return delegate.getVersion(key);
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value) throws IOException {
+        upsert(key, value, Value.now());
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key) throws IOException {
+        remove(key, Value.now());
+    }
+
+    @Override
+    public void upsert(@NotNull byte[] key, @NotNull byte[] value, long timestamp) throws IOException {
+        final ByteBuffer record = ByteBuffer.allocate(
+                1 + Integer.BYTES + key.length + Long.BYTES + Integer.BYTES + value.length);
+        record.put(VERSIONED_UPSERT).putInt(key.length).put(key).putLong(timestamp).putInt(value.length).put(value);
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (stripe(key)) {
+                log.append(record.array());
+                delegate.upsert(key, value, timestamp);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        checkpointIfNeeded();
+    }
+
+    @Override
+    public void remove(@NotNull byte[] key, long timestamp) throws IOException {
+        final ByteBuffer record = ByteBuffer.allocate(1 + Integer.BYTES + key.length + Long.BYTES);
+        record.put(VERSIONED_REMOVE).putInt(key.length).put(key).putLong(timestamp);
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (stripe(key)) {
+                log.append(record.array());
+                delegate.remove(key, timestamp);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        checkpointIfNeeded();
+    }
+
+    /**
+     * Logs the whole batch as one record, so it is made durable with one force
+     * and replayed all or nothing.
+     */
+    @Override
+    public void write(@NotNull WriteBatch batch) throws IOException {
+        final WriteBatch sorted = batch.sorted();
+        int size = 1 + Integer.BYTES;
+        for (int i = 0; i < sorted.size(); i++) {
+            size += 1 + Integer.BYTES + sorted.key(i).length + Long.BYTES;
+            if (!sorted.value(i).isRemoved()) {
+                size += Integer.BYTES + sorted.value(i).getBuffer().remaining();
+            }
+        }
+        final ByteBuffer record = ByteBuffer.allocate(size);
+        record.put(BATCH).putInt(sorted.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            final Value value = sorted.value(i);
+            record.put(value.isRemoved() ? VERSIONED_REMOVE : VERSIONED_UPSERT)
+                    .putInt(sorted.key(i).length)
+                    .put(sorted.key(i))
+                    .putLong(value.getTimestamp());
+            if (!value.isRemoved()) {
+                record.putInt(value.getBuffer().remaining()).put(value.getBuffer());
+            }
+        }
+        checkpointLock.readLock().lock();
+        try {
+            sorted.locked(stripes, () -> {
+                log.append(record.array());
+                delegate.write(sorted);
+            });
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        checkpointIfNeeded();
+    }
+
+    @NotNull
+    private Object stripe(@NotNull byte[] key) {
+        return stripes[Arrays.hashCode(key) & (STRIPES - 1)];
+    }
+
+    private void checkpointIfNeeded() throws IOException {
+        if (log.size() >= maxLogSize && delegate instanceof Flushable) {
+            flush();
+        }
+    }
+
+    /**
+     * Flushes the delegate and truncates the log if the delegate can be flushed.
+     */
+    @NotNull
+    @Override
+    public VersionedKVDao delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (!(delegate instanceof Flushable)) {
+            return;
+        }
+        checkpointLock.writeLock().lock();
+        try {
+            if (log.size() == 0) {
+                return;
+            }
+            ((Flushable) delegate).flush();
+            log.truncate();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            log.close();
+        } finally {
+            delegate.close();
+        }
+    }
+}
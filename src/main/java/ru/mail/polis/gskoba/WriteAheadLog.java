@@ -0,0 +1,220 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal with group commit.
+ * <p>
+ * Writers enqueue records and block until they are durable. A single committer thread
+ * drains everything queued (waiting up to the batch window for more writers to join),
+ * writes the batch with one gathering write and makes it durable with one
+ * {@link FileChannel#force(boolean)}.
+ * <p>
+ * Record layout: {@code crc:int length:int payload}.
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int MAX_BATCH = 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long batchWindowNanos;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private volatile boolean closed;
+
+    interface Replayer {
+        void replay(@NotNull ByteBuffer payload) throws IOException;
+    }
+
+    private static final class Pending {
+        final ByteBuffer record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(@NotNull ByteBuffer record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * Opens the log, feeding every intact record to {@code replayer} and
+     * cutting off a torn tail left by a crash.
+     */
+    WriteAheadLog(
+            @NotNull File file,
+            long batchWindowMicros,
+            @NotNull Replayer replayer) throws IOException {
+        this.file = file;
+        this.batchWindowNanos = TimeUnit.MICROSECONDS.toNanos(batchWindowMicros);
+        final long valid = file.exists() ? replay(file, replayer) : 0;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(valid);
+        channel.position(valid);
+        this.committer = new Thread(this::commitLoop, "wal-committer-" + file.getName());
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    private static long replay(@NotNull File file, @NotNull Replayer replayer) throws IOException {
+        long valid = 0;
+        final CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                final int checksum;
+                final int length;
+                final byte[] payload;
+                try {
+                    checksum = in.readInt();
+                    length = in.readInt();
+                    if (length < 0 || valid + HEADER_SIZE + length > file.length()) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                replayer.replay(ByteBuffer.wrap(payload));
+                valid += HEADER_SIZE + length;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Appends the record and waits until it is on disk.
+     */
+    void append(@NotNull byte[] payload) throws IOException {
+        if (closed) {
+            throw new IOException("Log is closed: " + file);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt((int) crc.getValue()).putInt(payload.length).put(payload).flip();
+
+        final Pending pending = new Pending(record);
+        queue.add(pending);
+        try {
+            pending.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for commit");
+        } catch (ExecutionException e) {
+            throw new IOException("Can't commit to " + file, e.getCause());
+        }
+    }
+
+    private void commitLoop() {
+        final List<Pending> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                final Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                if (batchWindowNanos > 0) {
+                    final long deadline = System.nanoTime() + batchWindowNanos;
+                    long remaining;
+                    while (batch.size() < MAX_BATCH && (remaining = deadline - System.nanoTime()) > 0) {
+                        final Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(@NotNull List<Pending> batch) {
+        final ByteBuffer[] records = new ByteBuffer[batch.size()];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = batch.get(i).record;
+        }
+        try {
+            synchronized (channel) {
+                long left = 0;
+                for (final ByteBuffer record : records) {
+                    left += record.remaining();
+                }
+                while (left > 0) {
+                    left -= channel.write(records);
+                }
+                channel.force(false);
+            }
+            for (final Pending pending : batch) {
+                pending.done.complete(null);
+            }
+        } catch (IOException e) {
+            for (final Pending pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    long size() throws IOException {
+        synchronized (channel) {
+            return channel.position();
+        }
+    }
+
+    /**
+     * Drops all the records. The caller must make sure they are durable elsewhere
+     * and that no appends are in flight.
+     */
+    void truncate() throws IOException {
+        synchronized (channel) {
+            channel.truncate(0);
+            channel.force(true);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping the committer");
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Versioned writes applied together by {@link VersionedKVDao#write(WriteBatch)}.
+ * <p>
+ * Keys and values are not copied, they must not change once added.
+ */
+public final class WriteBatch {
+
+    private final List<byte[]> keys;
+    private final List<Value> values;
+
+    public WriteBatch() {
+        this(new ArrayList<>(), new ArrayList<>());
+    }
+
+    private WriteBatch(@NotNull List<byte[]> keys, @NotNull List<Value> values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    @NotNull
+    public WriteBatch upsert(@NotNull byte[] key, @NotNull byte[] value, long timestamp) {
+        return add(key, Value.present(timestamp, value));
+    }
+
+    @NotNull
+    public WriteBatch remove(@NotNull byte[] key, long timestamp) {
+        return add(key, Value.tombstone(timestamp));
+    }
+
+    @NotNull
+    WriteBatch add(@NotNull byte[] key, @NotNull Value value) {
+        keys.add(key);
+        values.add(value);
+        return this;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    @NotNull
+    public byte[] key(int index) {
+        return keys.get(index);
+    }
+
+    /**
+     * @return the written version, a tombstone for a remove
+     */
+    @NotNull
+    public Value value(int index) {
+        return values.get(index);
+    }
+
+    /**
+     * @return the writes in key order with one per key, the {@link Value#newest} one:
+     * a remove wins over an upsert of the same batch, otherwise the later write
+     */
+    @NotNull
+    WriteBatch sorted() {
+        final Map<ByteBuffer, Value> newest = new TreeMap<>();
+        for (int i = 0; i < size(); i++) {
+            newest.merge(ByteBuffer.wrap(keys.get(i)), values.get(i), (stored, value) -> Value.newest(value, stored));
+        }
+        final WriteBatch sorted = new WriteBatch(new ArrayList<>(newest.size()), new ArrayList<>(newest.size()));
+        for (final Map.Entry<ByteBuffer, Value> write : newest.entrySet()) {
+            sorted.add(write.getKey().array(), write.getValue());
+        }
+        return sorted;
+    }
+
+    interface Action {
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs the action holding the stripes of all the keys. Stripes are taken in index order,
+     * so batches don't deadlock with each other or with single-key writers holding one stripe.
+     *
+     * @param stripes a power of two locks, the stripe of a key is picked by its array hash code
+     */
+    void locked(@NotNull Object[] stripes, @NotNull Action action) throws IOException {
+        final boolean[] taken = new boolean[stripes.length];
+        for (final byte[] key : keys) {
+            taken[Arrays.hashCode(key) & (stripes.length - 1)] = true;
+        }
+        locked(stripes, taken, 0, action);
+    }
+
+    private static void locked(
+            @NotNull Object[] stripes,
+            @NotNull boolean[] taken,
+            int from,
+            @NotNull Action action) throws IOException {
+        int stripe = from;
+        while (stripe < stripes.length && !taken[stripe]) {
+            stripe++;
+        }
+        if (stripe == stripes.length) {
+            action.run();
+            return;
+        }
+        synchronized (stripes[stripe]) {
+            locked(stripes, taken, stripe + 1, action);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.KVDao;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link KVDao} that can hand out a value without copying it.
+ */
+public interface ZeroCopyKVDao extends KVDao {
+
+    /**
+     * @return a read-only view of the value, possibly of a memory-mapped file, valid for as long as it is referenced
+     */
+    @NotNull
+    ByteBuffer getBuffer(@NotNull byte[] key) throws NoSuchElementException, IOException;
+
+    /**
+     * Views the value of any {@link KVDao}, copying nothing if it supports that.
+     */
+    @NotNull
+    static ByteBuffer getBuffer(@NotNull KVDao dao, @NotNull byte[] key) throws NoSuchElementException, IOException {
+        if (dao instanceof ZeroCopyKVDao) {
+            return ((ZeroCopyKVDao) dao).getBuffer(key);
+        }
+        return ByteBuffer.wrap(dao.get(key)).asReadOnlyBuffer();
+    }
+}
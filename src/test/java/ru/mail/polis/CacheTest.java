@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 (c) Vadim Tsesko <incubos@yandex.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.gskoba.CachingKVDao;
+import ru.mail.polis.gskoba.LsmKVDao;
+import ru.mail.polis.gskoba.Value;
+import ru.mail.polis.gskoba.VersionedKVDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Reads through the {@link CachingKVDao}
+ */
+class CacheTest extends TestBase {
+    private static final long CAPACITY = 1024 * 1024;
+
+    @Test
+    void hitAfterFill() throws IOException {
+        final File data = Files.createTempDirectory();
+        try (CachingKVDao dao = new CachingKVDao(new LsmKVDao(data), CAPACITY)) {
+            final byte[] key = randomKey();
+            final byte[] value = randomValue();
+            dao.upsert(key, value);
+
+            // Fill
+            assertArrayEquals(value, dao.get(key));
+            assertEquals(0, dao.hits());
+            assertEquals(1, dao.misses());
+
+            // Hit
+            assertArrayEquals(value, dao.get(key));
+            assertArrayEquals(value, dao.get(key));
+            assertEquals(2, dao.hits());
+            assertEquals(1, dao.misses());
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void removeAfterFill() throws IOException {
+        final File data = Files.createTempDirectory();
+        try (CachingKVDao dao = new CachingKVDao(new LsmKVDao(data), CAPACITY)) {
+            final byte[] key = randomKey();
+            dao.upsert(key, randomValue());
+            dao.get(key);
+
+            // Remove
+            dao.remove(key);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+
+            // The tombstone is cached too
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertEquals(1, dao.hits());
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void overwriteRacingFill() throws IOException {
+        final File data = Files.createTempDirectory();
+        try (CachingKVDao dao = new CachingKVDao(new RacingKVDao(new LsmKVDao(data)), CAPACITY)) {
+            final RacingKVDao storage = (RacingKVDao) dao.delegate();
+            final byte[] key = randomKey();
+            final byte[] stale = randomValue();
+            final byte[] fresh = randomValue();
+            dao.upsert(key, stale);
+
+            // Overwrite between the miss reading the storage and filling the cache
+            storage.race = () -> dao.upsert(key, fresh);
+            assertArrayEquals(stale, dao.get(key));
+
+            // Check
+            assertArrayEquals(fresh, dao.get(key));
+            assertArrayEquals(fresh, dao.get(key));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs {@link #race} once, right after reading a version.
+     */
+    private static final class RacingKVDao implements VersionedKVDao {
+        @NotNull
+        private final VersionedKVDao delegate;
+        @Nullable
+        private Write race;
+
+        RacingKVDao(@NotNull final VersionedKVDao delegate) {
+            this.delegate = delegate;
+        }
+
+        @Nullable
+        @Override
+        public Value getVersion(@NotNull final byte[] key) throws IOException {
+            final Value value = delegate.getVersion(key);
+            final Write race = this.race;
+            if (race != null) {
+                this.race = null;
+                race.run();
+            }
+            return value;
+        }
+
+        @NotNull
+        @Override
+        public byte[] get(@NotNull final byte[] key) throws NoSuchElementException, IOException {
+            return delegate.get(key);
+        }
+
+        @Override
+        public void upsert(@NotNull final byte[] key, @NotNull final byte[] value) throws IOException {
+            delegate.upsert(key, value);
+        }
+
+        @Override
+        public void upsert(@NotNull final byte[] key, @NotNull final byte[] value, final long timestamp) throws IOException {
+            delegate.upsert(key, value, timestamp);
+        }
+
+        @Override
+        public void remove(@NotNull final byte[] key) throws IOException {
+            delegate.remove(key);
+        }
+
+        @Override
+        public void remove(@NotNull final byte[] key, final long timestamp) throws IOException {
+            delegate.remove(key, timestamp);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Map.Entry<ByteBuffer, Value>> versions() throws IOException {
+            return delegate.versions();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -102,6 +102,25 @@ abstract class ClusterTestBase extends TestBase {
         return client(node).delete(path(key, ack, from));
     }
 
+    Response entities(
+            final int node,
+            @NotNull final byte[] batch,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post("/v0/entities?replicas=" + ack + "/" + from, batch);
+    }
+
+    Response range(
+            final int node,
+            @NotNull final String start,
+            @NotNull final String end) throws Exception {
+        return client(node).get("/v0/entities?start=" + start + "&end=" + end);
+    }
+
+    Response traces(final int node) throws Exception {
+        return client(node).get("/v0/traces?limit=100");
+    }
+
     Response upsert(
             final int node,
             @NotNull final String key,
@@ -110,4 +129,14 @@ abstract class ClusterTestBase extends TestBase {
             final int from) throws Exception {
         return client(node).put(path(key, ack, from), data);
     }
+
+    Response upsert(
+            final int node,
+            @NotNull final String key,
+            @NotNull final byte[] data,
+            final int ack,
+            final int from,
+            final long expiresSeconds) throws Exception {
+        return client(node).put(path(key, ack, from) + "&expires=" + expiresSeconds, data);
+    }
 }
@@ -17,14 +17,37 @@
 package ru.mail.polis;
 
 
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.junit.jupiter.api.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import ru.mail.polis.gskoba.CompactionStrategy;
+import ru.mail.polis.gskoba.LsmKVDao;
+import ru.mail.polis.gskoba.PersistentKVDao;
+import ru.mail.polis.gskoba.ServerSettings;
+import ru.mail.polis.gskoba.Value;
+import ru.mail.polis.gskoba.VersionedKVDao;
+import ru.mail.polis.gskoba.WalKVDao;
+import ru.mail.polis.gskoba.WriteBatch;
 
 import java.io.File;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -75,4 +98,312 @@ class PersistenceTest extends TestBase {
             Files.recursiveDelete(data);
         }
     }
+
+    @Test
+    void migratePlainValues() throws IOException {
+        final File data = Files.createTempDirectory();
+        try {
+            // Write a file of the first version: plain values, no format
+            final byte[] key = randomKey();
+            final byte[] value = randomValue();
+            try (DB db = DBMaker.fileDB(new File(data, "db")).make()) {
+                db.hashMap("db", Serializer.BYTE_ARRAY, Serializer.BYTE_ARRAY).createOrOpen().put(key, value);
+            }
+
+            // Check the value survives, older than any write
+            try (PersistentKVDao dao = new PersistentKVDao(data)) {
+                assertArrayEquals(value, dao.get(key));
+                assertEquals(0, dao.getVersion(key).getTimestamp());
+            }
+
+            // Check it is migrated once
+            try (PersistentKVDao dao = new PersistentKVDao(data)) {
+                assertArrayEquals(value, dao.get(key));
+            }
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void refuseNewerFormat() throws IOException {
+        final File data = Files.createTempDirectory();
+        try {
+            try (DB db = DBMaker.fileDB(new File(data, "db")).make()) {
+                db.atomicInteger("format").createOrOpen().set(2);
+            }
+            assertThrows(IOException.class, () -> new PersistentKVDao(data));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void sweepTombstones() throws Exception {
+        final File data = Files.createTempDirectory();
+        try (PersistentKVDao dao = new PersistentKVDao(data, 1)) {
+            final byte[] removed = randomKey();
+            final byte[] kept = randomKey();
+            final byte[] value = randomValue();
+            dao.upsert(removed, randomValue());
+            dao.remove(removed);
+            dao.upsert(kept, value);
+
+            // Wait for the sweeper to drop the tombstone
+            for (int i = 0; i < 100 && dao.getVersion(removed) != null; i++) {
+                Thread.sleep(50);
+            }
+
+            // Check
+            assertNull(dao.getVersion(removed));
+            assertArrayEquals(value, dao.get(kept));
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void sweepLateTombstones() throws Exception {
+        final File data = Files.createTempDirectory();
+        try (PersistentKVDao dao = new PersistentKVDao(data, 1)) {
+            // Tombstones already past the grace period, written while the sweeper runs
+            final List<byte[]> removed = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                final byte[] key = randomKey();
+                dao.upsert(key, randomValue(), 1);
+                dao.remove(key, 2);
+                removed.add(key);
+            }
+
+            // Wait for the sweeper to drop them all
+            for (int i = 0; i < 100 && removed.stream().anyMatch(key -> version(dao, key) != null); i++) {
+                Thread.sleep(50);
+            }
+
+            // Check
+            for (final byte[] key : removed) {
+                assertNull(dao.getVersion(key));
+            }
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void tombstoneGraceFromConfig() throws Exception {
+        final File data = Files.createTempDirectory();
+        final File config = new File(Files.createTempDirectory(), "kv.properties");
+        try {
+            java.nio.file.Files.write(config.toPath(), "kv.tombstone.grace=1\n".getBytes(StandardCharsets.UTF_8));
+            System.setProperty(ServerSettings.CONFIG_PROPERTY, config.getPath());
+            final VersionedKVDao dao;
+            try {
+                dao = (VersionedKVDao) KVDaoFactory.create(data);
+            } finally {
+                System.clearProperty(ServerSettings.CONFIG_PROPERTY);
+            }
+            try {
+                // A tombstone long past a second of grace
+                final byte[] key = randomKey();
+                dao.upsert(key, randomValue(), 1);
+                dao.remove(key, 2);
+
+                // Swept by the storage with the configured grace
+                for (int i = 0; i < 100 && version(dao, key) != null; i++) {
+                    Thread.sleep(50);
+                }
+                assertNull(dao.getVersion(key));
+            } finally {
+                dao.close();
+            }
+        } finally {
+            Files.recursiveDelete(data);
+            Files.recursiveDelete(config.getParentFile());
+        }
+    }
+
+    @Nullable
+    private static Value version(
+            @NotNull final VersionedKVDao dao,
+            @NotNull final byte[] key) {
+        try {
+            return dao.getVersion(key);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    void reopenCompacted() throws Exception {
+        final File data = Files.createTempDirectory();
+        try {
+            final List<byte[]> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            try (LsmKVDao dao = new LsmKVDao(
+                    data,
+                    LsmKVDao.DEFAULT_FLUSH_THRESHOLD,
+                    LsmKVDao.DEFAULT_BLOOM_FPP,
+                    CompactionStrategy.none(),
+                    0,
+                    LsmKVDao.DEFAULT_TOMBSTONE_GRACE_MILLIS)) {
+                // Fill a few tables
+                for (int table = 0; table < 4; table++) {
+                    for (int i = 0; i < 16; i++) {
+                        final byte[] key = randomKey();
+                        final byte[] value = randomValue();
+                        dao.upsert(key, value);
+                        keys.add(key);
+                        values.add(value);
+                    }
+                    dao.flush();
+                }
+
+                // Overwrite and remove across the tables
+                values.set(0, randomValue());
+                dao.upsert(keys.get(0), values.get(0));
+                dao.remove(keys.get(1));
+                dao.flush();
+
+                // Merge them all
+                dao.compact(true).get();
+                final File[] tables = data.listFiles((dir, name) -> name.endsWith(".sst"));
+                assertEquals(1, tables == null ? 0 : tables.length);
+            }
+
+            // Recreate dao
+            try (LsmKVDao dao = new LsmKVDao(data)) {
+                for (int i = 0; i < keys.size(); i++) {
+                    if (i == 1) {
+                        final byte[] removed = keys.get(i);
+                        assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+                    } else {
+                        assertArrayEquals(values.get(i), dao.get(keys.get(i)));
+                    }
+                }
+            }
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void replayLog() throws IOException {
+        final File data = Files.createTempDirectory();
+        final File crashed = Files.createTempDirectory();
+        try {
+            final byte[] upserted = randomKey();
+            final byte[] removed = randomKey();
+            final byte[] first = randomKey();
+            final byte[] second = randomKey();
+            final byte[] value = randomValue();
+            try (WalKVDao dao = new WalKVDao(new LsmKVDao(data), data, 0)) {
+                // Log a write of every kind
+                dao.upsert(upserted, value, 1);
+                dao.upsert(removed, randomValue(), 2);
+                dao.remove(removed, 3);
+                dao.write(new WriteBatch().upsert(first, value, 4).upsert(second, value, 5));
+
+                // Keep the log as a crash before any flush leaves it
+                java.nio.file.Files.copy(
+                        new File(data, "wal.log").toPath(),
+                        new File(crashed, "wal.log").toPath(),
+                        StandardCopyOption.COPY_ATTRIBUTES);
+            }
+
+            // Replay it into an empty storage
+            try (WalKVDao dao = new WalKVDao(new LsmKVDao(crashed), crashed, 0)) {
+                assertArrayEquals(value, dao.get(upserted));
+                assertEquals(1, dao.getVersion(upserted).getTimestamp());
+                final Value tombstone = dao.getVersion(removed);
+                assertTrue(tombstone.isRemoved());
+                assertEquals(3, tombstone.getTimestamp());
+                assertArrayEquals(value, dao.get(first));
+                assertEquals(5, dao.getVersion(second).getTimestamp());
+            }
+        } finally {
+            Files.recursiveDelete(data);
+            Files.recursiveDelete(crashed);
+        }
+    }
+
+    @Test
+    void recoverMapDbAfterCrash() throws IOException {
+        final File data = Files.createTempDirectory();
+        final File crashed = Files.createTempDirectory();
+        try {
+            final byte[] kept = randomKey();
+            final byte[] removed = randomKey();
+            final byte[] value = randomValue();
+            try (WalKVDao dao = new WalKVDao(new PersistentKVDao(data), data, 0)) {
+                dao.upsert(kept, value, 1);
+                dao.upsert(removed, randomValue(), 2);
+                dao.flush();
+                dao.remove(removed, 3);
+
+                // Keep the files as a crash leaves them: nothing closed, the last write not checkpointed
+                copy(data, crashed);
+            }
+
+            // Reopen and replay
+            try (WalKVDao dao = new WalKVDao(new PersistentKVDao(crashed), crashed, 0)) {
+                assertArrayEquals(value, dao.get(kept));
+                final Value tombstone = dao.getVersion(removed);
+                assertTrue(tombstone.isRemoved());
+                assertEquals(3, tombstone.getTimestamp());
+            }
+        } finally {
+            Files.recursiveDelete(data);
+            Files.recursiveDelete(crashed);
+        }
+    }
+
+    @Test
+    void tombstoneWinsTie() throws IOException {
+        final File lsm = Files.createTempDirectory();
+        final File mapDb = Files.createTempDirectory();
+        try {
+            try (LsmKVDao dao = new LsmKVDao(lsm)) {
+                assertTombstoneWinsTie(dao, dao::flush);
+            }
+            try (PersistentKVDao dao = new PersistentKVDao(mapDb)) {
+                assertTombstoneWinsTie(dao, dao::flush);
+            }
+        } finally {
+            Files.recursiveDelete(lsm);
+            Files.recursiveDelete(mapDb);
+        }
+    }
+
+    private static void assertTombstoneWinsTie(
+            @NotNull final VersionedKVDao dao,
+            @NotNull final Flushable between) throws IOException {
+        final byte[] removedLater = randomKey();
+        final byte[] removedFirst = randomKey();
+
+        // Both orders of a value and a tombstone of the same timestamp, apart and together
+        dao.upsert(removedLater, randomValue(), 7);
+        dao.remove(removedFirst, 7);
+        between.flush();
+        dao.remove(removedLater, 7);
+        dao.upsert(removedFirst, randomValue(), 7);
+
+        for (final byte[] key : Arrays.asList(removedLater, removedFirst)) {
+            final Value version = dao.getVersion(key);
+            assertTrue(version.isRemoved());
+            assertEquals(7, version.getTimestamp());
+        }
+    }
+
+    private static void copy(
+            @NotNull final File from,
+            @NotNull final File to) throws IOException {
+        final File[] files = from.listFiles();
+        assertNotNull(files);
+        for (final File file : files) {
+            java.nio.file.Files.copy(
+                    file.toPath(),
+                    new File(to, file.getName()).toPath(),
+                    StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
 }
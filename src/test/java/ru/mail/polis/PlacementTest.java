@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 (c) Vadim Tsesko <incubos@yandex.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.gskoba.RendezvousPlacement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Replica choice of the {@link RendezvousPlacement}
+ */
+class PlacementTest extends TestBase {
+    private static final int NODES = 5;
+    private static final int KEYS = 10_000;
+
+    @NotNull
+    private static List<String> topology() {
+        final List<String> nodes = new ArrayList<>(NODES);
+        for (int i = 0; i < NODES; i++) {
+            nodes.add(endpoint(8080 + i));
+        }
+        return nodes;
+    }
+
+    @NotNull
+    private static List<byte[]> keys() {
+        final List<byte[]> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKey());
+        }
+        return keys;
+    }
+
+    @Test
+    void deterministic() {
+        final List<String> topology = topology();
+        final RendezvousPlacement placement = new RendezvousPlacement(topology);
+        Collections.reverse(topology);
+        final RendezvousPlacement reversed = new RendezvousPlacement(topology);
+
+        // Same replicas every time and whatever the topology order
+        for (final byte[] key : keys()) {
+            final List<String> replicas = placement.replicas(key, NODES);
+            assertEquals(replicas, placement.replicas(key, NODES));
+            assertEquals(replicas, reversed.replicas(key, NODES));
+        }
+    }
+
+    @Test
+    void distinctReplicas() {
+        final RendezvousPlacement placement = new RendezvousPlacement(topology());
+        for (final byte[] key : keys()) {
+            final List<String> all = placement.replicas(key, NODES);
+            for (int from = 1; from <= NODES; from++) {
+                final List<String> replicas = placement.replicas(key, from);
+
+                // Distinct nodes of the topology, a prefix of the larger choices
+                assertEquals(from, replicas.size());
+                assertEquals(from, new HashSet<>(replicas).size());
+                assertTrue(placement.nodes().containsAll(replicas));
+                assertEquals(all.subList(0, from), replicas);
+            }
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> placement.replicas(randomKey(), 0));
+        assertThrows(IllegalArgumentException.class, () -> placement.replicas(randomKey(), NODES + 1));
+        assertThrows(IllegalArgumentException.class, () -> new RendezvousPlacement(Collections.emptyList()));
+    }
+
+    @Test
+    void balanced() {
+        final RendezvousPlacement placement = new RendezvousPlacement(topology());
+        final Map<String, Integer> owned = new HashMap<>();
+        for (final byte[] key : keys()) {
+            owned.merge(placement.replicas(key, 1).get(0), 1, Integer::sum);
+        }
+
+        // About the same share each
+        assertEquals(NODES, owned.size());
+        for (final int keys : owned.values()) {
+            assertTrue(Math.abs(keys - KEYS / NODES) < KEYS / NODES / 5, "Keys owned " + keys);
+        }
+    }
+
+    @Test
+    void removeNode() {
+        final List<String> topology = topology();
+        final RendezvousPlacement before = new RendezvousPlacement(topology);
+        final String removed = topology.remove(2);
+        final RendezvousPlacement after = new RendezvousPlacement(topology);
+
+        final int from = 3;
+        int moved = 0;
+        for (final byte[] key : keys()) {
+            final List<String> was = before.replicas(key, from);
+            final List<String> is = after.replicas(key, from);
+            if (was.contains(removed)) {
+                // Only the removed node is replaced, by the next best one
+                final List<String> kept = new ArrayList<>(was);
+                kept.remove(removed);
+                assertEquals(kept, is.subList(0, from - 1));
+                assertFalse(was.contains(is.get(from - 1)));
+                moved++;
+            } else {
+                assertEquals(was, is);
+            }
+        }
+
+        // About from / N of the keys
+        assertTrue(Math.abs(moved - KEYS * from / NODES) < KEYS * from / NODES / 5, "Keys moved " + moved);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 (c) Vadim Tsesko <incubos@yandex.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.mail.polis;
+
+import one.nio.http.HttpServerConfig;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.gskoba.ServerSettings;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Loading and checking {@link ServerSettings}
+ */
+class SettingsTest extends TestBase {
+    private static final int CPUS = Runtime.getRuntime().availableProcessors();
+    private static final String PEER = "http://localhost:8080";
+
+    @NotNull
+    private static Properties properties(@NotNull final String... pairs) {
+        final Properties properties = new Properties();
+        for (int i = 0; i < pairs.length; i += 2) {
+            properties.setProperty(pairs[i], pairs[i + 1]);
+        }
+        return properties;
+    }
+
+    @NotNull
+    private static File config(
+            @NotNull final File directory,
+            @NotNull final Properties properties) throws IOException {
+        final File file = new File(directory, "kv.properties");
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, null);
+        }
+        return file;
+    }
+
+    @Test
+    void defaults() {
+        final ServerSettings settings = ServerSettings.of(new Properties());
+        assertEquals(CPUS, settings.workers());
+        assertEquals(1024, settings.workerQueue());
+        assertEquals(2 * CPUS, settings.replicaThreads());
+        assertEquals(500, settings.peerTimeout(PEER));
+        assertEquals(0.1, settings.readRepairChance());
+        assertNull(settings.hintsDirectory());
+        assertEquals(16 * 1024 * 1024, settings.maxBody());
+        assertEquals(1, settings.httpServerConfig(8080).acceptors.length);
+    }
+
+    @Test
+    void loadFile() throws IOException {
+        final File directory = Files.createTempDirectory();
+        try {
+            final File file = config(directory, properties(
+                    "kv.workers", "3",
+                    "kv.workers.queue", "7",
+                    "kv.peer.timeout", "700",
+                    "kv.peer.timeout." + PEER, "100",
+                    "kv.readRepair.chance", "0.5",
+                    "kv.tombstone.grace", "60"));
+            System.setProperty(ServerSettings.CONFIG_PROPERTY, file.getPath());
+            final ServerSettings settings;
+            try {
+                settings = ServerSettings.load();
+            } finally {
+                System.clearProperty(ServerSettings.CONFIG_PROPERTY);
+            }
+
+            // Check
+            assertEquals(3, settings.workers());
+            assertEquals(7, settings.workerQueue());
+            assertEquals(100, settings.peerTimeout(PEER));
+            assertEquals(700, settings.peerTimeout("http://localhost:8081"));
+            assertEquals(0.5, settings.readRepairChance());
+            assertEquals(60_000, settings.tombstoneGraceMillis());
+        } finally {
+            Files.recursiveDelete(directory);
+        }
+    }
+
+    @Test
+    void overrideFile() throws IOException {
+        final File directory = Files.createTempDirectory();
+        try {
+            final File file = config(directory, properties(
+                    "kv.workers", "3",
+                    "kv.workers.queue", "7"));
+            System.setProperty(ServerSettings.CONFIG_PROPERTY, file.getPath());
+            System.setProperty("kv.workers", "5");
+            final ServerSettings settings;
+            try {
+                settings = ServerSettings.load();
+            } finally {
+                System.clearProperty(ServerSettings.CONFIG_PROPERTY);
+                System.clearProperty("kv.workers");
+            }
+
+            // System property wins, the rest comes from the file
+            assertEquals(5, settings.workers());
+            assertEquals(7, settings.workerQueue());
+        } finally {
+            Files.recursiveDelete(directory);
+        }
+    }
+
+    @Test
+    void missingFile() throws IOException {
+        final File directory = Files.createTempDirectory();
+        System.setProperty(ServerSettings.CONFIG_PROPERTY, new File(directory, "absent.properties").getPath());
+        try {
+            assertThrows(FileNotFoundException.class, ServerSettings::load);
+        } finally {
+            System.clearProperty(ServerSettings.CONFIG_PROPERTY);
+            Files.recursiveDelete(directory);
+        }
+    }
+
+    @Test
+    void invalid() {
+        final String[][] invalid = {
+                {"kv.workers", "0"},
+                {"kv.workers.queue", "-1"},
+                {"kv.replica.threads", "0"},
+                {"kv.replica.queue", "0"},
+                {"kv.acceptors", "0"},
+                {"kv.maxBody", "0"},
+                {"kv.readRepair.chance", "1.5"},
+                {"kv.antiEntropy.interval", "-1"},
+                {"kv.tombstone.grace", "-1"},
+                {"kv.trace.sample", "-0.1"},
+                {"kv.trace.events", "0"},
+                {"kv.workers", "many"},
+                {"kv.acceptors", "2", "kv.reusePort", "false"}};
+        for (final String[] pairs : invalid) {
+            assertThrows(IllegalArgumentException.class, () -> ServerSettings.of(properties(pairs)), pairs[0]);
+        }
+
+        // Several acceptors share the port
+        final HttpServerConfig config = ServerSettings.of(properties("kv.acceptors", "2")).httpServerConfig(8080);
+        assertEquals(2, config.acceptors.length);
+        assertTrue(config.acceptors[0].reusePort);
+    }
+
+    @Test
+    void auto() {
+        final ServerSettings settings = ServerSettings.of(properties("kv.auto", "true"));
+        assertEquals(2 * CPUS, settings.workers());
+        assertEquals(128 * 2 * CPUS, settings.workerQueue());
+        assertEquals(4 * CPUS, settings.replicaThreads());
+        assertEquals(128 * 4 * CPUS, settings.replicaQueue());
+        final HttpServerConfig config = settings.httpServerConfig(8080);
+        assertEquals(CPUS, config.selectors);
+        assertEquals(Math.max(1, Math.min(4, CPUS / 4)), config.acceptors.length);
+        assertEquals(1024, config.acceptors[0].backlog);
+
+        // Explicit settings win, the queue follows them
+        final ServerSettings explicit = ServerSettings.of(properties("kv.auto", "true", "kv.workers", "1"));
+        assertEquals(1, explicit.workers());
+        assertEquals(128, explicit.workerQueue());
+        assertEquals(4 * CPUS, explicit.replicaThreads());
+
+        // Off
+        final ServerSettings manual = ServerSettings.of(properties("kv.auto", "false"));
+        assertEquals(CPUS, manual.workers());
+        assertFalse(manual.httpServerConfig(8080).acceptors[0].reusePort);
+    }
+}
@@ -20,14 +20,33 @@ import one.nio.http.HttpClient;
 import one.nio.http.Response;
 import one.nio.net.ConnectionString;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import ru.mail.polis.gskoba.HybridClock;
+import ru.mail.polis.gskoba.KVDaoDecorator;
+import ru.mail.polis.gskoba.LsmKVDao;
+import ru.mail.polis.gskoba.Value;
+import ru.mail.polis.gskoba.VersionedKVDao;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -118,6 +137,195 @@ class SingleNodeTest extends TestBase {
                 client.get("/abracadabra").getStatus()));
     }
 
+    @Test
+    void badVersion() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final String proxied = "X-Proxied: true";
+
+            // Versions a coordinator would send
+            assertEquals(400, client.put(path(key), randomValue(), proxied, "X-Timestamp: abc").getStatus());
+            assertEquals(400, client.delete(path(key), proxied, "X-Timestamp: abc").getStatus());
+            assertEquals(
+                    400,
+                    client.put(path(key), randomValue(), proxied, "X-Timestamp: 1", "X-Expires: abc").getStatus());
+
+            // Check
+            assertEquals(404, get(key).getStatus());
+        });
+    }
+
+    @Test
+    void badExpires() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+
+            // Not a positive number of seconds
+            assertEquals(400, client.put(path(key) + "&expires=abc", randomValue()).getStatus());
+            assertEquals(400, client.put(path(key) + "&expires=0", randomValue()).getStatus());
+
+            // Check
+            assertEquals(404, get(key).getStatus());
+        });
+    }
+
+    @Test
+    void expires() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+            final String kept = randomId();
+
+            // Insert one value expiring and one not
+            assertEquals(201, client.put(path(key) + "&expires=2", value).getStatus());
+            assertEquals(201, upsert(kept, value).getStatus());
+
+            // Check
+            final Response response = get(key);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+
+            // Restart with the deadline on disk
+            storage.stop();
+            dao.close();
+            dao = KVDaoFactory.create(data);
+            port = randomPort();
+            endpoint = endpoint(port);
+            storage = KVServiceFactory.create(port, dao, Collections.singleton(endpoint));
+            storage.start();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            reset();
+
+            // Wait for the deadline
+            while (get(key).getStatus() == 200) {
+                Thread.sleep(100);
+            }
+
+            // Check
+            assertEquals(404, get(key).getStatus());
+            assertArrayEquals(value, get(kept).getBody());
+        });
+    }
+
+    @Test
+    void entities() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String first = randomId();
+            final String second = randomId();
+            final String removed = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(removed, value).getStatus());
+
+            // Write and read in one batch: PUT, PUT, DELETE, then GET each and an absent key
+            final ByteBuffer batch = ByteBuffer.allocate(4096);
+            operation(batch, (byte) 1, first).putInt(value.length).put(value);
+            operation(batch, (byte) 1, second).putInt(0);
+            operation(batch, (byte) 2, removed);
+            operation(batch, (byte) 0, first);
+            operation(batch, (byte) 0, second);
+            operation(batch, (byte) 0, removed);
+            operation(batch, (byte) 0, "absent");
+            final Response response = client.post("/v0/entities", Arrays.copyOf(batch.array(), batch.position()));
+            assertEquals(200, response.getStatus());
+
+            // Check the results, in order: status:short timestamp:long valueLength:int value
+            final ByteBuffer results = ByteBuffer.wrap(response.getBody());
+            final int[] statuses = {201, 201, 202, 200, 200, 404, 404};
+            final byte[][] values = {{}, {}, {}, value, {}, {}, {}};
+            for (int i = 0; i < statuses.length; i++) {
+                assertEquals(statuses[i], results.getShort());
+                results.getLong();
+                final byte[] body = new byte[results.getInt()];
+                results.get(body);
+                assertArrayEquals(values[i], body);
+            }
+            assertFalse(results.hasRemaining());
+
+            // Check the writes went through
+            assertArrayEquals(value, get(first).getBody());
+            assertEquals(404, get(removed).getStatus());
+
+            // Check reading an absent key kept the clock close to the wall clock
+            final ByteBuffer again = ByteBuffer.allocate(4096);
+            operation(again, (byte) 1, first).putInt(value.length).put(value);
+            final ByteBuffer result = ByteBuffer.wrap(
+                    client.post("/v0/entities", Arrays.copyOf(again.array(), again.position())).getBody());
+            assertEquals(201, result.getShort());
+            assertTrue(HybridClock.millis(result.getLong()) < System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1));
+        });
+    }
+
+    @Test
+    void badEntities() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Unknown operation
+            assertEquals(400, client.post("/v0/entities", new byte[]{42, 0, 0, 0, 1, 'k'}).getStatus());
+
+            // Truncated key
+            assertEquals(400, client.post("/v0/entities", new byte[]{0, 0, 0, 0, 8, 'k'}).getStatus());
+
+            // Range without a start
+            assertEquals(400, client.get("/v0/entities").getStatus());
+        });
+    }
+
+    @NotNull
+    private static ByteBuffer operation(
+            @NotNull final ByteBuffer batch,
+            final byte type,
+            @NotNull final String key) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return batch.put(type).putInt(bytes.length).put(bytes);
+    }
+
+    @Test
+    void range() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Start a node with an ordered storage
+            final File ordered = Files.createTempDirectory();
+            final int rangePort = randomPort();
+            final KVDao lsm = new LsmKVDao(ordered);
+            final KVService node = KVServiceFactory.create(rangePort, lsm, Collections.singleton(endpoint(rangePort)));
+            node.start();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            final HttpClient rangeClient = new HttpClient(
+                    new ConnectionString(
+                            "http://localhost:" + rangePort +
+                                    "?timeout=" + (TIMEOUT.toMillis() / 2)));
+            try {
+                // Insert keys 0 to 4, remove 2
+                final String prefix = randomId();
+                final byte[] value = randomValue();
+                for (int i = 0; i < 5; i++) {
+                    assertEquals(201, rangeClient.put(path(prefix + i), value).getStatus());
+                }
+                assertEquals(202, rangeClient.delete(path(prefix + 2)).getStatus());
+
+                // Read from 1 inclusive to 4 exclusive
+                final Response response = rangeClient.get(
+                        "/v0/entities?start=" + prefix + 1 + "&end=" + prefix + 4);
+                assertEquals(200, response.getStatus());
+
+                // Check: keyLength:int valueLength:int key value, in order, without the removed key
+                final ByteBuffer entries = ByteBuffer.wrap(response.getBody());
+                final List<String> keys = new ArrayList<>();
+                while (entries.hasRemaining()) {
+                    final byte[] key = new byte[entries.getInt()];
+                    final byte[] body = new byte[entries.getInt()];
+                    entries.get(key).get(body);
+                    keys.add(new String(key, StandardCharsets.UTF_8));
+                    assertArrayEquals(value, body);
+                }
+                assertEquals(Arrays.asList(prefix + 1, prefix + 3), keys);
+            } finally {
+                rangeClient.close();
+                node.stop();
+                lsm.close();
+                Files.recursiveDelete(ordered);
+            }
+        });
+    }
+
     @Test
     void getAbsent() {
         assertTimeoutPreemptively(TIMEOUT, () -> assertEquals(
@@ -164,6 +372,24 @@ class SingleNodeTest extends TestBase {
         });
     }
 
+    @Test
+    void insertLarge() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            // Past one-nio's 64 KB request body and kept in a file of its own
+            final byte[] value = new byte[2 * 1024 * 1024];
+            ThreadLocalRandom.current().nextBytes(value);
+
+            // Insert
+            assertEquals(201, upsert(key, value).getStatus());
+
+            // Check
+            final Response response = get(key);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+        });
+    }
+
     @Test
     void lifecycle2keys() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
@@ -288,4 +514,224 @@ class SingleNodeTest extends TestBase {
             assertEquals(404, get(key).getStatus());
         });
     }
+
+    /**
+     * @return value of the first sample of the metric with exactly these labels
+     */
+    private static double sample(
+            @NotNull final String stats,
+            @NotNull final String metric) {
+        for (final String line : stats.split("\n")) {
+            if (line.startsWith(metric + " ")) {
+                return Double.parseDouble(line.substring(metric.length() + 1));
+            }
+        }
+        throw new AssertionError("No " + metric + " in " + stats);
+    }
+
+    @Test
+    void stats() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            // Traffic
+            assertEquals(201, upsert(key, value).getStatus());
+            assertEquals(200, get(key).getStatus());
+            assertEquals(202, delete(key).getStatus());
+            assertEquals(404, get(key).getStatus());
+
+            // Prometheus text
+            final Response response = client.get("/v0/stats");
+            assertEquals(200, response.getStatus());
+            assertTrue(response.getHeader("Content-Type: ").startsWith("text/plain"));
+            final String stats = new String(response.getBody(), StandardCharsets.UTF_8);
+            assertTrue(stats.contains("# TYPE kv_request_duration_seconds summary\n"));
+            assertTrue(stats.contains("# TYPE kv_dao_duration_seconds summary\n"));
+            for (final String request : new String[]{
+                    "method=\"PUT\",status=\"201\"",
+                    "method=\"GET\",status=\"200\"",
+                    "method=\"DELETE\",status=\"202\"",
+                    "method=\"GET\",status=\"404\""}) {
+                assertTrue(sample(stats, "kv_request_duration_seconds_count{" + request + "}") >= 1);
+                assertTrue(sample(stats, "kv_request_duration_seconds_sum{" + request + "}") > 0);
+                assertTrue(sample(stats, "kv_request_duration_seconds{" + request + ",quantile=\"0.99\"}") > 0);
+            }
+            for (final String operation : new String[]{"get", "upsert", "remove"}) {
+                assertTrue(sample(stats, "kv_dao_duration_seconds_count{operation=\"" + operation + "\"}") >= 1);
+            }
+            assertTrue(sample(stats, "kv_received_bytes_total") >= value.length);
+            assertTrue(sample(stats, "kv_sent_bytes_total") >= value.length);
+            assertTrue(stats.contains("# TYPE kv_read_repairs_total counter\n"));
+            for (final String gauge : new String[]{
+                    "kv_worker_queue_depth", "kv_worker_active", "kv_replica_queue_depth", "kv_hints_pending"}) {
+                assertTrue(stats.contains("# TYPE " + gauge + " gauge\n"));
+                assertTrue(sample(stats, gauge) >= 0);
+            }
+
+            // JSON
+            final Response json = client.get("/v0/stats?format=json");
+            assertEquals(200, json.getStatus());
+            assertEquals("application/json", json.getHeader("Content-Type: "));
+            final String body = new String(json.getBody(), StandardCharsets.UTF_8);
+            assertTrue(body.startsWith("{\"requests\":["));
+            assertTrue(body.contains("{\"method\":\"PUT\",\"status\":201,\"count\":"));
+            assertTrue(body.contains("{\"operation\":\"get\",\"count\":"));
+            assertTrue(body.contains("\"p99\":"));
+            assertTrue(body.contains("\"kv_received_bytes_total\":"));
+
+            assertEquals(400, client.post("/v0/stats", new byte[0]).getStatus());
+        });
+    }
+
+    @Test
+    void overloaded() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final int port = randomPort();
+            final File directory = Files.createTempDirectory();
+            final BlockingKVDao blocking = new BlockingKVDao((VersionedKVDao) KVDaoFactory.create(directory));
+            final String blocked = randomId();
+            blocking.blocked = blocked.getBytes(StandardCharsets.UTF_8);
+            final ExecutorService clients = Executors.newFixedThreadPool(2);
+
+            // One worker and one replica thread, each with room for one more request
+            final String[] settings = {"kv.workers", "kv.workers.queue", "kv.replica.threads", "kv.replica.queue"};
+            for (final String setting : settings) {
+                System.setProperty(setting, "1");
+            }
+            final KVService service;
+            try {
+                service = KVServiceFactory.create(port, blocking, Collections.singleton(endpoint(port)));
+            } finally {
+                for (final String setting : settings) {
+                    System.clearProperty(setting);
+                }
+            }
+            service.start();
+            final HttpClient busy = new HttpClient(
+                    new ConnectionString(endpoint(port) + "?timeout=" + (TIMEOUT.toMillis() / 2)));
+            try {
+                // Replica reads run on the worker, block it and queue another one
+                final String proxied = "X-Proxied: true";
+                final List<Future<Response>> reads = new ArrayList<>();
+                reads.add(clients.submit(() -> busy.get(path(blocked), proxied)));
+                blocking.entered.acquire();
+                reads.add(clients.submit(() -> busy.get(path(blocked), proxied)));
+                awaitStat(busy, "kv_worker_queue_depth 1");
+
+                // Shed
+                assertEquals(503, busy.get(path(randomId())).getStatus());
+                assertEquals(503, busy.put(path(randomId()), randomValue()).getStatus());
+
+                // Unblock
+                blocking.release.release(2);
+                for (final Future<Response> read : reads) {
+                    assertEquals(404, read.get().getStatus());
+                }
+                blocking.entered.drainPermits();
+                reads.clear();
+
+                // Client reads leave the worker and block the replica thread, queueing another one
+                reads.add(clients.submit(() -> busy.get(path(blocked))));
+                blocking.entered.acquire();
+                reads.add(clients.submit(() -> busy.get(path(blocked))));
+                awaitStat(busy, "kv_replica_queue_depth 1");
+
+                // Shed
+                assertEquals(503, busy.get(path(randomId())).getStatus());
+
+                // Unblock
+                blocking.release.release(2);
+                for (final Future<Response> read : reads) {
+                    assertEquals(404, read.get().getStatus());
+                }
+
+                // Recovered
+                assertEquals(404, busy.get(path(randomId())).getStatus());
+            } finally {
+                blocking.release.release(Integer.MAX_VALUE / 2);
+                clients.shutdown();
+                busy.close();
+                service.stop();
+                blocking.close();
+                Files.recursiveDelete(directory);
+            }
+        });
+    }
+
+    private static void awaitStat(
+            @NotNull final HttpClient client,
+            @NotNull final String line) throws Exception {
+        while (!new String(client.get("/v0/stats").getBody(), StandardCharsets.UTF_8).contains("\n" + line + "\n")) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Holds the reads of {@link #blocked} until {@link #release}d.
+     */
+    private static final class BlockingKVDao implements VersionedKVDao, KVDaoDecorator {
+        @NotNull
+        private final VersionedKVDao delegate;
+        private final Semaphore entered = new Semaphore(0);
+        private final Semaphore release = new Semaphore(0);
+        private volatile byte[] blocked;
+
+        BlockingKVDao(@NotNull final VersionedKVDao delegate) {
+            this.delegate = delegate;
+        }
+
+        @Nullable
+        @Override
+        public Value getVersion(@NotNull final byte[] key) throws IOException {
+            if (Arrays.equals(key, blocked)) {
+                entered.release();
+                release.acquireUninterruptibly();
+            }
+            return delegate.getVersion(key);
+        }
+
+        @NotNull
+        @Override
+        public byte[] get(@NotNull final byte[] key) throws NoSuchElementException, IOException {
+            return delegate.get(key);
+        }
+
+        @Override
+        public void upsert(@NotNull final byte[] key, @NotNull final byte[] value) throws IOException {
+            delegate.upsert(key, value);
+        }
+
+        @Override
+        public void upsert(@NotNull final byte[] key, @NotNull final byte[] value, final long timestamp) throws IOException {
+            delegate.upsert(key, value, timestamp);
+        }
+
+        @Override
+        public void remove(@NotNull final byte[] key) throws IOException {
+            delegate.remove(key);
+        }
+
+        @Override
+        public void remove(@NotNull final byte[] key, final long timestamp) throws IOException {
+            delegate.remove(key, timestamp);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Map.Entry<ByteBuffer, Value>> versions() throws IOException {
+            return delegate.versions();
+        }
+
+        @NotNull
+        @Override
+        public VersionedKVDao delegate() {
+            return delegate;
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
 }
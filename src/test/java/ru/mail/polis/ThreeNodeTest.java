@@ -23,10 +23,18 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -196,6 +204,90 @@ class ThreeNodeTest extends ClusterTestBase {
         });
     }
 
+    @Test
+    void escapedKey() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = "key with spaces, &=+%/? and \u043a\u043b\u044e\u0447";
+            final String id = URLEncoder.encode(key, "UTF-8");
+            final byte[] value = randomValue();
+
+            // Insert
+            assertEquals(201, upsert(0, id, value, 3, 3).getStatus());
+
+            // Check every replica stored the decoded key
+            assertArrayEquals(value, dao0.get(key.getBytes(StandardCharsets.UTF_8)));
+            assertArrayEquals(value, dao1.get(key.getBytes(StandardCharsets.UTF_8)));
+            assertArrayEquals(value, dao2.get(key.getBytes(StandardCharsets.UTF_8)));
+
+            // Check
+            final Response response = get(1, id, 3, 3);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+        });
+    }
+
+    @Test
+    void range() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            restartOrdered();
+
+            // Insert keys needing escapes, each on two of the nodes, and one outside the range
+            final Map<String, byte[]> expected = new TreeMap<>(
+                    Comparator.comparing((String key) -> ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8))));
+            for (int i = 0; i < 50; i++) {
+                final String key = "range " + (char) ('a' + i % 26) + "&" + i + "=\u044f";
+                final byte[] value = randomValue();
+                assertEquals(201, upsert(i % 3, URLEncoder.encode(key, "UTF-8"), value, 2, 2).getStatus());
+                expected.put(key, value);
+            }
+            assertEquals(201, upsert(0, "rangf", randomValue(), 3, 3).getStatus());
+
+            // Delete one
+            final String removed = expected.keySet().iterator().next();
+            assertEquals(202, delete(1, URLEncoder.encode(removed, "UTF-8"), 3, 3).getStatus());
+            expected.remove(removed);
+
+            // Check the merged range
+            final Response response = range(2, URLEncoder.encode("range ", "UTF-8"), "rangf");
+            assertEquals(200, response.getStatus());
+            final ByteBuffer body = ByteBuffer.wrap(response.getBody());
+            for (final Map.Entry<String, byte[]> entry : expected.entrySet()) {
+                final byte[] key = new byte[body.getInt()];
+                final byte[] value = new byte[body.getInt()];
+                body.get(key).get(value);
+                assertEquals(entry.getKey(), new String(key, StandardCharsets.UTF_8));
+                assertArrayEquals(entry.getValue(), value);
+            }
+            assertFalse(body.hasRemaining());
+        });
+    }
+
+    /**
+     * Restarts the nodes on the LSM storage, which keeps keys in order.
+     */
+    private void restartOrdered() throws Exception {
+        stop(0, storage0);
+        stop(1, storage1);
+        stop(2, storage2);
+        dao0.close();
+        dao1.close();
+        dao2.close();
+        System.setProperty("kv.dao", "lsm");
+        try {
+            dao0 = KVDaoFactory.create(data0);
+            dao1 = KVDaoFactory.create(data1);
+            dao2 = KVDaoFactory.create(data2);
+        } finally {
+            System.clearProperty("kv.dao");
+        }
+        storage0 = KVServiceFactory.create(port0, dao0, endpoints);
+        start(0, storage0);
+        storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+        start(1, storage1);
+        storage2 = KVServiceFactory.create(port2, dao2, endpoints);
+        start(2, storage2);
+    }
+
     @Test
     void missedWrite() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
@@ -219,6 +311,204 @@ class ThreeNodeTest extends ClusterTestBase {
         });
     }
 
+    @Test
+    void readRepair() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            // Repair every read, with no hints and anti-entropy to bring the write instead
+            final String[] settings = {"kv.readRepair.chance", "kv.hints.maxBytes", "kv.antiEntropy.interval"};
+            System.setProperty(settings[0], "1");
+            System.setProperty(settings[1], "0");
+            System.setProperty(settings[2], "0");
+            try {
+                stop(0, storage0);
+                storage0 = KVServiceFactory.create(port0, dao0, endpoints);
+                start(0, storage0);
+
+                // Stop node 1
+                stop(1, storage1);
+
+                // Insert
+                assertEquals(201, upsert(0, key, value, 2, 3).getStatus());
+
+                // Start node 1
+                storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+                start(1, storage1);
+            } finally {
+                for (final String setting : settings) {
+                    System.clearProperty(setting);
+                }
+            }
+            final byte[] stored = key.getBytes(StandardCharsets.UTF_8);
+            assertThrows(NoSuchElementException.class, () -> dao1.get(stored));
+
+            // Read
+            final Response response = get(0, key, 3, 3);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+
+            // Check node 1 without reading through the cluster
+            while (true) {
+                try {
+                    assertArrayEquals(value, dao1.get(stored));
+                    break;
+                } catch (NoSuchElementException e) {
+                    Thread.sleep(100);
+                }
+            }
+        });
+    }
+
+    @Test
+    void traces() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Trace every client request of node 0
+            System.setProperty("kv.trace.sample", "1");
+            try {
+                stop(0, storage0);
+                storage0 = KVServiceFactory.create(port0, dao0, endpoints);
+                start(0, storage0);
+            } finally {
+                System.clearProperty("kv.trace.sample");
+            }
+
+            // Insert
+            assertEquals(201, upsert(0, randomId(), randomValue(), 3, 3).getStatus());
+
+            // Find the write among the slowest requests
+            final Response response = traces(0);
+            assertEquals(200, response.getStatus());
+            String trace = null;
+            for (final String candidate : new String(response.getBody(), StandardCharsets.UTF_8).split("\\{\"id\":")) {
+                if (candidate.contains("\"method\":\"PUT\",\"status\":201,")) {
+                    trace = candidate;
+                }
+            }
+            assertNotNull(trace);
+
+            // Phases of the coordinator and of both replicas
+            final Iterator<String> nodes = endpoints.iterator();
+            final String coordinator = nodes.next();
+            assertTrue(trace.contains("{\"node\":\"" + coordinator + "\",\"phases\":[{\"phase\":\"received\""));
+            assertTrue(trace.contains("{\"phase\":\"storageDone\""));
+            assertTrue(trace.contains("{\"phase\":\"responded\",\"micros\":"));
+            while (nodes.hasNext()) {
+                final String replica = nodes.next();
+                assertTrue(trace.contains(",\"peer\":\"" + replica + "\"}"));
+                assertTrue(trace.contains("{\"node\":\"" + replica + "\",\"phases\":[{\"phase\":\"proxied\""));
+            }
+        });
+    }
+
+    @Test
+    void hintAfterRestart() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            // Stop node 1
+            stop(1, storage1);
+
+            // Insert
+            assertEquals(201, upsert(0, key, value, 2, 3).getStatus());
+
+            // Restart node 0 with the hint on disk
+            stop(0, storage0);
+            storage0 = KVServiceFactory.create(port0, dao0, endpoints);
+            start(0, storage0);
+
+            // Start node 1
+            storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+            start(1, storage1);
+
+            // Check node 1 without reading through the cluster
+            final byte[] stored = key.getBytes(StandardCharsets.UTF_8);
+            while (true) {
+                try {
+                    assertArrayEquals(value, dao1.get(stored));
+                    break;
+                } catch (NoSuchElementException e) {
+                    Thread.sleep(100);
+                }
+            }
+        });
+    }
+
+    @Test
+    void binaryKeyHint() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Not UTF-8, which has no 0xff byte
+            final byte[] key = randomKey();
+            key[0] = (byte) 0xff;
+            final byte[] value = randomValue();
+
+            // Stop node 1
+            stop(1, storage1);
+
+            // Insert through a batch
+            final ByteBuffer batch = ByteBuffer.allocate(4096);
+            batch.put((byte) 1).putInt(key.length).put(key).putInt(value.length).put(value);
+            final Response response = entities(0, Arrays.copyOf(batch.array(), batch.position()), 2, 3);
+            assertEquals(200, response.getStatus());
+            assertEquals(201, ByteBuffer.wrap(response.getBody()).getShort());
+
+            // Start node 1
+            storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+            start(1, storage1);
+
+            // Check the hint brought the key as it is
+            while (true) {
+                try {
+                    assertArrayEquals(value, dao1.get(key));
+                    break;
+                } catch (NoSuchElementException e) {
+                    Thread.sleep(100);
+                }
+            }
+        });
+    }
+
+    @Test
+    void hintExpires() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            // Stop node 1
+            stop(1, storage1);
+
+            // Insert expiring
+            assertEquals(201, upsert(0, key, value, 2, 3, 5).getStatus());
+
+            // Start node 1
+            storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+            start(1, storage1);
+
+            // Wait for the hint
+            final byte[] stored = key.getBytes(StandardCharsets.UTF_8);
+            while (true) {
+                try {
+                    assertArrayEquals(value, dao1.get(stored));
+                    break;
+                } catch (NoSuchElementException e) {
+                    Thread.sleep(100);
+                }
+            }
+
+            // Node 1 expires it on its own
+            while (true) {
+                try {
+                    dao1.get(stored);
+                    Thread.sleep(100);
+                } catch (NoSuchElementException e) {
+                    break;
+                }
+            }
+        });
+    }
+
     @Test
     void missedDelete() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
@@ -333,6 +623,67 @@ class ThreeNodeTest extends ClusterTestBase {
         });
     }
 
+    @Test
+    void respectRF1AfterAntiEntropy() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Restart the nodes repairing every second and without hints
+            System.setProperty("kv.antiEntropy.interval", "1");
+            System.setProperty("kv.hints.maxBytes", "0");
+            try {
+                stop(0, storage0);
+                stop(1, storage1);
+                stop(2, storage2);
+                storage0 = KVServiceFactory.create(port0, dao0, endpoints);
+                start(0, storage0);
+                storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+                start(1, storage1);
+                storage2 = KVServiceFactory.create(port2, dao2, endpoints);
+                start(2, storage2);
+
+                // Insert on one node
+                final String key = randomId();
+                assertEquals(201, upsert(0, key, randomValue(), 1, 1).getStatus());
+
+                // Insert on every node but node 2
+                stop(2, storage2);
+                final String missed = randomId();
+                final byte[] value = randomValue();
+                assertEquals(201, upsert(0, missed, value, 2, 3).getStatus());
+
+                // Start node 2 and wait for anti-entropy to bring it the write it missed
+                storage2 = KVServiceFactory.create(port2, dao2, endpoints);
+                start(2, storage2);
+                final byte[] stored = missed.getBytes(StandardCharsets.UTF_8);
+                while (true) {
+                    try {
+                        assertArrayEquals(value, dao2.get(stored));
+                        break;
+                    } catch (NoSuchElementException e) {
+                        Thread.sleep(100);
+                    }
+                }
+
+                // Let a few more rounds run
+                Thread.sleep(TimeUnit.SECONDS.toMillis(2));
+
+                // Check
+                int copies = 0;
+                for (final KVDao dao : Arrays.asList(dao0, dao1, dao2)) {
+                    try {
+                        dao.get(key.getBytes(StandardCharsets.UTF_8));
+                        copies++;
+                    } catch (NoSuchElementException e) {
+                        // Not a replica
+                    }
+                }
+                assertEquals(1, copies);
+            } finally {
+                System.clearProperty("kv.antiEntropy.interval");
+                System.clearProperty("kv.hints.maxBytes");
+            }
+        });
+    }
+
     @Test
     void respectRF2() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
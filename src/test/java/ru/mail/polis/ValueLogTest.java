@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 (c) Vadim Tsesko <incubos@yandex.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.gskoba.LsmKVDao;
+import ru.mail.polis.gskoba.ValueLogKVDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Garbage collection of the {@link ValueLogKVDao} log
+ */
+class ValueLogTest extends TestBase {
+    private static final int KEYS = 256;
+    private static final long SEGMENT_SIZE = 64 * 1024;
+
+    @NotNull
+    private static ValueLogKVDao open(@NotNull final File data) throws IOException {
+        return new ValueLogKVDao(new LsmKVDao(data), data, 16, SEGMENT_SIZE, 0.5);
+    }
+
+    /**
+     * Writes a value to every key, then overwrites each, leaving the first segments all garbage.
+     */
+    private static void overwrite(
+            @NotNull final ValueLogKVDao dao,
+            @NotNull final List<byte[]> keys,
+            @NotNull final List<byte[]> values) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final byte[] key = randomKey();
+            dao.upsert(key, randomValue());
+            keys.add(key);
+        }
+        for (final byte[] key : keys) {
+            final byte[] value = randomValue();
+            dao.upsert(key, value);
+            values.add(value);
+        }
+    }
+
+    @Test
+    void collectOverwritten() throws IOException {
+        final File data = Files.createTempDirectory();
+        try (ValueLogKVDao dao = open(data)) {
+            final List<byte[]> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            overwrite(dao, keys, values);
+            final long size = dao.valueLogSize();
+
+            // Collect
+            assertTrue(dao.collectGarbage() > 0);
+            assertTrue(dao.valueLogSize() < size);
+
+            // Check
+            for (int i = 0; i < KEYS; i++) {
+                assertArrayEquals(values.get(i), dao.get(keys.get(i)));
+            }
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void readWhileCollecting() throws Exception {
+        final File data = Files.createTempDirectory();
+        final ExecutorService readers = Executors.newFixedThreadPool(2);
+        try (ValueLogKVDao dao = open(data)) {
+            final List<byte[]> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            overwrite(dao, keys, values);
+
+            // Read every key over and over while its value is moved
+            final AtomicBoolean collecting = new AtomicBoolean(true);
+            final List<Future<?>> reads = new ArrayList<>();
+            for (int r = 0; r < 2; r++) {
+                reads.add(readers.submit(() -> {
+                    do {
+                        for (int i = 0; i < KEYS; i++) {
+                            assertArrayEquals(values.get(i), dao.get(keys.get(i)));
+                        }
+                    } while (collecting.get());
+                    return null;
+                }));
+            }
+            try {
+                for (int round = 0; round < 8; round++) {
+                    // Same values again, so every round has garbage to collect
+                    for (int i = 0; i < KEYS; i++) {
+                        dao.upsert(keys.get(i), values.get(i));
+                    }
+                    dao.collectGarbage();
+                }
+            } finally {
+                collecting.set(false);
+            }
+
+            // Check
+            for (final Future<?> read : reads) {
+                read.get();
+            }
+            assertTrue(dao.collectedBytes() > 0);
+        } finally {
+            readers.shutdown();
+            Files.recursiveDelete(data);
+        }
+    }
+
+    @Test
+    void reopenCollected() throws IOException {
+        final File data = Files.createTempDirectory();
+        try {
+            final List<byte[]> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            try (ValueLogKVDao dao = open(data)) {
+                overwrite(dao, keys, values);
+                assertTrue(dao.collectGarbage() > 0);
+            }
+
+            // Recreate dao
+            try (ValueLogKVDao dao = open(data)) {
+                for (int i = 0; i < KEYS; i++) {
+                    assertArrayEquals(values.get(i), dao.get(keys.get(i)));
+                }
+
+                // Recounted from the segments left, nothing more to collect
+                assertEquals(0, dao.collectGarbage());
+                for (int i = 0; i < KEYS; i++) {
+                    assertArrayEquals(values.get(i), dao.get(keys.get(i)));
+                }
+            }
+        } finally {
+            Files.recursiveDelete(data);
+        }
+    }
+}
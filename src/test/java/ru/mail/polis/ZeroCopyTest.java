@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 (c) Vadim Tsesko <incubos@yandex.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.mail.polis;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.gskoba.Blob;
+import ru.mail.polis.gskoba.BlobKVDao;
+import ru.mail.polis.gskoba.LsmKVDao;
+import ru.mail.polis.gskoba.Value;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Values sent over HTTP straight from a mapped table or a blob file
+ */
+class ZeroCopyTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int BLOB_THRESHOLD = 6 * 1024 * 1024;
+    private static File data;
+    private static BlobKVDao dao;
+    private static KVService storage;
+    private static HttpClient client;
+
+    @BeforeAll
+    static void beforeAll() throws Exception {
+        final int port = randomPort();
+        data = Files.createTempDirectory();
+        dao = new BlobKVDao(new LsmKVDao(data), data, BLOB_THRESHOLD);
+        storage = KVServiceFactory.create(port, dao, Collections.singleton(endpoint(port)));
+        storage.start();
+        client = new HttpClient(new ConnectionString(endpoint(port) + "?timeout=" + TIMEOUT.toMillis() / 2));
+    }
+
+    @AfterAll
+    static void afterAll() throws IOException {
+        client.close();
+        storage.stop();
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    private static byte[] randomValue(final int length) {
+        final byte[] value = new byte[length];
+        ThreadLocalRandom.current().nextBytes(value);
+        return value;
+    }
+
+    @Test
+    void mapped() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            // More than a socket takes at once
+            final byte[] value = randomValue(4 * 1024 * 1024);
+
+            // Insert and flush to a mapped table
+            assertEquals(201, client.put("/v0/entity?id=" + key, value).getStatus());
+            dao.flush();
+            final Value stored = dao.getVersion(key.getBytes(StandardCharsets.UTF_8));
+            assertNotNull(stored);
+            assertTrue(stored.getBuffer().isDirect());
+
+            // Check
+            final Response response = client.get("/v0/entity?id=" + key);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+        });
+    }
+
+    @Test
+    void blob() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue(BLOB_THRESHOLD + 1024 * 1024);
+
+            // Insert into a file of its own
+            assertEquals(201, client.put("/v0/entity?id=" + key, value).getStatus());
+            try (Blob blob = dao.open(key.getBytes(StandardCharsets.UTF_8))) {
+                assertNotNull(blob);
+            }
+
+            // Check
+            final Response response = client.get("/v0/entity?id=" + key);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+        });
+    }
+
+    @Test
+    void small() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue(100);
+
+            // Insert and flush
+            assertEquals(201, client.put("/v0/entity?id=" + key, value).getStatus());
+            dao.flush();
+            assertNull(dao.open(key.getBytes(StandardCharsets.UTF_8)));
+
+            // Check
+            final Response response = client.get("/v0/entity?id=" + key);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+        });
+    }
+}
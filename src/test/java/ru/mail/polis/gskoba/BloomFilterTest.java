@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 (c) Vadim Tsesko <incubos@yandex.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link BloomFilter} built in memory and read from an {@link SSTable}
+ */
+class BloomFilterTest {
+    private static final int KEYS = 100_000;
+    private static final int KEY_LENGTH = 16;
+    private static final double FPP = 0.01;
+
+    private final Random random = new Random(42);
+
+    @NotNull
+    private ByteBuffer randomKey() {
+        final byte[] key = new byte[KEY_LENGTH];
+        random.nextBytes(key);
+        return ByteBuffer.wrap(key);
+    }
+
+    @NotNull
+    private List<ByteBuffer> randomKeys() {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKey());
+        }
+        return keys;
+    }
+
+    @NotNull
+    private static BloomFilter build(@NotNull final List<ByteBuffer> keys) {
+        final int words = BloomFilter.words(keys.size(), FPP);
+        final int hashes = BloomFilter.hashes(keys.size(), words);
+        final long[] bits = new long[words];
+        for (final ByteBuffer key : keys) {
+            BloomFilter.add(bits, hashes, BloomFilter.hash(key));
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(words * Long.BYTES);
+        for (final long word : bits) {
+            buffer.putLong(word);
+        }
+        buffer.flip();
+        return new BloomFilter(buffer, hashes);
+    }
+
+    /**
+     * @return share of the fresh random keys the filter might contain
+     */
+    private double falsePositives(@NotNull final BloomFilter filter) {
+        int positives = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (filter.mightContain(BloomFilter.hash(randomKey()))) {
+                positives++;
+            }
+        }
+        return (double) positives / KEYS;
+    }
+
+    @Test
+    void noFalseNegatives() {
+        final List<ByteBuffer> keys = randomKeys();
+        final BloomFilter filter = build(keys);
+
+        // Check
+        for (final ByteBuffer key : keys) {
+            assertTrue(filter.mightContain(BloomFilter.hash(key)));
+        }
+    }
+
+    @Test
+    void falsePositiveRate() {
+        final List<ByteBuffer> keys = randomKeys();
+        final BloomFilter filter = build(keys);
+
+        // Near the configured probability
+        final double rate = falsePositives(filter);
+        assertTrue(rate > FPP / 2, "False positive rate " + rate);
+        assertTrue(rate < FPP * 2, "False positive rate " + rate);
+    }
+
+    @Test
+    void reopenTable() throws IOException {
+        final File data = Files.createTempDirectory("bloom").toFile();
+        try {
+            final Map<ByteBuffer, Value> cells = new TreeMap<>();
+            for (int i = 0; i < KEYS; i++) {
+                final byte[] value = new byte[8];
+                random.nextBytes(value);
+                cells.put(randomKey(), Value.present(i, value));
+            }
+            final File file;
+            try (SSTable table = SSTable.write(data, 1, cells.entrySet().iterator(), FPP)) {
+                file = table.file();
+            }
+
+            // Reopen from the file, the filter is read from the mapped footer
+            try (SSTable table = SSTable.open(file)) {
+                assertEquals(KEYS, table.count());
+                for (final Map.Entry<ByteBuffer, Value> cell : cells.entrySet()) {
+                    assertTrue(table.mightContain(BloomFilter.hash(cell.getKey())));
+                    assertNotNull(table.get(cell.getKey()));
+                }
+
+                int positives = 0;
+                for (int i = 0; i < KEYS; i++) {
+                    if (table.mightContain(BloomFilter.hash(randomKey()))) {
+                        positives++;
+                    }
+                }
+                assertTrue((double) positives / KEYS < FPP * 2, "False positives " + positives);
+            }
+        } finally {
+            final File[] files = data.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    Files.delete(file.toPath());
+                }
+            }
+            Files.delete(data.toPath());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 (c) Vadim Tsesko <incubos@yandex.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.mail.polis.gskoba;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compaction strategies, run limits, tombstone removal and throttling
+ */
+class CompactionTest {
+    private static final long MAX = SSTable.MAX_SIZE;
+
+    @Test
+    void sizeTiered() {
+        final CompactionStrategy strategy = new SizeTieredStrategy(4, 32);
+
+        // The newest run of similar sizes
+        assertArrayEquals(new int[]{1, 5}, strategy.select(new long[]{100, 10, 12, 9, 11, 1000}));
+        assertArrayEquals(new int[]{0, 4}, strategy.select(new long[]{10, 10, 10, 10, 100, 100, 100, 100}));
+
+        // Too few alike
+        assertNull(strategy.select(new long[]{10, 10, 10}));
+        assertNull(strategy.select(new long[]{10, 10, 10, 1000, 10}));
+        assertNull(strategy.select(new long[0]));
+
+        // Run capped
+        assertArrayEquals(new int[]{0, 3}, new SizeTieredStrategy(2, 3).select(new long[]{10, 10, 10, 10}));
+
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredStrategy(1, 32));
+        assertThrows(IllegalArgumentException.class, () -> new SizeTieredStrategy(4, 3));
+    }
+
+    @Test
+    void leveled() {
+        final CompactionStrategy strategy = new LeveledStrategy(100, 10);
+
+        // A table on the level of the older one or above
+        assertArrayEquals(new int[]{0, 2}, strategy.select(new long[]{80, 90}));
+        assertArrayEquals(new int[]{1, 3}, strategy.select(new long[]{50, 5000, 600}));
+        assertArrayEquals(new int[]{1, 3}, strategy.select(new long[]{50, 500, 900, 5000}));
+
+        // Levels growing
+        assertNull(strategy.select(new long[]{50, 500, 5000}));
+        assertNull(strategy.select(new long[]{50}));
+
+        assertThrows(IllegalArgumentException.class, () -> new LeveledStrategy(0, 10));
+        assertThrows(IllegalArgumentException.class, () -> new LeveledStrategy(100, 1));
+    }
+
+    @Test
+    void fitMaxSize() {
+        // Up to the limit
+        assertEquals(3, CompactionScheduler.fit(new long[]{MAX / 2, MAX / 2, 1}, 0, 3));
+        assertEquals(2, CompactionScheduler.fit(new long[]{MAX / 2, MAX / 2, 2}, 0, 3));
+
+        // Not past the run
+        assertEquals(2, CompactionScheduler.fit(new long[]{1, 1, 1}, 0, 2));
+        assertEquals(3, CompactionScheduler.fit(new long[]{1, 1, 1}, 1, 3));
+
+        // A table at the limit merges with nothing
+        assertEquals(1, CompactionScheduler.fit(new long[]{MAX, 1}, 0, 2));
+        assertEquals(1, CompactionScheduler.fit(new long[]{1, MAX}, 0, 2));
+    }
+
+    @Test
+    void dropTombstonesAtBottom() throws Exception {
+        final File data = Files.createTempDirectory("compaction").toFile();
+        try (LsmKVDao dao = new LsmKVDao(data, Long.MAX_VALUE, 0.01, CompactionStrategy.none(), 0, 0)) {
+            final byte[] removed = "removed".getBytes(StandardCharsets.UTF_8);
+            final byte[] kept = "kept".getBytes(StandardCharsets.UTF_8);
+
+            // Oldest table has the value, the next one the tombstone past its grace
+            dao.upsert(removed, kept);
+            dao.flush();
+            dao.remove(removed);
+            dao.flush();
+            dao.upsert(kept, kept);
+            dao.flush();
+            TimeUnit.MILLISECONDS.sleep(10);
+            assertEquals(3, dao.tables().size());
+
+            // Above the bottom the tombstone still hides the value
+            dao.merge(dao.tables().subList(0, 2), new RateLimiter(0));
+            assertEquals(2, dao.tables().size());
+            final Value tombstone = dao.tables().get(0).get(ByteBuffer.wrap(removed));
+            assertNotNull(tombstone);
+            assertTrue(tombstone.isRemoved());
+
+            // Including the bottom it goes with the value
+            dao.merge(dao.tables(), new RateLimiter(0));
+            assertEquals(1, dao.tables().size());
+            assertNull(dao.tables().get(0).get(ByteBuffer.wrap(removed)));
+            assertNull(dao.getVersion(removed));
+            assertArrayEquals(kept, dao.get(kept));
+        } finally {
+            final File[] files = data.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    Files.delete(file.toPath());
+                }
+            }
+            Files.delete(data.toPath());
+        }
+    }
+
+    @Test
+    void rateLimiter() throws IOException {
+        // Three halves of a second at the rate
+        final RateLimiter limiter = new RateLimiter(1000);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire(500);
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(950));
+
+        // Unlimited
+        final long unlimited = System.nanoTime();
+        new RateLimiter(0).acquire(Long.MAX_VALUE);
+        assertTrue(System.nanoTime() - unlimited < TimeUnit.MILLISECONDS.toNanos(100));
+
+        // Interrupted while waiting
+        final RateLimiter slow = new RateLimiter(1);
+        slow.acquire(1);
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedIOException.class, () -> slow.acquire(1));
+        assertTrue(Thread.interrupted());
+    }
+}
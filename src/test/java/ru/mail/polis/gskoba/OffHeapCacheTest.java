@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018 (c) Vadim Tsesko <incubos@yandex.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ru.mail.polis.gskoba;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Admission, eviction and invalidation of the {@link OffHeapCache}
+ */
+class OffHeapCacheTest {
+    private static final int SEGMENTS = 16;
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int CAPACITY = SEGMENTS * SEGMENT_SIZE;
+    private static final int KEY_LENGTH = 16;
+    /**
+     * Four records fill a segment exactly
+     */
+    private static final int VALUE_LENGTH = SEGMENT_SIZE / 4 - 2 * Integer.BYTES - KEY_LENGTH;
+    private static final int RECORD_SIZE = SEGMENT_SIZE / 4;
+
+    private final Random random = new Random(42);
+
+    @NotNull
+    private ByteBuffer randomKey() {
+        final byte[] key = new byte[KEY_LENGTH];
+        random.nextBytes(key);
+        return ByteBuffer.wrap(key);
+    }
+
+    @NotNull
+    private byte[] randomValue(final int length) {
+        final byte[] value = new byte[length];
+        random.nextBytes(value);
+        return value;
+    }
+
+    /**
+     * Misses the key {@code requests} times before filling it, as a reader would.
+     */
+    private static void fill(
+            @NotNull final OffHeapCache cache,
+            @NotNull final ByteBuffer key,
+            @NotNull final byte[] value,
+            final int requests) {
+        long version = 0;
+        for (int i = 0; i < requests; i++) {
+            version = cache.version(key);
+            assertNull(cache.get(key));
+        }
+        cache.put(key, value, version);
+    }
+
+    @Test
+    void hitAfterFill() {
+        final OffHeapCache cache = new OffHeapCache(CAPACITY);
+        final ByteBuffer key = randomKey();
+        final byte[] value = randomValue(VALUE_LENGTH);
+        fill(cache, key, value, 1);
+
+        // Check
+        assertArrayEquals(value, cache.get(key));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    void invalidateRacingFill() {
+        final OffHeapCache cache = new OffHeapCache(CAPACITY);
+        final ByteBuffer key = randomKey();
+        final byte[] stale = randomValue(VALUE_LENGTH);
+
+        // A write invalidates the key after the miss took its version
+        final long version = cache.version(key);
+        assertNull(cache.get(key));
+        cache.invalidate(key);
+        cache.put(key, stale, version);
+        assertNull(cache.get(key));
+
+        // The next miss fills it
+        final byte[] fresh = randomValue(VALUE_LENGTH);
+        cache.put(key, fresh, cache.version(key));
+        assertArrayEquals(fresh, cache.get(key));
+
+        // Invalidated
+        cache.invalidate(key);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    void evictAtCapacity() {
+        final OffHeapCache cache = new OffHeapCache(CAPACITY);
+        final List<ByteBuffer> keys = new ArrayList<>();
+
+        // Fill twice the capacity with keys requested once
+        for (int i = 0; i < 2 * CAPACITY / RECORD_SIZE; i++) {
+            final ByteBuffer key = randomKey();
+            fill(cache, key, randomValue(VALUE_LENGTH), 1);
+            keys.add(key);
+        }
+        // No more popular than the cached ones
+        assertTrue(cache.rejections() > 0);
+        assertEquals(0, cache.evictions());
+
+        // Then as many requested more often, evicting the others
+        for (int i = 0; i < 2 * CAPACITY / RECORD_SIZE; i++) {
+            final ByteBuffer key = randomKey();
+            fill(cache, key, randomValue(VALUE_LENGTH), 3);
+            keys.add(key);
+        }
+        assertTrue(cache.evictions() > 0);
+
+        // Check the cached bytes
+        int cached = 0;
+        for (final ByteBuffer key : keys) {
+            if (cache.get(key) != null) {
+                cached++;
+            }
+        }
+        assertTrue(cached > 0);
+        assertTrue(cached * RECORD_SIZE <= CAPACITY);
+    }
+
+    @Test
+    void skipLargerThanSegment() {
+        final OffHeapCache cache = new OffHeapCache(CAPACITY);
+        final ByteBuffer key = randomKey();
+        fill(cache, key, randomValue(SEGMENT_SIZE), 1);
+
+        // Check
+        assertNull(cache.get(key));
+        assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    void countFrequency() {
+        final FrequencySketch sketch = new FrequencySketch(64);
+        final long hash = random.nextLong();
+        assertEquals(0, sketch.frequency(hash));
+
+        // Count
+        for (int i = 0; i < 5; i++) {
+            sketch.increment(hash);
+        }
+        assertEquals(5, sketch.frequency(hash));
+
+        // Saturate
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(hash);
+        }
+        assertEquals(15, sketch.frequency(hash));
+    }
+
+    @Test
+    void ageFrequency() {
+        final FrequencySketch sketch = new FrequencySketch(64);
+        final long hash = random.nextLong();
+        for (int i = 0; i < 15; i++) {
+            sketch.increment(hash);
+        }
+
+        // Ten times the width of other keys halves every counter
+        for (int i = 0; i < 10 * 128; i++) {
+            sketch.increment(random.nextLong());
+        }
+
+        // Check
+        final int frequency = sketch.frequency(hash);
+        assertTrue(frequency >= 7);
+        assertTrue(frequency < 15);
+    }
+}